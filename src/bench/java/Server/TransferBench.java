@@ -0,0 +1,87 @@
+package Server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Loopback download throughput: the buffered copy SockConn falls back to vs FileChannel.transferTo.
+// Usage: TransferBench [sizeMB=512] [rounds=5]
+public class TransferBench {
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        long size = sizeMb * 1024L * 1024L;
+
+        Path file = Files.createTempFile("xfer-bench-", ".bin");
+        try {
+            fill(file, size);
+            System.out.println("File: " + sizeMb + " MB, rounds: " + rounds);
+            for (String mode : new String[] { "buffered", "transferTo" }) {
+                run(mode, file, size, 1); // warm-up
+                double best = 0, total = 0;
+                for (int i = 0; i < rounds; i++) {
+                    double mbs = run(mode, file, size, i);
+                    best = Math.max(best, mbs);
+                    total += mbs;
+                }
+                System.out.printf("%-10s avg %8.1f MB/s   best %8.1f MB/s%n", mode, total / rounds, best);
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void fill(Path file, long size) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(1 << 20);
+        for (int i = 0; i < chunk.capacity(); i++) chunk.put((byte) (i * 31));
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            for (long pos = 0; pos < size; pos += chunk.capacity()) {
+                chunk.clear().limit((int) Math.min(chunk.capacity(), size - pos));
+                while (chunk.hasRemaining()) fc.write(chunk);
+            }
+        }
+    }
+
+    private static double run(String mode, Path file, long size, int round) throws Exception {
+        try (ServerSocketChannel srv = ServerSocketChannel.open()) {
+            srv.bind(new InetSocketAddress("127.0.0.1", 0));
+            Thread drain = new Thread(() -> {
+                try (SocketChannel in = srv.accept()) {
+                    ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+                    long got = 0;
+                    while (got < size) {
+                        int n = in.read(buf);
+                        if (n < 0) throw new IOException("Sender closed early after " + got + " bytes.");
+                        got += n;
+                        buf.clear();
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }, "drain-" + round);
+            drain.start();
+
+            long t0 = System.nanoTime();
+            try (SocketChannel out = SocketChannel.open(srv.getLocalAddress())) {
+                if (mode.equals("transferTo")) {
+                    FileXfer.transfer(file, 0, size, out);
+                } else {
+                    OutputStream os = new DataOutputStream(new BufferedOutputStream(out.socket().getOutputStream(), FileXfer.BUF_SIZE));
+                    FileXfer.copy(file, 0, size, os);
+                }
+                drain.join();
+            }
+            double secs = (System.nanoTime() - t0) / 1e9;
+            return size / (1024.0 * 1024.0) / secs;
+        }
+    }
+}
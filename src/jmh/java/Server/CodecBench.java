@@ -0,0 +1,65 @@
+package Server;
+
+import Shared.Message;
+import Shared.MsgCodec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Frame encode and decode for every codec a connection can negotiate: 1 is V_JAVA, 2 V_BIN and
+// 258 V_BIN|ZIP. A chat line is the common case; a 500-name user list is the biggest frame
+// that goes out regularly and the first to cross Zip.MIN_FRAME.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBench {
+    @Param({ "1", "2", "258" })
+    public int codec;
+
+    @Param({ "chat", "userlist" })
+    public String kind;
+
+    private Message msg;
+    private byte[] body;
+
+    @Setup
+    public void setup() throws IOException {
+        if (kind.equals("chat")) {
+            msg = new Message(Message.CHAT_MESSAGE, "user1", "Did anyone get the slides from this morning's lecture?");
+        } else {
+            String[] names = new String[500];
+            for (int i = 0; i < names.length; i++) names[i] = "user" + i;
+            msg = new Message(Message.USER_LIST_UPDATE, "Server", (Object) names);
+            msg.content = Rooms.LOBBY;
+            msg.fileSize = 42;
+        }
+        // decode() takes the body without the length prefix, as the readers pass it.
+        ByteBuffer frame = MsgCodec.frame(msg, codec);
+        body = Arrays.copyOfRange(frame.array(), frame.arrayOffset() + frame.position() + 4, frame.arrayOffset() + frame.limit());
+    }
+
+    @Benchmark
+    public ByteBuffer encode() throws IOException {
+        return MsgCodec.frame(msg, codec);
+    }
+
+    @Benchmark
+    public Message decode() throws IOException {
+        return MsgCodec.decode(body, 0, body.length, codec);
+    }
+}
@@ -0,0 +1,51 @@
+package Server;
+
+import Shared.Message;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One chat line broadcast to a room of n in-memory sessions, the path ClientHandler.bcast
+// takes: a fresh Frame per line, encoded once and queued to every member.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanoutBench {
+    @Param({ "10", "100", "1000" })
+    public int n;
+
+    @Param({ "2", "258" })
+    public int codec;
+
+    private Room room;
+    private Members.SinkConn[] sinks;
+    private final Message chat = new Message(Message.CHAT_MESSAGE, "user0", "Did anyone get the slides from this morning's lecture?");
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        room = new Room("bench");
+        sinks = new Members.SinkConn[n];
+        for (int i = 0; i < n; i++) {
+            sinks[i] = new Members.SinkConn(codec);
+            room.join(Members.make(sinks[i], "user" + i, true));
+        }
+    }
+
+    @Benchmark
+    public long bcast() {
+        room.bcast(new Frame(chat), null);
+        return sinks[n - 1].bytes;
+    }
+}
@@ -0,0 +1,87 @@
+package Server;
+
+import Shared.Message;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.function.Consumer;
+
+// In-memory sessions for the fanout benchmarks. Each one has a real OutQueue that is drained as
+// soon as something is offered, so a send costs what it costs on a live NIO connection (encode
+// once per codec, a private view of the bytes, the queue lock) without any socket.
+final class Members {
+    private Members() {}
+
+    // A logged-in handler named uname on conn. Logging in for real only works for the built-in
+    // users, so the session state login would set is filled in directly.
+    static ClientHandler make(SinkConn conn, String uname, boolean deltas) throws ReflectiveOperationException {
+        ClientHandler cli = new ClientHandler(conn, Server.sessions);
+        set(cli, "uname", uname);
+        set(cli, "loggedIn", true);
+        set(cli, "presenceDeltas", deltas);
+        return cli;
+    }
+
+    private static void set(ClientHandler cli, String field, Object val) throws ReflectiveOperationException {
+        Field f = ClientHandler.class.getDeclaredField(field);
+        f.setAccessible(true);
+        f.set(cli, val);
+    }
+
+    static final class SinkConn implements Conn {
+        private final int codec;
+        private final OutQueue outQ = new OutQueue(1024, OutQueue.Policy.DROP_OLDEST, Long.MAX_VALUE, "bench");
+        // Read by the benchmarks so the writes cannot be optimised away.
+        long bytes;
+
+        SinkConn(int codec) {
+            this.codec = codec;
+        }
+
+        @Override
+        public void send(Frame frame) throws IOException {
+            outQ.offer(OutQueue.Item.msg(frame, frame.bytes(codec)));
+            OutQueue.Item it;
+            while ((it = outQ.poll()) != null) bytes += it.bytes.remaining();
+        }
+
+        @Override
+        public void setCodec(int ver) {
+        }
+
+        @Override
+        public void sendFile(Message start, BlobStore.Pin pin, long off, long len) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void sendChunks(Message start, String id, BlobStore.Pin pin, long size, long off, int chunk, boolean zip) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void recvFile(Path path, long size, MessageDigest md, Consumer<IOException> done) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public OutQueue outQueue() {
+            return outQ;
+        }
+
+        @Override
+        public String addr() {
+            return "bench";
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package Server;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One user joining and leaving a room of n: what every login and logout costs in user-list
+// traffic. With deltas=false every member gets a freshly built USER_LIST_UPDATE of the whole
+// room, as all clients did before USER_PRESENCE; with deltas=true each gets a one-name delta.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PresenceBench {
+    @Param({ "10", "100", "1000" })
+    public int n;
+
+    @Param({ "false", "true" })
+    public boolean deltas;
+
+    private Room room;
+    private ClientHandler churn;
+    private Members.SinkConn last;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        room = new Room("bench");
+        for (int i = 0; i < n; i++) {
+            last = new Members.SinkConn(2);
+            room.join(Members.make(last, "user" + i, deltas));
+        }
+        churn = Members.make(new Members.SinkConn(2), "newcomer", deltas);
+    }
+
+    @Benchmark
+    public long joinLeave() {
+        room.join(churn);
+        room.leave(churn);
+        return last.bytes;
+    }
+}
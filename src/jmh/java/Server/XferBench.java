@@ -0,0 +1,141 @@
+package Server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Loopback file transfer of sizeMb through the server's send and receive paths: the buffered
+// copy SockConn falls back to vs FileChannel.transferTo for downloads, and the stream vs
+// direct-buffer channel read (both hashing, as uploads do) for uploads. Another thread plays
+// the client. Throughput in MB/s is sizeMb * 1000 / the reported ms/op.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XferBench {
+    @Param({ "64" })
+    public int sizeMb;
+
+    private long size;
+    private Path file;
+    private Path dest;
+    private ServerSocketChannel srv;
+    private ExecutorService client;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        size = sizeMb * 1024L * 1024L;
+        file = Files.createTempFile("xfer-bench-", ".bin");
+        dest = Files.createTempFile("xfer-bench-", ".up");
+        ByteBuffer chunk = ByteBuffer.allocate(1 << 20);
+        for (int i = 0; i < chunk.capacity(); i++) chunk.put((byte) (i * 31));
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            for (long pos = 0; pos < size; pos += chunk.capacity()) {
+                chunk.clear().limit((int) Math.min(chunk.capacity(), size - pos));
+                while (chunk.hasRemaining()) fc.write(chunk);
+            }
+        }
+        srv = ServerSocketChannel.open();
+        srv.bind(new InetSocketAddress("127.0.0.1", 0));
+        client = Executors.newSingleThreadExecutor();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.shutdownNow();
+        srv.close();
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(dest);
+    }
+
+    @Benchmark
+    public long downloadBuffered() throws Exception {
+        return download(false);
+    }
+
+    @Benchmark
+    public long downloadTransferTo() throws Exception {
+        return download(true);
+    }
+
+    @Benchmark
+    public byte[] uploadStream() throws Exception {
+        return upload(false);
+    }
+
+    @Benchmark
+    public byte[] uploadChannel() throws Exception {
+        return upload(true);
+    }
+
+    private long download(boolean zeroCopy) throws Exception {
+        Future<Long> peer = client.submit(() -> {
+            try (SocketChannel ch = SocketChannel.open(srv.getLocalAddress())) {
+                ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+                long got = 0;
+                while (got < size) {
+                    int n = ch.read(buf.clear());
+                    if (n < 0) throw new IOException("Server closed early after " + got + " bytes.");
+                    got += n;
+                }
+                return got;
+            }
+        });
+        try (SocketChannel ch = srv.accept()) {
+            if (zeroCopy) {
+                FileXfer.transfer(file, 0, size, ch);
+            } else {
+                FileXfer.copy(file, 0, size, new BufferedOutputStream(ch.socket().getOutputStream(), FileXfer.BUF_SIZE));
+            }
+            return peer.get();
+        }
+    }
+
+    private byte[] upload(boolean channel) throws Exception {
+        Future<?> peer = client.submit(() -> {
+            try (SocketChannel ch = SocketChannel.open(srv.getLocalAddress())) {
+                FileXfer.transfer(file, 0, size, ch);
+            }
+            return null;
+        });
+        MessageDigest md = BlobStore.newDigest();
+        try (SocketChannel ch = srv.accept();
+             FileChannel fc = FileChannel.open(dest, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (channel) {
+                FileXfer.recv(ch, fc, 0, size, md);
+            } else {
+                FileXfer.recv(new BufferedInputStream(ch.socket().getInputStream(), FileXfer.BUF_SIZE), fc, size, md);
+            }
+            peer.get();
+        }
+        return md.digest();
+    }
+}
@@ -1,43 +1,42 @@
 package Client;
 
+import Shared.Caps;
+import Shared.FileList;
 import Shared.Message;
+import Shared.MsgConn;
+import Shared.XferJournal;
 import java.io.*;
-import java.net.Socket;
 import java.net.SocketException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class Client {
-    private static Socket socket;
-    private static ObjectOutputStream oos;
-    private static ObjectInputStream ois;
-    private static DataOutputStream dos; // For sending raw file bytes
-    private static DataInputStream dis;  // For receiving raw file bytes
+    private static final String HOST = "localhost";
+    private static final int PORT = 12345;
+    private static final int RECONNECT_TRIES = 8;
+    private static final long MAX_BACKOFF_MS = 10_000;
+
+    private static volatile MsgConn conn;
 
     private static String username;
+    private static String password;
     private static volatile boolean loggedIn = false;
     private static volatile boolean running = true;
-    private static ClientReceiver clientReceiver;
+    private static volatile ClientReceiver clientReceiver;
     private static final String CLIENT_BASE_DIR = "resources/Client/";
     private static String clientSpecificDir;
+    private static XferJournal journal;
 
 
     public static void main(String[] args) {
         Scanner scanner = new Scanner(System.in);
 
         try {
-            socket = new Socket("localhost", 12345);
-            System.out.println("Connected to server: " + socket.getInetAddress());
-
-
-            oos = new ObjectOutputStream(socket.getOutputStream());
-            oos.flush();
-            ois = new ObjectInputStream(socket.getInputStream());
-
-            dos = new DataOutputStream(socket.getOutputStream());
-            dis = new DataInputStream(socket.getInputStream());
-
+            conn = MsgConn.connect(HOST, PORT);
+            System.out.println("Connected to server: " + conn.getSocket().getInetAddress());
 
 
             System.out.println("== Welcome to Room ==");
@@ -50,16 +49,14 @@ public class Client {
                 System.out.print("Password: \n" +
                         "(1234)")
                 ;
-                String password = scanner.nextLine().trim();
-                if (password.isEmpty()) continue;
-
-                sendLoginRequest(inputUsername, password);
-
+                String inputPassword = scanner.nextLine().trim();
+                if (inputPassword.isEmpty()) continue;
 
                 try {
-                    Message serverResponse = (Message) ois.readObject();
+                    Message serverResponse = conn.login(inputUsername, inputPassword);
                     if (serverResponse.type == Message.LOGIN_SUCCESS) {
                         username = inputUsername;
+                        password = inputPassword;
                         loggedIn = true;
                         System.out.println(serverResponse.content);
                         clientSpecificDir = CLIENT_BASE_DIR + username + "/";
@@ -69,9 +66,6 @@ public class Client {
                     } else {
                         System.err.println("Unexpected response during login: " + serverResponse);
                     }
-                } catch (ClassNotFoundException e) {
-                    System.err.println("Error reading login response: " + e.getMessage());
-                    running = false;
                 } catch (EOFException | SocketException e) {
                     System.err.println("Disconnected from server during login. Exiting.");
                     running = false;
@@ -80,8 +74,10 @@ public class Client {
 
             if (loggedIn) {
 
-                clientReceiver = new ClientReceiver(ois, dis, clientSpecificDir, username);
+                journal = new XferJournal(Paths.get(clientSpecificDir));
+                clientReceiver = new ClientReceiver(conn, clientSpecificDir, username, journal);
                 new Thread(clientReceiver).start();
+                resumeTransfers();
 
 
                 while (running && loggedIn) {
@@ -89,10 +85,10 @@ public class Client {
                     System.out.print("Enter choice: ");
                     String choice = scanner.nextLine().trim();
 
-                    if (!socket.isConnected() || socket.isClosed()) {
-                        System.out.println("Connection to server lost.");
-                        running = false;
-                        break;
+                    if (!running) break;
+                    if (!conn.isOpen()) {
+                        System.out.println("Connection to server lost; reconnecting, try again shortly.");
+                        continue;
                     }
 
                     switch (choice) {
@@ -138,12 +134,9 @@ public class Client {
         System.out.println("0. Exit");
     }
 
-    private static void sendLoginRequest(String reqUsername, String password) {
-        sendMessageToServer(new Message(Message.LOGIN_REQUEST, reqUsername, reqUsername + ":" + password));
-    }
-
     private static void enterChat(Scanner scanner) {
-        System.out.println("You have entered the chat. Type '/exit' to return to the menu.");
+        System.out.println("You have entered the chat. Type '/exit' to return to the menu, '/history <minutes>' to see what was said,");
+        System.out.println("'/join <room>' to change rooms, '/leave' to go back to the lobby and '/msg <user> <text>' to message one user.");
         System.out.println("-----------------------------------------------------------");
         clientReceiver.setInChatMode(true);
 
@@ -153,6 +146,26 @@ public class Client {
                 break;
             }
             if (messageString.trim().isEmpty()) continue;
+            if (messageString.trim().startsWith("/join ")) {
+                sendMessageToServer(new Message(Message.ROOM_JOIN, username, messageString.trim().substring("/join ".length()).trim()));
+                continue;
+            }
+            if (messageString.trim().startsWith("/msg ")) {
+                sendDirectMessage(messageString.trim().substring("/msg ".length()).trim());
+                continue;
+            }
+            if ("/leave".equalsIgnoreCase(messageString.trim())) {
+                sendMessageToServer(new Message(Message.ROOM_JOIN, username, "lobby"));
+                continue;
+            }
+            if (messageString.trim().startsWith("/history")) {
+                requestHistory(messageString.trim().substring("/history".length()).trim());
+                continue;
+            }
+            if ("/stats".equalsIgnoreCase(messageString.trim())) {
+                sendMessageToServer(new Message(Message.ADMIN_STATS, username, (String) null));
+                continue;
+            }
 
             sendChatMessage(messageString);
         }
@@ -161,6 +174,30 @@ public class Client {
         System.out.println("Exited chat box.");
     }
 
+    private static void sendDirectMessage(String args) {
+        String[] parts = args.split("\\s+", 2);
+        if (parts.length < 2 || parts[1].isEmpty()) {
+            System.out.println("Usage: /msg <user> <text>");
+            return;
+        }
+        Message dm = new Message(Message.DIRECT_MESSAGE, username, parts[1]);
+        dm.payload = parts[0];
+        sendMessageToServer(dm);
+    }
+
+    private static void requestHistory(String minutes) {
+        long mins;
+        try {
+            mins = minutes.isEmpty() ? 60 : Long.parseLong(minutes);
+        } catch (NumberFormatException e) {
+            System.out.println("Usage: /history <minutes>");
+            return;
+        }
+        Message req = new Message(Message.CHAT_HISTORY, username, (String) null);
+        req.payload = Caps.of(Caps.SINCE, Long.toString(System.currentTimeMillis() - mins * 60_000), Caps.LIMIT, "200");
+        sendMessageToServer(req);
+    }
+
     private static void sendChatMessage(String messageToSend) {
         sendMessageToServer(new Message(Message.CHAT_MESSAGE, username, messageToSend));
     }
@@ -207,6 +244,12 @@ public class Client {
         String fileName = selectedFile.getName();
         long fileSize = selectedFile.length();
 
+        if (conn.getChunk() > 0) {
+            System.out.println("Uploading " + fileName + " (" + fileSize + " bytes) in the background...");
+            startUpload(selectedFile.toPath());
+            return;
+        }
+
         try {
             System.out.println("Requesting to upload " + fileName + " (" + fileSize + " bytes)...");
             sendMessageToServer(new Message(Message.FILE_UPLOAD_REQUEST_METADATA, username, fileName, fileSize));
@@ -214,13 +257,16 @@ public class Client {
 
 
             System.out.println("Sending file bytes for " + fileName + "...");
-            try (InputStream fileIs = Files.newInputStream(selectedFile.toPath())) {
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                while ((bytesRead = fileIs.read(buffer)) != -1) {
-                    dos.write(buffer, 0, bytesRead);
+            DataOutputStream dos = conn.getDataOut();
+            synchronized (dos) {
+                try (InputStream fileIs = Files.newInputStream(selectedFile.toPath())) {
+                    byte[] buffer = new byte[8192];
+                    int bytesRead;
+                    while ((bytesRead = fileIs.read(buffer)) != -1) {
+                        dos.write(buffer, 0, bytesRead);
+                    }
+                    dos.flush();
                 }
-                dos.flush();
             }
             System.out.println("File " + fileName + " bytes sent. Waiting for server confirmation...");
 
@@ -230,10 +276,40 @@ public class Client {
     }
 
 
+    // Chunked uploads share the socket with chat, so they run in the background. One cut off by
+    // a dropped connection stays in the journal and resumes on the next login.
+    private static void startUpload(Path file) {
+        journal.uploadStarted(file);
+        MsgConn c = conn;
+        new Thread(() -> {
+            try {
+                c.sendChunks(username, file);
+                System.out.println("\nFile " + file.getFileName() + " sent. Waiting for server confirmation...");
+            } catch (IOException e) {
+                if (c.isOpen()) journal.uploadDone(file);
+                System.err.println("\nError during file upload for " + file.getFileName() + ": " + e.getMessage());
+            }
+        }).start();
+    }
+
+    private static void resumeTransfers() {
+        if (conn.getChunk() <= 0) return;
+        for (Path file : journal.uploads()) {
+            System.out.println("Resuming upload of " + file.getFileName() + "...");
+            startUpload(file);
+        }
+        for (Message req : journal.resumeRequests(username)) {
+            System.out.println("Resuming download of " + req.content + "...");
+            sendMessageToServer(req);
+        }
+    }
+
     private static void requestDownload(Scanner scanner) {
 
+        System.out.print("Only list files starting with (Enter for all): ");
+        String prefix = scanner.nextLine().trim();
         System.out.println("Requesting file list from server...");
-        sendMessageToServer(new Message(Message.FILE_LIST_REQUEST, username, ""));
+        sendMessageToServer(FileList.request(username, prefix, null, FileList.PAGE));
         System.out.println("Server will list available files. Please check the output.");
         System.out.print("Enter the name of the file you want to download (or type 'cancel'): ");
         String fileNameToDownload = scanner.nextLine().trim();
@@ -245,47 +321,90 @@ public class Client {
 
 
         System.out.println("Requesting to download file: " + fileNameToDownload);
-        sendMessageToServer(new Message(Message.FILE_DOWNLOAD_REQUEST, username, fileNameToDownload));
+        if (conn.getChunk() > 0) {
+            sendMessageToServer(journal.downloadRequest(username, fileNameToDownload, Paths.get(clientSpecificDir, fileNameToDownload)));
+        } else {
+            sendMessageToServer(new Message(Message.FILE_DOWNLOAD_REQUEST, username, fileNameToDownload));
+        }
         System.out.println("If the file exists, download will begin. Check console for progress/completion messages from receiver.");
     }
 
 
+    // While the connection is down the message is not sent; the receiver is reconnecting.
     public static void sendMessageToServer(Message msg) {
+        MsgConn c = conn;
         try {
-            if (oos != null && socket != null && !socket.isClosed()) {
-                oos.writeObject(msg);
-                oos.flush();
+            if (c != null && c.isOpen()) {
+                c.send(msg);
             } else {
-                System.err.println("Cannot send message. Not connected or output stream closed.");
-                running = false;
+                System.err.println("Cannot send message. Not connected; reconnecting...");
             }
         } catch (IOException e) {
             System.err.println("Error sending message to server: " + e.getMessage());
-
-            running = false;
-            loggedIn = false;
+            // Make sure the receiver notices too, even if the socket only failed one way.
+            close(c);
         }
     }
 
     private static void closeClientResources() {
         System.out.println("Closing client resources...");
         try {
-            if (ois != null) ois.close();
-            if (oos != null) oos.close();
-            if (dis != null) dis.close();
-            if (dos != null) dos.close();
-            if (socket != null && !socket.isClosed()) socket.close();
+            if (conn != null) conn.close();
         } catch (IOException e) {
             System.err.println("Error closing client resources: " + e.getMessage());
         }
     }
 
 
+    // Called by the receiver once its connection is gone. Unless we are quitting, logs in again
+    // with backoff and resumes what the journal says was cut off. A refused login is retried
+    // too, since the server may not have noticed the old session is gone yet.
     public static void handleServerInitiatedDisconnect() {
-        if (running) {
-            System.out.println("Disconnected by server or connection lost.");
-            running = false;
-            loggedIn = false;
+        if (!running) return;
+        System.out.println("\nDisconnected by server or connection lost. Reconnecting...");
+        long backoff = 500;
+        for (int i = 0; i < RECONNECT_TRIES && running; i++) {
+            try {
+                Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff / 2));
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (!running) break;
+            backoff = Math.min(MAX_BACKOFF_MS, backoff * 2);
+            MsgConn next = null;
+            try {
+                next = MsgConn.connect(HOST, PORT);
+                Message resp = next.login(username, password);
+                if (resp.type == Message.LOGIN_SUCCESS) {
+                    resumeOn(next);
+                    return;
+                }
+                System.err.println("Login after reconnect failed: " + resp.content);
+            } catch (IOException e) {
+                System.err.println("Reconnect failed: " + e.getMessage());
+            }
+            close(next);
+        }
+        if (running) System.out.println("Could not reconnect. Press Enter to exit.");
+        running = false;
+        loggedIn = false;
+    }
+
+    private static void resumeOn(MsgConn next) {
+        ClientReceiver old = clientReceiver;
+        ClientReceiver rcv = new ClientReceiver(next, clientSpecificDir, username, journal);
+        rcv.setInChatMode(old != null && old.isInChatMode());
+        conn = next;
+        clientReceiver = rcv;
+        new Thread(rcv).start();
+        System.out.println("Reconnected to server as " + username + ".");
+        resumeTransfers();
+    }
+
+    private static void close(MsgConn c) {
+        try {
+            if (c != null) c.close();
+        } catch (IOException ignored) {
         }
     }
 }
@@ -1,15 +1,20 @@
 package Client;
 
+import Shared.Caps;
+import Shared.FileList;
 import Shared.Message;
+import Shared.MsgConn;
+import Shared.XferJournal;
 import java.io.*;
-import java.net.SocketException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
 
 public class ClientReceiver implements Runnable {
-    private ObjectInputStream ois;
+    private MsgConn conn;
     private DataInputStream dis;
     private volatile boolean running = true;
     private volatile boolean inChatMode = false;
@@ -19,11 +24,13 @@ public class ClientReceiver implements Runnable {
 
     private String pendingDownloadFilename;
     private long pendingDownloadFilesize;
+    private final XferJournal journal;
 
 
-    public ClientReceiver(ObjectInputStream ois, DataInputStream dis, String clientFileDir, String username) {
-        this.ois = ois;
-        this.dis = dis;
+    public ClientReceiver(MsgConn conn, String clientFileDir, String username, XferJournal journal) {
+        this.conn = conn;
+        this.journal = journal;
+        this.dis = conn.getDataIn();
         this.clientFileDirectory = clientFileDir;
         this.clientUsername = username;
     }
@@ -32,36 +39,35 @@ public class ClientReceiver implements Runnable {
         this.inChatMode = mode;
     }
 
+    boolean isInChatMode() {
+        return inChatMode;
+    }
+
     public void stopRunning() {
         this.running = false;
     }
 
+    // The journal is closed before reporting the disconnect, so the reconnect starts with no
+    // download left open from this connection.
     @Override
     public void run() {
+        boolean lost = false;
         try {
             while (running) {
-                Message serverMessage = (Message) ois.readObject();
+                Message serverMessage = conn.read();
                 if (serverMessage == null) {
-                    if (running) Client.handleServerInitiatedDisconnect();
+                    lost = running;
                     break;
                 }
                 processServerMessage(serverMessage);
             }
-        } catch (SocketException e) {
-            if (running) {
-                Client.handleServerInitiatedDisconnect();
-            }
-        } catch (EOFException e) {
-            if (running) {
-                Client.handleServerInitiatedDisconnect();
-            }
-        } catch (IOException | ClassNotFoundException e) {
-            if (running) {
-                Client.handleServerInitiatedDisconnect();
-            }
+        } catch (IOException e) {
+            lost = running;
         } finally {
+            journal.close();
             System.out.println("[Receiver] Thread stopped.");
         }
+        if (lost) Client.handleServerInitiatedDisconnect();
     }
 
     private void processServerMessage(Message msg) throws IOException {
@@ -72,23 +78,48 @@ public class ClientReceiver implements Runnable {
                     System.out.println((inChatMode ? "" : "[" + msg.sender + "]: ") + msg.content);
                 }
                 break;
+            case Message.DIRECT_MESSAGE:
+                System.out.println("[DM from " + msg.sender + "]: " + msg.content);
+                break;
+            case Message.ROOM_JOIN:
+                System.out.println("[Server] You are now in #" + msg.content + ".");
+                break;
+            case Message.CHAT_HISTORY:
+                printHistory(msg);
+                break;
+            case Message.ADMIN_STATS:
+                System.out.println("\n--- Server stats ---");
+                if (msg.payload instanceof String[]) {
+                    for (String line : (String[]) msg.payload) System.out.println(line);
+                }
+                System.out.println("--------------------");
+                promptForInput();
+                break;
             case Message.USER_JOINED_NOTIFICATION:
             case Message.USER_LEFT_NOTIFICATION:
                 System.out.println("\n[System] " + msg.content);
                 promptForInput();
                 break;
-            case Message.GENERAL_SERVER_MESSAGE:
             case Message.FILE_UPLOAD_CONFIRMATION:
+                journal.uploadDone(conn.uploadConfirmed(msg));
+                System.out.println("\n[Server] " + msg.content);
+                promptForInput();
+                break;
+            case Message.GENERAL_SERVER_MESSAGE:
                 System.out.println("\n[Server] " + msg.content);
                 promptForInput();
                 break;
             case Message.FILE_UPLOAD_READY_FOR_BYTES:
-                System.out.println("\n[Server] Ready for client to send file bytes for: " + msg.content);
+                conn.uploadReady(msg);
+                long off = Caps.getLong(msg.payload, Caps.OFF, 0);
+                System.out.println("\n[Server] Ready for client to send file bytes for: " + msg.content + (off > 0 ? " (resuming at byte " + off + ")" : ""));
                 promptForInput();
                 break;
             case Message.FILE_LIST_RESPONSE:
                 System.out.println("\n--- Files available on Server ---");
-                if (msg.content == null || msg.content.isEmpty()) {
+                if (msg.payload instanceof String[]) {
+                    printFilePage(msg);
+                } else if (msg.content == null || msg.content.isEmpty()) {
                     System.out.println("No files available.");
                 } else {
                     String[] files = msg.content.split(",");
@@ -100,6 +131,14 @@ public class ClientReceiver implements Runnable {
                 promptForInput();
                 break;
             case Message.FILE_DOWNLOAD_INFO_AND_START:
+                if (XferJournal.isParallel(msg)) {
+                    startParallelDownload(msg);
+                    break;
+                }
+                if (Caps.get(msg.payload, Caps.XFER) != null) {
+                    startChunkedDownload(msg);
+                    break;
+                }
                 this.pendingDownloadFilename = msg.content;
                 this.pendingDownloadFilesize = msg.fileSize;
                 System.out.println("\n[Server] Preparing to send file: " + pendingDownloadFilename + " (" + pendingDownloadFilesize + " bytes).");
@@ -116,6 +155,30 @@ public class ClientReceiver implements Runnable {
                 }
                 promptForInput();
                 break;
+            case Message.FILE_CHUNK:
+                try {
+                    Path done = journal.chunk(msg);
+                    if (done != null) {
+                        System.out.println("\n[Receiver] File " + done.getFileName() + " downloaded successfully to " + done + ".");
+                        promptForInput();
+                    }
+                } catch (IOException e) {
+                    System.err.println("\n[Receiver] Download failed: " + e.getMessage());
+                    promptForInput();
+                }
+                break;
+            case Message.FILE_TRANSFER_ABORT:
+                conn.abortUpload(msg.content);
+                Path aborted = journal.aborted(msg.content);
+                if (aborted != null) {
+                    System.err.println("\n[Server] Download of " + aborted.getFileName() + " was aborted.");
+                    promptForInput();
+                }
+                break;
+            case Message.USER_LIST_UPDATE:
+            case Message.USER_PRESENCE:
+                // The console client has no user list; joins and leaves are announced as text.
+                break;
             case Message.FILE_DOWNLOAD_ERROR:
                 System.err.println("\n[Server] Download Error: " + msg.content);
                 this.pendingDownloadFilename = null;
@@ -133,12 +196,69 @@ public class ClientReceiver implements Runnable {
         }
     }
 
+    private void printHistory(Message msg) {
+        if (!(msg.payload instanceof String[])) {
+            System.out.println("\n--- No history ---");
+            return;
+        }
+        String[] lines = (String[]) msg.payload;
+        System.out.println("\n--- Last " + lines.length / 3 + " messages ---");
+        for (int i = 0; i + 2 < lines.length; i += 3) {
+            System.out.println("[" + lines[i] + "]: " + lines[i + 1]);
+        }
+        System.out.println("---");
+    }
+
+    private void printFilePage(Message msg) {
+        List<FileList.Entry> files = FileList.entries(msg);
+        if (files.isEmpty()) System.out.println("No files available.");
+        for (FileList.Entry f : files) {
+            System.out.println("- " + f.name + " (" + f.size + " bytes, " + Instant.ofEpochMilli(f.mtime) + ")");
+        }
+        if (FileList.next(msg) != null) System.out.println("... more files; enter a name prefix to narrow the list.");
+    }
+
     private void promptForInput() {
         if (!inChatMode) {
             System.out.print("\nEnter choice (from main menu): ");
         }
     }
 
+    private void startChunkedDownload(Message info) {
+        Path outputPath = Paths.get(clientFileDirectory, info.content);
+        long off = journal.staged(info);
+        System.out.println("\n[Receiver] Starting download of " + info.content + " (" + info.fileSize + " bytes" + (off > 0 ? ", resuming at byte " + off : "") + ")");
+        try {
+            Path done = journal.downloadStarted(info, outputPath);
+            if (done != null) {
+                System.out.println("[Receiver] File " + info.content + " downloaded successfully to " + done + ".");
+            }
+        } catch (IOException e) {
+            System.err.println("[Receiver] Cannot write " + info.content + ": " + e.getMessage());
+        }
+        promptForInput();
+    }
+
+    // The ranges come in over their own connections, so this thread keeps reading chat meanwhile.
+    private void startParallelDownload(Message info) {
+        int streams = Caps.getInt(info.payload, Caps.STREAMS, 1);
+        System.out.println("\n[Receiver] Starting download of " + info.content + " (" + info.fileSize + " bytes over " + streams + " streams)");
+        promptForInput();
+        Thread t = new Thread(() -> {
+            long start = System.nanoTime();
+            try {
+                Path done = journal.fetchRanges(conn, info, Paths.get(clientFileDirectory, info.content));
+                long ms = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+                System.out.println("\n[Receiver] File " + info.content + " downloaded successfully to " + done + " (" + (info.fileSize / 1024 * 1000 / ms) + " KB/s).");
+            } catch (IOException e) {
+                System.err.println("\n[Receiver] Download of " + info.content + " failed: " + e.getMessage());
+            }
+            promptForInput();
+        }, "download-" + info.content);
+        t.setDaemon(true);
+        t.start();
+    }
+
     private void receiveFileFromServer(String fileName, long fileSize) {
         if (fileName == null || fileName.isEmpty() || fileSize <= 0) {
             System.err.println("\n[Receiver] Error: Invalid file details for download. Filename: " + fileName + ", Size: " + fileSize);
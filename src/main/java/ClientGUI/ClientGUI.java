@@ -1,32 +1,37 @@
 package ClientGUI;
 
+import Shared.FileList;
 import Shared.Message;
+import Shared.MsgConn;
+import Shared.XferJournal;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.*;
-import java.net.Socket;
 import java.net.SocketException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class ClientGUI extends JFrame {
     private static final String S_ADDR = "localhost";
     private static final int S_PORT = 12345;
     private static final String C_DIR = "resources/Client/";
+    private static final int RECONNECT_TRIES = 8;
+    private static final long MAX_BACKOFF_MS = 10_000;
 
-    private Socket sock;
-    private ObjectOutputStream objOut;
-    private ObjectInputStream objIn;
-    private DataOutputStream dataOut;
-    private DataInputStream dataIn;
+    private volatile MsgConn conn;
 
     private String uname;
+    private String pass;
     private String cDir;
     private ClientWorker worker;
+    private XferJournal journal;
 
     private CardLayout cardLyt;
     private JPanel mainPnl;
@@ -45,6 +50,7 @@ public class ClientGUI extends JFrame {
     private DefaultListModel<String> userLstMdl;
     private JButton uploadBtn;
     private JButton downloadBtn;
+    private JButton roomBtn;
     private JButton logoutBtn;
 
     public ClientGUI() {
@@ -117,6 +123,16 @@ public class ClientGUI extends JFrame {
 
         userLstMdl = new DefaultListModel<>();
         userLst = new JList<>(userLstMdl);
+        userLst.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                String to = userLst.getSelectedValue();
+                if (e.getClickCount() == 2 && to != null) {
+                    msgFld.setText("/msg " + to + " ");
+                    msgFld.requestFocusInWindow();
+                }
+            }
+        });
         JScrollPane userSP = new JScrollPane(userLst);
         userSP.setPreferredSize(new Dimension(150, 0));
         chatPnl.add(userSP, BorderLayout.EAST);
@@ -131,9 +147,11 @@ public class ClientGUI extends JFrame {
         JPanel topBtnPnl = new JPanel(new FlowLayout(FlowLayout.LEFT));
         uploadBtn = new JButton("Upload File");
         downloadBtn = new JButton("Download File");
+        roomBtn = new JButton("Change Room");
         logoutBtn = new JButton("Logout");
         topBtnPnl.add(uploadBtn);
         topBtnPnl.add(downloadBtn);
+        topBtnPnl.add(roomBtn);
         topBtnPnl.add(logoutBtn);
         chatPnl.add(topBtnPnl, BorderLayout.NORTH);
 
@@ -141,6 +159,7 @@ public class ClientGUI extends JFrame {
         msgFld.addActionListener(e -> sendMsg());
         uploadBtn.addActionListener(e -> doUpload());
         downloadBtn.addActionListener(e -> doDownload());
+        roomBtn.addActionListener(e -> doChangeRoom());
         logoutBtn.addActionListener(e -> doLogoutOrExit());
     }
 
@@ -157,24 +176,18 @@ public class ClientGUI extends JFrame {
 
         new Thread(() -> {
             try {
-                sock = new Socket(S_ADDR, S_PORT);
-                objOut = new ObjectOutputStream(sock.getOutputStream());
-                objOut.flush();
-                objIn = new ObjectInputStream(sock.getInputStream());
-                dataOut = new DataOutputStream(sock.getOutputStream());
-                dataIn = new DataInputStream(sock.getInputStream());
-
-                objOut.writeObject(new Message(Message.LOGIN_REQUEST, u, u + ":" + p));
-                objOut.flush();
-
-                Message resp = (Message) objIn.readObject();
+                conn = MsgConn.connect(S_ADDR, S_PORT);
+                Message resp = conn.login(u, p);
                 if (resp.type == Message.LOGIN_SUCCESS) {
                     this.uname = u;
+                    this.pass = p;
                     this.cDir = C_DIR + this.uname + "/";
                     Files.createDirectories(Paths.get(this.cDir));
 
-                    worker = new ClientWorker(objIn, dataIn, this);
+                    journal = new XferJournal(Paths.get(this.cDir));
+                    worker = new ClientWorker(conn, this, journal);
                     new Thread(worker).start();
+                    resumeTransfers();
 
                     SwingUtilities.invokeLater(() -> {
                         setTitle("Chat Client - " + this.uname);
@@ -204,13 +217,6 @@ public class ClientGUI extends JFrame {
                     closeRes();
                 });
                 sockEx.printStackTrace();
-            } catch (ClassNotFoundException cnfEx) {
-                SwingUtilities.invokeLater(() -> {
-                    loginStatusLbl.setText("Error: Class not found (" + (cnfEx.getMessage() != null ? cnfEx.getMessage() : "N/A") + ").");
-                    loginBtn.setEnabled(true);
-                    closeRes();
-                });
-                cnfEx.printStackTrace();
             }
             catch (Exception ex) {
                 String errorMsg = ex.getMessage();
@@ -225,12 +231,62 @@ public class ClientGUI extends JFrame {
         }).start();
     }
 
+    // Called by the worker once its connection is gone. Logs in again with backoff and resumes
+    // what the journal says was cut off; a refused login is retried too, since the server may
+    // not have noticed the old session is gone yet. Gives up to the login screen.
+    void reconnect() {
+        appendChat("[System] Reconnecting...\n");
+        long backoff = 500;
+        for (int i = 0; i < RECONNECT_TRIES; i++) {
+            try {
+                Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff / 2));
+            } catch (InterruptedException e) {
+                break;
+            }
+            backoff = Math.min(MAX_BACKOFF_MS, backoff * 2);
+            MsgConn next = null;
+            try {
+                next = MsgConn.connect(S_ADDR, S_PORT);
+                Message resp = next.login(uname, pass);
+                if (resp.type == Message.LOGIN_SUCCESS) {
+                    resumeOn(next);
+                    return;
+                }
+                appendChat("[System] Login after reconnect failed: " + resp.content + "\n");
+            } catch (IOException e) {
+                appendChat("[System] Reconnect failed: " + e.getMessage() + "\n");
+            }
+            try { if (next != null) next.close(); } catch (IOException ignored) {}
+        }
+        closeRes();
+        SwingUtilities.invokeLater(() -> {
+            loginStatusLbl.setText("Lost the connection to the server; please log in again.");
+            cardLyt.show(mainPnl, "Login");
+        });
+    }
+
+    private void resumeOn(MsgConn next) {
+        conn = next;
+        worker = new ClientWorker(next, this, journal);
+        new Thread(worker).start();
+        appendChat("[System] Reconnected to server as " + uname + ".\n");
+        SwingUtilities.invokeLater(() -> setTitle("Chat Client - " + uname));
+        try {
+            resumeTransfers();
+        } catch (IOException e) {
+            appendChat("[System] Error resuming transfers: " + e.getMessage() + "\n");
+        }
+    }
+
     private void sendMsg() {
         String txt = msgFld.getText().trim();
-        if (!txt.isEmpty() && objOut != null) {
+        if (!txt.isEmpty() && conn != null) {
             try {
-                objOut.writeObject(new Message(Message.CHAT_MESSAGE, uname, txt));
-                objOut.flush();
+                if (txt.startsWith("/msg ")) {
+                    sendDirectMsg(txt.substring("/msg ".length()).trim());
+                    return;
+                }
+                conn.send(new Message(Message.CHAT_MESSAGE, uname, txt));
                 msgFld.setText("");
             } catch (IOException e) {
                 appendChat("Error sending message: " + e.getMessage() + "\n");
@@ -238,6 +294,34 @@ public class ClientGUI extends JFrame {
         }
     }
 
+    // "/msg <user> <text>" in the message box; double-clicking a user fills in the start.
+    private void sendDirectMsg(String args) throws IOException {
+        String[] parts = args.split("\\s+", 2);
+        if (parts.length < 2 || parts[1].isEmpty()) {
+            appendChat("[System] Usage: /msg <user> <text>\n");
+            return;
+        }
+        Message dm = new Message(Message.DIRECT_MESSAGE, uname, parts[1]);
+        dm.payload = parts[0];
+        conn.send(dm);
+        appendChat("[DM to " + parts[0] + "] " + parts[1] + "\n");
+        msgFld.setText("");
+    }
+
+    private void doChangeRoom() {
+        String room = JOptionPane.showInputDialog(this, "Room to join (leave empty for the lobby):", "Change Room", JOptionPane.PLAIN_MESSAGE);
+        if (room == null || conn == null) return;
+        try {
+            conn.send(new Message(Message.ROOM_JOIN, uname, room.trim().isEmpty() ? "lobby" : room.trim()));
+        } catch (IOException e) {
+            appendChat("[System] Error changing room: " + e.getMessage() + "\n");
+        }
+    }
+
+    public void setRoom(String room) {
+        setTitle("Chat Client - " + uname + " #" + room);
+    }
+
     private void doUpload() {
         JFileChooser fc = new JFileChooser(cDir);
         fc.setDialogTitle("Select File to Upload");
@@ -248,17 +332,24 @@ public class ClientGUI extends JFrame {
                 new Thread(() -> {
                     try {
                         appendChat("[System] Requesting to upload " + selFile.getName() + "...\n");
-                        objOut.writeObject(new Message(Message.FILE_UPLOAD_REQUEST_METADATA, uname, selFile.getName(), selFile.length()));
-                        objOut.flush();
-
-                        try (InputStream fIs = Files.newInputStream(selFile.toPath())) {
-                            appendChat("[System] Sending file bytes for " + selFile.getName() + "...\n");
-                            byte[] buf = new byte[8192];
-                            int bytesRead;
-                            while ((bytesRead = fIs.read(buf)) != -1) {
-                                dataOut.write(buf, 0, bytesRead);
+                        if (conn.getChunk() > 0) {
+                            startUpload(selFile.toPath());
+                            return;
+                        }
+                        DataOutputStream dataOut = conn.getDataOut();
+                        // Hold the stream so chat frames cannot interleave with the raw file bytes.
+                        synchronized (dataOut) {
+                            conn.send(new Message(Message.FILE_UPLOAD_REQUEST_METADATA, uname, selFile.getName(), selFile.length()));
+
+                            try (InputStream fIs = Files.newInputStream(selFile.toPath())) {
+                                appendChat("[System] Sending file bytes for " + selFile.getName() + "...\n");
+                                byte[] buf = new byte[8192];
+                                int bytesRead;
+                                while ((bytesRead = fIs.read(buf)) != -1) {
+                                    dataOut.write(buf, 0, bytesRead);
+                                }
+                                dataOut.flush();
                             }
-                            dataOut.flush();
                         }
                         appendChat("[System] File " + selFile.getName() + " bytes sent. Waiting for confirmation...\n");
                     } catch (IOException ex) {
@@ -271,12 +362,41 @@ public class ClientGUI extends JFrame {
         }
     }
 
+    // Runs on a background thread. An upload cut off by a dropped connection stays in the journal
+    // and resumes on the next login.
+    private void startUpload(Path file) {
+        MsgConn c = conn;
+        journal.uploadStarted(file);
+        try {
+            c.sendChunks(uname, file);
+            appendChat("[System] File " + file.getFileName() + " sent. Waiting for confirmation...\n");
+        } catch (IOException ex) {
+            if (c.isOpen()) journal.uploadDone(file);
+            appendChat("[System] Error uploading file " + file.getFileName() + ": " + ex.getMessage() + "\n");
+        }
+    }
+
+    private void resumeTransfers() throws IOException {
+        if (conn.getChunk() <= 0) return;
+        for (Path file : journal.uploads()) {
+            appendChat("[System] Resuming upload of " + file.getFileName() + "...\n");
+            new Thread(() -> startUpload(file)).start();
+        }
+        for (Message req : journal.resumeRequests(uname)) {
+            appendChat("[System] Resuming download of " + req.content + "...\n");
+            conn.send(req);
+        }
+    }
+
     private void doDownload() {
         try {
-            if (objOut != null) {
+            if (conn != null) {
+                String prefix = JOptionPane.showInputDialog(this, "Only list files starting with (leave empty for all):", "Server Files", JOptionPane.PLAIN_MESSAGE);
+                if (prefix == null) return;
+                prefix = prefix.trim();
+                if (worker != null) worker.setListQuery(uname, prefix);
                 appendChat("[System] Requesting file list from server...\n");
-                objOut.writeObject(new Message(Message.FILE_LIST_REQUEST, uname, ""));
-                objOut.flush();
+                conn.send(FileList.request(uname, prefix, null, FileList.MAX_PAGE));
             }
         } catch (IOException e) {
             appendChat("[System] Error requesting file list: " + e.getMessage() + "\n");
@@ -294,14 +414,15 @@ public class ClientGUI extends JFrame {
             new Thread(() -> {
                 try {
                     appendChat("[System] Requesting to download: " + fname + " to " + saveFile.getName() + "\n");
-                    objOut.writeObject(new Message(Message.FILE_DOWNLOAD_REQUEST, uname, fname));
-                    objOut.flush();
+                    // Set before sending: chunked replies are handled as soon as they arrive.
                     if(worker != null) {
-                        // Worker needs to know the expected file size from FILE_DOWNLOAD_INFO_AND_START
-                        // This part requires ClientWorker to store the size when INFO_AND_START is received.
-                        // For now, we pass the path and original name. Worker will use its stored size.
                         worker.setDlFile(saveFile.toPath(), fname);
                     }
+                    if (conn.getChunk() > 0) {
+                        conn.send(journal.downloadRequest(uname, fname, saveFile.toPath()));
+                    } else {
+                        conn.send(new Message(Message.FILE_DOWNLOAD_REQUEST, uname, fname));
+                    }
 
                 } catch (IOException ex) {
                     appendChat("[System] Error initiating download for " + fname + ": " + ex.getMessage() + "\n");
@@ -328,30 +449,45 @@ public class ClientGUI extends JFrame {
         });
     }
 
+    // The server's lists are sorted, so a joining user is inserted in place.
+    public void addUser(String user) {
+        SwingUtilities.invokeLater(() -> {
+            int lo = 0, hi = userLstMdl.size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                int cmp = userLstMdl.get(mid).compareTo(user);
+                if (cmp == 0) return;
+                if (cmp < 0) lo = mid + 1;
+                else hi = mid;
+            }
+            userLstMdl.add(lo, user);
+        });
+    }
+
+    public void removeUser(String user) {
+        SwingUtilities.invokeLater(() -> userLstMdl.removeElement(user));
+    }
+
     private void doLogoutOrExit() {
-        if (objOut != null && uname != null) { // Check uname to ensure we were logged in
+        if (conn != null && uname != null) { // Check uname to ensure we were logged in
             try {
-                objOut.writeObject(new Message(Message.CLIENT_DISCONNECT, uname, "User logging out."));
-                objOut.flush();
+                conn.send(new Message(Message.CLIENT_DISCONNECT, uname, "User logging out."));
             } catch (IOException e) {
                 System.err.println("Error sending disconnect message: " + e.getMessage());
             }
         }
-        closeRes();
+        // Stopped first, so the worker does not take the closed socket for a lost connection.
         if (worker != null) {
             worker.stopRun();
         }
+        closeRes();
         dispose();
         System.exit(0);
     }
 
     private void closeRes() {
-        try { if (objIn != null) objIn.close(); } catch (IOException e) { /* e.printStackTrace(); */ }
-        try { if (objOut != null) objOut.close(); } catch (IOException e) { /* e.printStackTrace(); */ }
-        try { if (dataIn != null) dataIn.close(); } catch (IOException e) { /* e.printStackTrace(); */ }
-        try { if (dataOut != null) dataOut.close(); } catch (IOException e) { /* e.printStackTrace(); */ }
-        try { if (sock != null && !sock.isClosed()) sock.close(); } catch (IOException e) { /* e.printStackTrace(); */ }
-        objOut = null; objIn = null; dataOut = null; dataIn = null; sock = null;
+        try { if (conn != null) conn.close(); } catch (IOException e) { /* e.printStackTrace(); */ }
+        conn = null;
     }
 
     public static void main(String[] args) {
@@ -1,27 +1,42 @@
 package ClientGUI;
 
+import Shared.Caps;
+import Shared.FileList;
 import Shared.Message;
+import Shared.MsgConn;
+import Shared.XferJournal;
 import javax.swing.*;
 import java.io.*;
 import java.net.SocketException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 
 public class ClientWorker implements Runnable {
-    private ObjectInputStream objIn;
+    private MsgConn conn;
     private DataInputStream dataIn;
     private ClientGUI gui;
     private volatile boolean running = true;
 
-    private Path dlPath;
-    private String dlName;
+    private volatile Path dlPath;
+    private volatile String dlName;
     private long dlSize = -1;
+    private final XferJournal journal;
+    // Version of the user list shown, or -1 until the first snapshot arrives.
+    private long presenceVer = -1;
+    // Paged file listing being gathered before the picker is shown.
+    private static final int LIST_CAP = 5000;
+    private volatile String listUser;
+    private volatile String listPrefix = "";
+    private final List<String> listing = new ArrayList<>();
 
 
-    public ClientWorker(ObjectInputStream objIn, DataInputStream dataIn, ClientGUI gui) {
-        this.objIn = objIn;
-        this.dataIn = dataIn;
+    public ClientWorker(MsgConn conn, ClientGUI gui, XferJournal journal) {
+        this.conn = conn;
+        this.journal = journal;
+        this.dataIn = conn.getDataIn();
         this.gui = gui;
     }
 
@@ -34,6 +49,11 @@ public class ClientWorker implements Runnable {
         this.dlName = name;
     }
 
+    public void setListQuery(String user, String prefix) {
+        this.listUser = user;
+        this.listPrefix = prefix;
+    }
+
     public void setDlDetails(Path path, String name, long size) {
         this.dlPath = path;
         this.dlName = name;
@@ -41,11 +61,12 @@ public class ClientWorker implements Runnable {
     }
 
 
+    // The journal is closed before the GUI reconnects, so no download stays open on this connection.
     @Override
     public void run() {
         try {
             while (running) {
-                Message srvMsg = (Message) objIn.readObject();
+                Message srvMsg = conn.read();
                 if (!running) break;
 
                 procSrvMsg(srvMsg);
@@ -54,30 +75,42 @@ public class ClientWorker implements Runnable {
             if (running) gui.appendChat("[System] Connection to server lost: " + e.getMessage() + "\n");
         } catch (EOFException e) {
             if (running) gui.appendChat("[System] Server closed the connection.\n");
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             if (running) gui.appendChat("[System] Error receiving message: " + e.getMessage() + "\n");
             e.printStackTrace();
         } finally {
+            journal.close();
             gui.appendChat("[System] Disconnected from server.\n");
         }
+        if (running) gui.reconnect();
     }
 
     private void procSrvMsg(Message msg) {
+        // Chunked transfers touch files, so they are handled here rather than on the EDT.
+        if (procXferMsg(msg) || procPresence(msg) || procFilePage(msg)) return;
         SwingUtilities.invokeLater(() -> {
             switch (msg.type) {
                 case Message.CHAT_MESSAGE:
                     gui.appendChat(msg.sender + ": " + msg.content + "\n");
                     break;
+                case Message.DIRECT_MESSAGE:
+                    gui.appendChat("[DM] " + msg.sender + ": " + msg.content + "\n");
+                    break;
+                case Message.ROOM_JOIN:
+                    gui.setRoom(msg.content);
+                    gui.appendChat("[System] You are now in #" + msg.content + ".\n");
+                    break;
+                case Message.CHAT_HISTORY:
+                    if (!(msg.payload instanceof String[])) break;
+                    String[] lines = (String[]) msg.payload;
+                    for (int i = 0; i + 2 < lines.length; i += 3) gui.appendChat(lines[i] + ": " + lines[i + 1] + "\n");
+                    gui.appendChat("[System] ^ earlier messages\n");
+                    break;
                 case Message.USER_JOINED_NOTIFICATION:
                 case Message.USER_LEFT_NOTIFICATION:
                 case Message.GENERAL_SERVER_MESSAGE:
                     gui.appendChat("[System] " + msg.content + "\n");
                     break;
-                case Message.USER_LIST_UPDATE:
-                    if (msg.payload instanceof String[]) {
-                        gui.updateUserLst((String[]) msg.payload);
-                    }
-                    break;
                 case Message.FILE_UPLOAD_CONFIRMATION:
                 case Message.FILE_UPLOAD_READY_FOR_BYTES:
                     gui.appendChat("[Server] " + msg.content + "\n");
@@ -110,12 +143,126 @@ public class ClientWorker implements Runnable {
         });
     }
 
+    private boolean procXferMsg(Message msg) {
+        switch (msg.type) {
+            case Message.FILE_UPLOAD_READY_FOR_BYTES:
+                conn.uploadReady(msg);
+                return false;
+            case Message.FILE_UPLOAD_CONFIRMATION:
+                journal.uploadDone(conn.uploadConfirmed(msg));
+                return false;
+            case Message.FILE_DOWNLOAD_INFO_AND_START:
+                if (Caps.get(msg.payload, Caps.XFER) == null) return false;
+                Path target = dlPath != null ? dlPath : Path.of(msg.content);
+                dlPath = null; dlName = null;
+                if (XferJournal.isParallel(msg)) {
+                    startParallelDl(msg, target);
+                    return true;
+                }
+                long off = journal.staged(msg);
+                gui.appendChat("[Server] Downloading: " + msg.content + " (" + msg.fileSize + " bytes" + (off > 0 ? ", resuming at byte " + off : "") + ")\n");
+                try {
+                    Path done = journal.downloadStarted(msg, target);
+                    if (done != null) {
+                        gui.appendChat("[System] File " + msg.content + " downloaded successfully to " + done.getFileName() + ".\n");
+                    }
+                } catch (IOException e) {
+                    gui.appendChat("[System] Error downloading file " + msg.content + ": " + e.getMessage() + "\n");
+                }
+                return true;
+            case Message.FILE_CHUNK:
+                try {
+                    Path done = journal.chunk(msg);
+                    if (done != null) {
+                        gui.appendChat("[System] File " + done.getFileName() + " downloaded successfully.\n");
+                    }
+                } catch (IOException e) {
+                    gui.appendChat("[System] Error downloading file: " + e.getMessage() + "\n");
+                }
+                return true;
+            case Message.FILE_TRANSFER_ABORT:
+                conn.abortUpload(msg.content);
+                Path aborted = journal.aborted(msg.content);
+                if (aborted != null) {
+                    gui.appendChat("[Server] Download of " + aborted.getFileName() + " was aborted.\n");
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void startParallelDl(Message info, Path target) {
+        gui.appendChat("[Server] Downloading: " + info.content + " (" + info.fileSize + " bytes over " + Caps.getInt(info.payload, Caps.STREAMS, 1) + " streams)\n");
+        Thread t = new Thread(() -> {
+            try {
+                Path done = journal.fetchRanges(conn, info, target);
+                gui.appendChat("[System] File " + info.content + " downloaded successfully to " + done.getFileName() + ".\n");
+            } catch (IOException e) {
+                gui.appendChat("[System] Error downloading file " + info.content + ": " + e.getMessage() + "\n");
+            }
+        }, "download-" + info.content);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Deltas are applied in version order. Anything that arrives before the first snapshot is
+    // already in it; a skipped version means the list can't be trusted, so ask for a new one.
+    private boolean procPresence(Message msg) {
+        if (msg.type == Message.USER_LIST_UPDATE) {
+            if (msg.payload instanceof String[]) {
+                presenceVer = msg.fileSize;
+                gui.updateUserLst((String[]) msg.payload);
+            }
+            return true;
+        }
+        if (msg.type != Message.USER_PRESENCE) return false;
+        if (presenceVer < 0 || msg.fileSize <= presenceVer) return true;
+        if (msg.fileSize != presenceVer + 1) {
+            presenceVer = -1;
+            try {
+                conn.send(new Message(Message.USER_LIST_UPDATE, null, (String) null));
+            } catch (IOException e) {
+                gui.appendChat("[System] Could not refresh the user list: " + e.getMessage() + "\n");
+            }
+            return true;
+        }
+        presenceVer = msg.fileSize;
+        if (Message.JOINED.equals(msg.payload)) gui.addUser(msg.content);
+        else gui.removeUser(msg.content);
+        return true;
+    }
+
+    // Structured listings come a page at a time; the next page is asked for until the last one.
+    private boolean procFilePage(Message msg) {
+        if (msg.type != Message.FILE_LIST_RESPONSE || !(msg.payload instanceof String[])) return false;
+        for (FileList.Entry e : FileList.entries(msg)) listing.add(e.name);
+        String next = FileList.next(msg);
+        if (next != null && listing.size() < LIST_CAP) {
+            try {
+                conn.send(FileList.request(listUser, listPrefix, next, FileList.MAX_PAGE));
+                return true;
+            } catch (IOException e) {
+                gui.appendChat("[System] Error requesting more of the file list: " + e.getMessage() + "\n");
+            }
+        } else if (next != null) {
+            gui.appendChat("[System] Showing the first " + listing.size() + " files; use a name prefix to narrow the list.\n");
+        }
+        String[] files = listing.toArray(new String[0]);
+        listing.clear();
+        SwingUtilities.invokeLater(() -> pickFile(files));
+        return true;
+    }
+
     private void procFileListResp(String fListContent) {
         if (fListContent == null || fListContent.isEmpty()) {
             JOptionPane.showMessageDialog(gui, "No files available for download on the server.", "Server Files", JOptionPane.INFORMATION_MESSAGE);
             return;
         }
-        String[] files = fListContent.split(",");
+        pickFile(fListContent.split(","));
+    }
+
+    private void pickFile(String[] files) {
         if (files.length == 0) {
             JOptionPane.showMessageDialog(gui, "No files available for download on the server.", "Server Files", JOptionPane.INFORMATION_MESSAGE);
             return;
@@ -0,0 +1,155 @@
+package Load;
+
+import Shared.Caps;
+import Shared.ChunkIn;
+import Shared.Message;
+import Shared.MsgConn;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// One simulated client: a logged-in connection and the thread reading it. Chat lines from other
+// bots are timed on arrival; upload and download replies complete whatever transfer the bot's
+// worker is waiting on.
+final class Bot implements Runnable {
+    // Starts every timed chat line, followed by the nanoTime it was due and padding.
+    static final String MARK = "lg ";
+    private static final long XFER_WAIT_S = 120;
+
+    final int num;
+    final String uname;
+    final int room;
+    final MsgConn conn;
+    private final LoadStats stats;
+    private final ChunkIn parts = new ChunkIn();
+    private volatile boolean stopping;
+    private volatile CompletableFuture<Long> upload;
+    private volatile CompletableFuture<Long> download;
+    private volatile Path downloadTo;
+
+    Bot(int num, String uname, int room, MsgConn conn, LoadStats stats) {
+        this.num = num;
+        this.uname = uname;
+        this.room = room;
+        this.conn = conn;
+        this.stats = stats;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) handle(conn.read());
+        } catch (IOException e) {
+            if (!stopping) {
+                stats.disconnects.increment();
+                System.err.println(uname + " lost its connection: " + e.getMessage());
+            }
+        } finally {
+            fail(upload, "connection closed");
+            fail(download, "connection closed");
+            parts.closeAll();
+        }
+    }
+
+    private void handle(Message msg) throws IOException {
+        switch (msg.type) {
+            case Message.CHAT_MESSAGE:
+                if (msg.content != null && msg.content.startsWith(MARK)) {
+                    int end = msg.content.indexOf(' ', MARK.length());
+                    long due = Long.parseLong(msg.content.substring(MARK.length(), end < 0 ? msg.content.length() : end));
+                    stats.latency.record(System.nanoTime() - due);
+                    stats.delivered.increment();
+                }
+                break;
+            case Message.FILE_UPLOAD_READY_FOR_BYTES:
+                conn.uploadReady(msg);
+                break;
+            case Message.FILE_UPLOAD_CONFIRMATION:
+                conn.uploadConfirmed(msg);
+                CompletableFuture<Long> up = upload;
+                if (up != null) {
+                    if (msg.content != null && msg.content.contains("successfully")) up.complete(0L);
+                    else up.completeExceptionally(new IOException(msg.content));
+                }
+                break;
+            case Message.FILE_TRANSFER_ABORT:
+                conn.abortUpload(msg.content);
+                if (parts.abort(msg.content) != null) fail(download, "server aborted the download");
+                break;
+            case Message.FILE_DOWNLOAD_INFO_AND_START: {
+                String id = Caps.get(msg.payload, Caps.XFER);
+                if (id == null || downloadTo == null) {
+                    fail(download, "server did not offer a chunked download");
+                    break;
+                }
+                ChunkIn.Part done = parts.open(id, downloadTo, msg.fileSize, 0, "1".equals(Caps.get(msg.payload, Caps.ZIP)));
+                if (done != null) complete(done);
+                break;
+            }
+            case Message.FILE_CHUNK: {
+                ChunkIn.Part done = parts.write(msg.content, msg.payload instanceof byte[] ? (byte[]) msg.payload : null);
+                if (done != null) complete(done);
+                break;
+            }
+            case Message.FILE_DOWNLOAD_ERROR:
+                fail(download, msg.content);
+                break;
+            default:
+                // History, user lists, presence and notices are not measured.
+        }
+    }
+
+    void chat(long due, String pad) throws IOException {
+        conn.send(new Message(Message.CHAT_MESSAGE, uname, MARK + due + pad));
+    }
+
+    // Blocks until the server confirms the upload.
+    void upload(Path file) throws IOException {
+        CompletableFuture<Long> f = new CompletableFuture<>();
+        upload = f;
+        conn.sendChunks(uname, file);
+        await(f, "upload");
+    }
+
+    // Blocks until the whole file has landed in to; returns its size.
+    long download(String name, Path to) throws IOException {
+        CompletableFuture<Long> f = new CompletableFuture<>();
+        downloadTo = to;
+        download = f;
+        conn.send(new Message(Message.FILE_DOWNLOAD_REQUEST, uname, name));
+        return await(f, "download");
+    }
+
+    private void complete(ChunkIn.Part done) {
+        CompletableFuture<Long> f = download;
+        if (f != null) f.complete(done.size);
+    }
+
+    private static void fail(CompletableFuture<Long> f, String why) {
+        if (f != null) f.completeExceptionally(new IOException(why));
+    }
+
+    private static long await(CompletableFuture<Long> f, String what) throws IOException {
+        try {
+            return f.get(XFER_WAIT_S, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            throw new IOException(what + " failed: " + e.getCause().getMessage(), e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException(what + " timed out");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(what + " interrupted");
+        }
+    }
+
+    void close() {
+        stopping = true;
+        try {
+            conn.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package Load;
+
+class LoadConfig {
+    String host = "localhost";
+    int port = 12345;
+    int clients = 5;
+    // Username pattern, formatted with the client number from 1; all share one password.
+    String user = "user%d";
+    String pass = "1234";
+    // Clients are spread round robin over this many rooms, the first being the lobby.
+    int rooms = 1;
+    // Chat lines per second across all clients, and the size of each line.
+    double rate = 100;
+    int bytes = 64;
+    int seconds = 30;
+    // The first uploaders clients upload fresh files back to back; the next downloaders fetch one
+    // shared file over and over. Both keep chatting.
+    int uploaders = 0;
+    int downloaders = 0;
+    int fileKb = 1024;
+    int senders = 4;
+    int connectors = 32;
+    int reportSeconds = 5;
+    // If set, write the users file for the server's --users and exit.
+    String mkUsers = "";
+
+    // Accepts --key=value arguments, e.g. --clients=1000 --user=load%d --rate=5000 --rooms=10 --uploaders=4 --downloaders=4
+    static LoadConfig parse(String[] args) {
+        LoadConfig cfg = new LoadConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --key=value but got: " + arg);
+            }
+            cfg.set(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        if (cfg.uploaders + cfg.downloaders > cfg.clients) {
+            throw new IllegalArgumentException("--uploaders plus --downloaders cannot exceed --clients.");
+        }
+        return cfg;
+    }
+
+    private void set(String key, String val) {
+        switch (key) {
+            case "host": host = val; break;
+            case "port": port = Integer.parseInt(val); break;
+            case "clients": clients = Math.max(1, Integer.parseInt(val)); break;
+            case "user": user = val; break;
+            case "pass": pass = val; break;
+            case "rooms": rooms = Math.max(1, Integer.parseInt(val)); break;
+            case "rate": rate = Math.max(0, Double.parseDouble(val)); break;
+            case "bytes": bytes = Math.max(0, Integer.parseInt(val)); break;
+            case "seconds": seconds = Math.max(1, Integer.parseInt(val)); break;
+            case "uploaders": uploaders = Math.max(0, Integer.parseInt(val)); break;
+            case "downloaders": downloaders = Math.max(0, Integer.parseInt(val)); break;
+            case "filekb": fileKb = Math.max(1, Integer.parseInt(val)); break;
+            case "senders": senders = Math.max(1, Integer.parseInt(val)); break;
+            case "connectors": connectors = Math.max(1, Integer.parseInt(val)); break;
+            case "report": reportSeconds = Math.max(1, Integer.parseInt(val)); break;
+            case "mkusers": mkUsers = val; break;
+            default: throw new IllegalArgumentException("Unknown option: --" + key);
+        }
+    }
+
+    String uname(int i) {
+        return String.format(user, i);
+    }
+}
@@ -0,0 +1,311 @@
+package Load;
+
+import Shared.Histogram;
+import Shared.Message;
+import Shared.MsgConn;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Headless load generator: opens --clients protocol connections through Shared.MsgConn, logs
+// them in, spreads them over rooms, sends chat at a fixed total rate and keeps some of them
+// uploading and downloading files, then reports throughput, connect and login times, and chat
+// delivery latency. All bots live in this JVM, so a chat line carries the System.nanoTime() it
+// was due to go out at and each recipient times its arrival against that. Timing from the due
+// time rather than the actual send means a sender that falls behind shows up as latency.
+//
+// The server only knows user1..user5 unless started with --users; --mkusers=<file> writes a
+// matching users file for the configured --user pattern and --clients and exits.
+public class LoadGen {
+    private static final int SOCKET_TIMEOUT_MS = 10_000;
+    private static final long DRAIN_MS = 2000;
+    private static final int MAX_ERRORS_SHOWN = 10;
+
+    private final LoadConfig cfg;
+    private final LoadStats stats = new LoadStats();
+    private final List<Bot> bots = Collections.synchronizedList(new ArrayList<>());
+    private final int[] roomSize;
+    private volatile boolean running = true;
+    private int errorsShown;
+
+    LoadGen(LoadConfig cfg) {
+        this.cfg = cfg;
+        this.roomSize = new int[cfg.rooms];
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadConfig cfg = LoadConfig.parse(args);
+        if (!cfg.mkUsers.isEmpty()) {
+            writeUsers(cfg);
+            return;
+        }
+        new LoadGen(cfg).run();
+    }
+
+    private static void writeUsers(LoadConfig cfg) throws IOException {
+        List<String> lines = new ArrayList<>(cfg.clients);
+        for (int i = 1; i <= cfg.clients; i++) lines.add(cfg.uname(i) + ":" + cfg.pass);
+        Files.write(Paths.get(cfg.mkUsers), lines);
+        System.out.println("Wrote " + cfg.clients + " users to " + cfg.mkUsers + "; start the server with --users=" + cfg.mkUsers);
+    }
+
+    private void run() throws Exception {
+        Path dir = Files.createTempDirectory("loadgen-");
+        try {
+            connectAll();
+            if (bots.isEmpty()) {
+                System.err.println("No client could log in; nothing to measure.");
+                return;
+            }
+            bots.sort(Comparator.comparingInt(b -> b.num));
+            for (Bot b : bots) roomSize[b.room]++;
+            String seed = cfg.downloaders > 0 ? seed(dir) : null;
+
+            System.out.printf(Locale.ROOT, "Running %d s: %.0f lines/s over %d rooms, %d uploaders, %d downloaders...%n",
+                    cfg.seconds, cfg.rate, cfg.rooms, cfg.uploaders, cfg.downloaders);
+            long start = System.nanoTime();
+            long end = start + TimeUnit.SECONDS.toNanos(cfg.seconds);
+            List<Thread> workers = new ArrayList<>();
+            int senders = Math.min(cfg.senders, bots.size());
+            for (int k = 0; k < senders; k++) {
+                int slice = k;
+                workers.add(start("sender-" + k, () -> send(slice, senders, start, end)));
+            }
+            for (int i = 0; i < Math.min(cfg.uploaders, bots.size()); i++) {
+                Bot b = bots.get(i);
+                workers.add(start("upload-" + b.uname, () -> uploads(b, dir, end)));
+            }
+            for (int i = cfg.uploaders; seed != null && i < Math.min(cfg.uploaders + cfg.downloaders, bots.size()); i++) {
+                Bot b = bots.get(i);
+                workers.add(start("download-" + b.uname, () -> downloads(b, seed, dir, end)));
+            }
+            report(start, end);
+            for (Thread t : workers) t.join();
+            Thread.sleep(DRAIN_MS);
+            summary(System.nanoTime() - start);
+        } finally {
+            running = false;
+            for (Bot b : bots) b.close();
+            try (var files = Files.list(dir)) {
+                files.forEach(p -> p.toFile().delete());
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    // --- setup ---
+
+    private void connectAll() throws InterruptedException {
+        System.out.println("Connecting " + cfg.clients + " clients to " + cfg.host + ":" + cfg.port + "...");
+        long t0 = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(cfg.connectors);
+        for (int i = 1; i <= cfg.clients; i++) {
+            int num = i;
+            pool.execute(() -> connect(num));
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.DAYS);
+        System.out.printf(Locale.ROOT, "%d of %d logged in after %.1f s.%n", bots.size(), cfg.clients, (System.nanoTime() - t0) / 1e9);
+    }
+
+    private void connect(int num) {
+        String uname = cfg.uname(num);
+        long t0 = System.nanoTime();
+        MsgConn conn;
+        try {
+            conn = MsgConn.connect(cfg.host, cfg.port);
+        } catch (IOException e) {
+            stats.connectFailures.increment();
+            error("Could not connect " + uname + ": " + e.getMessage());
+            return;
+        }
+        long t1 = System.nanoTime();
+        stats.connect.record(t1 - t0);
+        try {
+            conn.getSocket().setSoTimeout(SOCKET_TIMEOUT_MS);
+            Message resp = conn.login(uname, cfg.pass);
+            if (resp.type != Message.LOGIN_SUCCESS) throw new IOException(resp.content);
+            stats.login.record(System.nanoTime() - t1);
+            conn.getSocket().setSoTimeout(0);
+            int room = (num - 1) % cfg.rooms;
+            if (room > 0) conn.send(new Message(Message.ROOM_JOIN, uname, "load-" + room));
+            Bot bot = new Bot(num, uname, room, conn, stats);
+            start("reader-" + uname, bot);
+            bots.add(bot);
+        } catch (IOException e) {
+            stats.loginFailures.increment();
+            error("Login failed for " + uname + ": " + e.getMessage());
+            try { conn.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // The file every downloader fetches, uploaded once by the first bot.
+    private String seed(Path dir) throws IOException {
+        Path file = dir.resolve("loadgen-seed-" + cfg.fileKb + "k.bin");
+        fill(file, 0);
+        bots.get(0).upload(file);
+        System.out.println("Uploaded " + file.getFileName() + " for the downloaders.");
+        return file.getFileName().toString();
+    }
+
+    // Random bytes, stamped with round so every upload is new content the server cannot skip.
+    private void fill(Path file, long round) throws IOException {
+        byte[] data = new byte[cfg.fileKb * 1024];
+        new Random(file.hashCode() * 31L + round).nextBytes(data);
+        ByteBuffer.wrap(data).putLong(0, round).putLong(8, System.nanoTime());
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining()) fc.write(buf);
+        }
+    }
+
+    // --- workers ---
+
+    // Sender k of n paces its share of the rate over bots k, k+n, ... Lines are stamped with the
+    // time they were due; if the sender falls behind it catches up without skipping any.
+    private void send(int k, int n, long start, long end) {
+        List<Bot> mine = new ArrayList<>();
+        for (int i = k; i < bots.size(); i += n) mine.add(bots.get(i));
+        double rate = cfg.rate / n;
+        if (rate <= 0 || mine.isEmpty()) return;
+        long interval = (long) (1e9 / rate);
+        String pad = " " + "x".repeat(Math.max(0, cfg.bytes - 24));
+        long due = start + (long) (interval * k / (double) n);
+        int next = 0;
+        while (running && due < end) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            Bot b = mine.get(next);
+            next = (next + 1) % mine.size();
+            try {
+                b.chat(due, pad);
+                stats.sent.increment();
+                stats.expected.add(roomSize[b.room] - 1);
+            } catch (IOException e) {
+                error("Chat from " + b.uname + " failed: " + e.getMessage());
+            }
+            due += interval;
+        }
+    }
+
+    private void uploads(Bot b, Path dir, long end) {
+        Path file = dir.resolve("loadgen-up-" + b.uname + ".bin");
+        for (long round = 1; running && System.nanoTime() < end; round++) {
+            try {
+                fill(file, round);
+                long t0 = System.nanoTime();
+                b.upload(file);
+                stats.uploadTime.record(System.nanoTime() - t0);
+                stats.uploads.increment();
+                stats.uploadBytes.add(Files.size(file));
+            } catch (IOException e) {
+                stats.uploadFailures.increment();
+                error("Upload from " + b.uname + " failed: " + e.getMessage());
+                if (!b.conn.isOpen()) return;
+            }
+        }
+    }
+
+    private void downloads(Bot b, String name, Path dir, long end) {
+        Path to = dir.resolve("loadgen-dl-" + b.uname + ".bin");
+        while (running && System.nanoTime() < end) {
+            try {
+                long t0 = System.nanoTime();
+                long size = b.download(name, to);
+                stats.downloadTime.record(System.nanoTime() - t0);
+                stats.downloads.increment();
+                stats.downloadBytes.add(size);
+            } catch (IOException e) {
+                stats.downloadFailures.increment();
+                error("Download by " + b.uname + " failed: " + e.getMessage());
+                if (!b.conn.isOpen()) return;
+            }
+        }
+    }
+
+    // --- reporting ---
+
+    private void report(long start, long end) throws InterruptedException {
+        long step = TimeUnit.SECONDS.toNanos(cfg.reportSeconds);
+        long last = start;
+        long sent = 0, delivered = 0, up = 0, down = 0;
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.max(1, TimeUnit.NANOSECONDS.toMillis(Math.min(step, end - System.nanoTime()))));
+            long now = System.nanoTime();
+            double secs = (now - last) / 1e9;
+            long s = stats.sent.sum(), d = stats.delivered.sum(), u = stats.uploadBytes.sum(), w = stats.downloadBytes.sum();
+            System.out.printf(Locale.ROOT, "[%4.0fs] sent %8.0f/s  delivered %9.0f/s  up %7.1f MB/s  down %7.1f MB/s  latency p50 %s p99 %s%n",
+                    (now - start) / 1e9, (s - sent) / secs, (d - delivered) / secs, mb(u - up) / secs, mb(w - down) / secs,
+                    ms(stats.latency.percentile(0.5)), ms(stats.latency.percentile(0.99)));
+            sent = s;
+            delivered = d;
+            up = u;
+            down = w;
+            last = now;
+        }
+    }
+
+    private void summary(long nanos) {
+        double secs = nanos / 1e9;
+        long expected = stats.expected.sum(), delivered = stats.delivered.sum();
+        System.out.println("------------------------------------------------------------");
+        System.out.printf(Locale.ROOT, "Clients:   %d logged in, %d connect and %d login failures, %d dropped during the run%n",
+                bots.size(), stats.connectFailures.sum(), stats.loginFailures.sum(), stats.disconnects.sum());
+        System.out.println("Connect:   " + times(stats.connect));
+        System.out.println("Login:     " + times(stats.login));
+        System.out.printf(Locale.ROOT, "Chat:      %d sent (%.1f/s, target %.1f/s), %d of %d deliveries (%.3f%% missing), %.1f/s%n",
+                stats.sent.sum(), stats.sent.sum() / (double) cfg.seconds, cfg.rate, delivered, expected,
+                expected > 0 ? 100.0 * (expected - delivered) / expected : 0.0, delivered / secs);
+        System.out.println("Latency:   " + times(stats.latency));
+        if (cfg.uploaders > 0) {
+            System.out.printf(Locale.ROOT, "Uploads:   %d done, %d failed, %.1f MB/s; each %s%n",
+                    stats.uploads.sum(), stats.uploadFailures.sum(), mb(stats.uploadBytes.sum()) / secs, times(stats.uploadTime));
+        }
+        if (cfg.downloaders > 0) {
+            System.out.printf(Locale.ROOT, "Downloads: %d done, %d failed, %.1f MB/s; each %s%n",
+                    stats.downloads.sum(), stats.downloadFailures.sum(), mb(stats.downloadBytes.sum()) / secs, times(stats.downloadTime));
+        }
+    }
+
+    private static String times(Histogram h) {
+        return "p50 " + ms(h.percentile(0.5)) + "  p99 " + ms(h.percentile(0.99)) + "  p999 " + ms(h.percentile(0.999))
+                + "  max " + ms(h.max()) + "  (n=" + h.count() + ")";
+    }
+
+    private static String ms(long nanos) {
+        return String.format(Locale.ROOT, "%.3fms", nanos / 1e6);
+    }
+
+    private static double mb(long bytes) {
+        return bytes / (1024.0 * 1024.0);
+    }
+
+    private synchronized void error(String msg) {
+        if (errorsShown++ < MAX_ERRORS_SHOWN) System.err.println(msg);
+        else if (errorsShown == MAX_ERRORS_SHOWN + 1) System.err.println("(further errors are counted, not shown)");
+    }
+
+    private static Thread start(String name, Runnable task) {
+        Thread t = new Thread(null, task, name, 256 * 1024);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+}
@@ -0,0 +1,29 @@
+package Load;
+
+import Shared.Histogram;
+import java.util.concurrent.atomic.LongAdder;
+
+// Everything the run measures. Times are recorded in nanoseconds.
+final class LoadStats {
+    final Histogram connect = new Histogram();
+    final Histogram login = new Histogram();
+    final LongAdder loginFailures = new LongAdder();
+    final LongAdder connectFailures = new LongAdder();
+
+    final LongAdder sent = new LongAdder();
+    // Deliveries the server owes for what was sent: the sender's room size less one per line.
+    final LongAdder expected = new LongAdder();
+    final LongAdder delivered = new LongAdder();
+    final Histogram latency = new Histogram();
+
+    final LongAdder uploads = new LongAdder();
+    final LongAdder uploadBytes = new LongAdder();
+    final LongAdder uploadFailures = new LongAdder();
+    final Histogram uploadTime = new Histogram();
+    final LongAdder downloads = new LongAdder();
+    final LongAdder downloadBytes = new LongAdder();
+    final LongAdder downloadFailures = new LongAdder();
+    final Histogram downloadTime = new Histogram();
+
+    final LongAdder disconnects = new LongAdder();
+}
@@ -0,0 +1,329 @@
+package Server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+// Uploaded files, stored once per SHA-256 under .blobs/ with an index mapping names to digests.
+// Plain files sitting directly in the root (put there before the store existed, or by hand) are
+// still listed and served as they are until an upload under the same name replaces them.
+// Listing never touches the disk: loose files are scanned once and then tracked by a watcher.
+// The index is append-only: each link adds a line and the last line for a name wins. It is
+// rewritten only when opened with more stale lines than live ones.
+// Downloads pin the file they read: replacing or dropping a pinned file only unlinks it from the
+// index, and the bytes stay on disk until the last pin on them is closed.
+final class BlobStore {
+    static final String ALGO = "SHA-256";
+    // First line of the index since entries carry a modification time.
+    private static final String INDEX_V2 = "#v2";
+    private static final int MAX_NAME = 255;
+
+    static final class Entry {
+        final String name;
+        final String digest;   // null for a loose file
+        final long size;
+        final long mtime;      // millis; when the name was last linked, for stored files
+        final Path path;
+
+        Entry(String name, String digest, long size, long mtime, Path path) {
+            this.name = name;
+            this.digest = digest;
+            this.size = size;
+            this.mtime = mtime;
+            this.path = path;
+        }
+    }
+
+    // One reader's hold on a file; closing it more than once is harmless.
+    final class Pin implements Closeable {
+        final Path path;
+        private boolean closed;
+
+        private Pin(Path path) {
+            this.path = path;
+        }
+
+        // Another pin on the same file, for a reader that outlives this one.
+        Pin again() {
+            return pin(path);
+        }
+
+        @Override
+        public void close() {
+            unpin(this);
+        }
+    }
+
+    private final Path root;
+    private final Path blobDir;
+    private final Path tmpDir;
+    private final Path indexPath;
+    // Every listed name, stored and loose; a stored entry wins over a loose file of that name.
+    private final NavigableMap<String, Entry> byName = new TreeMap<>();
+    private final Map<String, Integer> refs = new HashMap<>();
+    // Open pins by file, and the pinned files no name refers to any more.
+    private final Map<Path, Integer> pins = new HashMap<>();
+    private final Set<Path> doomed = new HashSet<>();
+
+    BlobStore(Path root) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.blobDir = this.root.resolve(".blobs");
+        this.tmpDir = blobDir.resolve("tmp");
+        this.indexPath = blobDir.resolve("index");
+        Files.createDirectories(tmpDir);
+        int stale = 0;
+        boolean v2 = false;
+        if (Files.exists(indexPath)) {
+            List<String> lines = Files.readAllLines(indexPath, StandardCharsets.UTF_8);
+            v2 = !lines.isEmpty() && lines.get(0).equals(INDEX_V2);
+            for (String line : v2 ? lines.subList(1, lines.size()) : lines) {
+                String[] f = line.split("\t", v2 ? 4 : 3);
+                Entry e = f.length < (v2 ? 4 : 3) ? null : parseEntry(f, v2);
+                if (e == null || byName.put(e.name, e) != null) stale++;
+            }
+        }
+        for (Entry e : byName.values()) refs.merge(e.digest, 1, Integer::sum);
+        if (!v2 || stale > byName.size()) saveIndex();
+        scanLoose();
+    }
+
+    // One index line, or null if it is damaged or its blob is gone.
+    private Entry parseEntry(String[] f, boolean v2) throws IOException {
+        String name = v2 ? f[3] : f[2];
+        if (!validName(name) || f[0].length() < 2 || !Files.exists(blobPath(f[0]))) return null;
+        try {
+            long mtime = v2 ? Long.parseLong(f[2]) : Files.getLastModifiedTime(blobPath(f[0])).toMillis();
+            return new Entry(name, f[0], Long.parseLong(f[1]), mtime, blobPath(f[0]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // A name a client may store or fetch: one path component, no control characters (which
+    // includes the tab and newline the index is split on), and nothing starting with a dot,
+    // which covers "..", "." and the store's own directories.
+    static boolean validName(String name) {
+        if (name == null || name.isEmpty() || name.length() > MAX_NAME || name.charAt(0) == '.') return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < ' ' || c == 0x7f || c == '/' || c == '\\' || c == ':') return false;
+        }
+        return true;
+    }
+
+    // Where a loose file of that name lives; refuses anything that would land outside the root.
+    private Path loosePath(String name) throws IOException {
+        if (!validName(name)) throw new IOException("Invalid file name: " + name);
+        Path p = root.resolve(name).normalize();
+        if (!p.startsWith(root) || !root.equals(p.getParent())) throw new IOException("Invalid file name: " + name);
+        return p;
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGO);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGO + " is not available", e);
+        }
+    }
+
+    static String hex(byte[] digest) {
+        return HexFormat.of().formatHex(digest);
+    }
+
+    // Scratch file on the same filesystem as the blobs, so put() can rename it into place.
+    Path tmpFile() throws IOException {
+        return Files.createTempFile(tmpDir, "up-", ".tmp");
+    }
+
+    synchronized List<String> names() {
+        return new ArrayList<>(byName.keySet());
+    }
+
+    // Up to limit entries whose names start with prefix, in name order, after the name after
+    // (exclusive) if given.
+    synchronized List<Entry> page(String prefix, String after, int limit) {
+        NavigableMap<String, Entry> tail = after != null && after.compareTo(prefix) >= 0
+                ? byName.tailMap(after, false) : byName.tailMap(prefix, true);
+        List<Entry> out = new ArrayList<>(Math.min(limit, 256));
+        for (Entry e : tail.values()) {
+            if (out.size() >= limit || !e.name.startsWith(prefix)) break;
+            out.add(e);
+        }
+        return out;
+    }
+
+    // Falls back to the disk for a loose file the watcher hasn't reported yet.
+    synchronized Entry get(String name) throws IOException {
+        if (!validName(name)) return null;
+        Entry e = byName.get(name);
+        if (e != null) return e;
+        Path loose = loosePath(name);
+        if (!Files.isRegularFile(loose)) return null;
+        return looseChanged(loose);
+    }
+
+    // Keeps loose files in the index current from a daemon thread. Uploads update it directly.
+    void watch() throws IOException {
+        WatchService ws = root.getFileSystem().newWatchService();
+        root.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        scanLoose();
+        Thread t = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = ws.take();
+                    for (WatchEvent<?> ev : key.pollEvents()) {
+                        if (ev.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            scanLoose();
+                        } else {
+                            looseChanged(root.resolve((Path) ev.context()));
+                        }
+                    }
+                    if (!key.reset()) {
+                        Log.warn(Log.Cat.STORE, "file index lost its watch; listings may go stale", "dir", root);
+                        return;
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // shutting down
+            } catch (IOException e) {
+                Log.warn(Log.Cat.STORE, "file index watcher stopped", "error", e.getMessage());
+            }
+        }, "file-index");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private synchronized void scanLoose() throws IOException {
+        byName.values().removeIf(e -> e.digest == null);
+        try (Stream<Path> files = Files.list(root)) {
+            for (Path p : (Iterable<Path>) files::iterator) looseChanged(p);
+        }
+    }
+
+    private synchronized Entry looseChanged(Path p) throws IOException {
+        String name = p.getFileName().toString();
+        if (!validName(name)) return null;
+        Entry cur = byName.get(name);
+        if (cur != null && cur.digest != null) return cur;
+        if (!Files.isRegularFile(p)) {
+            byName.remove(name);
+            return null;
+        }
+        Entry e;
+        try {
+            e = new Entry(name, null, Files.size(p), Files.getLastModifiedTime(p).toMillis(), p);
+        } catch (IOException gone) {
+            byName.remove(name);
+            return null;
+        }
+        byName.put(name, e);
+        return e;
+    }
+
+    // Links name to an existing blob so the upload can be skipped; null if we don't have it.
+    synchronized Entry linkExisting(String name, String digest, long size) throws IOException {
+        if (!validName(name) || digest == null || !refs.containsKey(digest)) return null;
+        Path blob = blobPath(digest);
+        if (!Files.exists(blob) || Files.size(blob) != size) return null;
+        return link(loosePath(name), name, digest, size);
+    }
+
+    // Moves a finished upload into the store, or drops it if that content is already there.
+    synchronized Entry put(String name, Path file, String digest, long size) throws IOException {
+        Path loose = loosePath(name);
+        Path blob = blobPath(digest);
+        if (Files.exists(blob)) {
+            Files.delete(file);
+            Log.info(Log.Cat.STORE, "upload deduplicated", "file", name, "sha256", digest);
+        } else {
+            Files.createDirectories(blob.getParent());
+            Files.move(file, blob, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return link(loose, name, digest, size);
+    }
+
+    private Entry link(Path loose, String name, String digest, long size) throws IOException {
+        Entry e = new Entry(name, digest, size, System.currentTimeMillis(), blobPath(digest));
+        Files.write(indexPath, List.of(line(e)), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        Entry old = byName.put(name, e);
+        refs.merge(digest, 1, Integer::sum);
+        doomed.remove(e.path);
+        if (old != null && old.digest != null) unref(old.digest);
+        drop(loose);
+        return e;
+    }
+
+    private void unref(String digest) throws IOException {
+        if (refs.merge(digest, -1, Integer::sum) > 0) return;
+        refs.remove(digest);
+        drop(blobPath(digest));
+    }
+
+    // Deletes a file nothing links to any more, or leaves that to the last unpin.
+    private void drop(Path p) throws IOException {
+        if (pins.containsKey(p)) {
+            doomed.add(p);
+        } else {
+            Files.deleteIfExists(p);
+        }
+    }
+
+    synchronized Pin pin(Path p) {
+        pins.merge(p, 1, Integer::sum);
+        return new Pin(p);
+    }
+
+    private synchronized void unpin(Pin pin) {
+        if (pin.closed) return;
+        pin.closed = true;
+        if (pins.merge(pin.path, -1, Integer::sum) > 0) return;
+        pins.remove(pin.path);
+        if (!doomed.remove(pin.path)) return;
+        try {
+            Files.deleteIfExists(pin.path);
+        } catch (IOException e) {
+            Log.warn(Log.Cat.STORE, "could not delete replaced file", "file", pin.path, "error", e.getMessage());
+        }
+    }
+
+    private Path blobPath(String digest) {
+        return blobDir.resolve(digest.substring(0, 2)).resolve(digest);
+    }
+
+    private void saveIndex() throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add(INDEX_V2);
+        for (Entry e : byName.values()) {
+            if (e.digest != null) lines.add(line(e));
+        }
+        Path tmp = indexPath.resolveSibling("index.tmp");
+        Files.write(tmp, lines, StandardCharsets.UTF_8);
+        Files.move(tmp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String line(Entry e) {
+        return e.digest + "\t" + e.size + "\t" + e.mtime + "\t" + e.name;
+    }
+}
@@ -0,0 +1,421 @@
+package Server;
+
+import Shared.Message;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Every chat line, kept on disk in append-only segment files named after the first sequence
+// number they hold. append() only numbers a line and queues it; a writer thread copies lines into
+// the memory-mapped active segment, so a slow disk never holds up a broadcast. A segment is
+// rolled when full or old, and the oldest go once the log passes its size or age limit.
+//
+// Record: int len (whole record), int crc32 (of what follows), long seq, long millis,
+// short room length, room, short sender length, sender, then the text to the end, all UTF-8.
+// A zero len ends a segment; a bad crc ends it too, which is how a torn write is dropped.
+//
+// Each segment keeps, per room, where that room's records start, so a query reads only the
+// room's own records from a binary-searched starting point, and never more than MAX_SCAN in all.
+// Dropped segments are unmapped once no query is reading them.
+final class ChatLog implements AutoCloseable {
+    private static final String EXT = ".log";
+    private static final int HEAD = 4 + 4 + 8 + 8;
+    // Most records one query may read, whatever it asked for.
+    static final int MAX_SCAN = 10_000;
+    private static final int QUEUE = 64 * 1024;
+    private static final long FORCE_MS = 1000;
+
+    static final class Line {
+        final long seq;
+        final long time;
+        final String room;
+        final String sender;
+        final String text;
+
+        Line(long seq, long time, String room, String sender, String text) {
+            this.seq = seq;
+            this.time = time;
+            this.room = room;
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+
+    private final Path dir;   // null when the log is off; lines are still numbered
+    private final int segBytes;
+    private final long keepBytes;
+    private final long keepMs;
+    private final long rollMs;
+    private final BlockingQueue<Line> queue = new ArrayBlockingQueue<>(QUEUE);
+    // Oldest first; the last one is being written. Only the writer thread changes it after startup.
+    private final List<Segment> segs = new CopyOnWriteArrayList<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private long next;
+    private Thread writer;
+    // Not an interrupt: that would close a FileChannel a roll is opening and lose the batch.
+    private volatile boolean closing;
+
+    ChatLog(Path dir, int segBytes, long keepBytes, long keepMs, long rollMs) throws IOException {
+        this.dir = dir;
+        this.segBytes = segBytes;
+        this.keepBytes = keepBytes;
+        this.keepMs = keepMs;
+        this.rollMs = rollMs;
+        if (dir == null) return;
+        Files.createDirectories(dir);
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> list = Files.list(dir)) {
+            list.filter(p -> p.getFileName().toString().endsWith(EXT)).forEach(files::add);
+        }
+        files.sort(null);
+        for (Path p : files) {
+            long size = Files.size(p);
+            segs.add(new Segment(p, size > 0 ? (int) Math.min(Integer.MAX_VALUE, size) : segBytes));
+        }
+        if (segs.isEmpty()) segs.add(newSegment(0));
+        Segment last = segs.get(segs.size() - 1);
+        next = last.lastSeq >= 0 ? last.lastSeq + 1 : last.base;
+        Log.info(Log.Cat.STORE, "chat log opened", "dir", dir, "segments", segs.size(), "next", next);
+        writer = new Thread(this::writeLoop, "chat-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    static ChatLog off() {
+        try {
+            return new ChatLog(null, 0, 0, 0, 0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Never blocks: if the writer has fallen a whole queue behind, the line is numbered and
+    // delivered but not persisted.
+    synchronized long append(String room, String sender, String text, long time) {
+        long seq = next++;
+        if (dir != null && !closing && !queue.offer(new Line(seq, time, room, sender, text))) dropped.incrementAndGet();
+        return seq;
+    }
+
+    // Up to limit lines of room with seq >= from, oldest first.
+    List<Line> from(String room, long from, int limit) {
+        List<Line> out = new ArrayList<>();
+        List<Segment> all = new ArrayList<>(segs);
+        int i = 0;
+        while (i + 1 < all.size() && all.get(i + 1).base <= from) i++;
+        int[] budget = { Math.min(limit, MAX_SCAN) };
+        for (; i < all.size() && out.size() < limit && budget[0] > 0; i++) {
+            all.get(i).query(room, from, Long.MIN_VALUE, Long.MAX_VALUE, limit, out, budget);
+        }
+        return out;
+    }
+
+    // Up to limit lines of room stamped within [since, until], oldest first.
+    List<Line> between(String room, long since, long until, int limit) {
+        List<Line> out = new ArrayList<>();
+        int[] budget = { Math.min(limit, MAX_SCAN) };
+        for (Segment s : new ArrayList<>(segs)) {
+            if (out.size() >= limit || budget[0] <= 0) break;
+            if (s.lastSeq < 0 || s.lastTime < since) continue;
+            if (s.query(room, Long.MIN_VALUE, since, until, limit, out, budget)) break;
+        }
+        return out;
+    }
+
+    // Persists what is already queued, then unmaps every segment. Lines appended after this are
+    // still numbered but not kept, and queries find nothing.
+    @Override
+    public void close() {
+        if (writer == null) return;
+        closing = true;
+        // Wakes the writer; if the queue is full it finds the flag after this batch instead.
+        queue.offer(new Line(-1, 0, "", "", null));
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        for (Segment s : segs) s.retire();
+    }
+
+    // CHAT_HISTORY reply: triples as in the login replay, fileSize the seq to ask from next.
+    static Message reply(String room, List<Line> lines) {
+        String[] out = new String[3 * lines.size()];
+        for (int i = 0; i < lines.size(); i++) {
+            Line l = lines.get(i);
+            out[3 * i] = l.sender;
+            out[3 * i + 1] = l.text;
+            out[3 * i + 2] = Long.toString(l.time);
+        }
+        Message msg = new Message(Message.CHAT_HISTORY, "Server", (Object) out);
+        msg.content = room;
+        msg.fileSize = lines.isEmpty() ? -1 : lines.get(lines.size() - 1).seq + 1;
+        return msg;
+    }
+
+    private void writeLoop() {
+        List<Line> batch = new ArrayList<>(1024);
+        long lastForce = System.currentTimeMillis();
+        while (!closing || !queue.isEmpty()) {
+            try {
+                Line first = queue.poll(FORCE_MS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, 1023);
+                    for (Line l : batch) {
+                        if (l.seq >= 0) write(l);
+                    }
+                    batch.clear();
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastForce >= FORCE_MS) {
+                    lastForce = now;
+                    active().map.force();
+                    maintain(now);
+                    long lost = dropped.getAndSet(0);
+                    if (lost > 0) Log.warn(Log.Cat.STORE, "chat log fell behind; lines were not persisted", "lost", lost);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                Log.error(Log.Cat.STORE, "chat log write failed", "error", e.getMessage());
+                batch.clear();
+            }
+        }
+        try {
+            active().map.force();
+        } catch (RuntimeException e) {
+            Log.error(Log.Cat.STORE, "chat log write failed", "error", e.getMessage());
+        }
+    }
+
+    private Segment active() {
+        return segs.get(segs.size() - 1);
+    }
+
+    private void write(Line l) throws IOException {
+        byte[] room = l.room.getBytes(StandardCharsets.UTF_8);
+        byte[] sender = l.sender.getBytes(StandardCharsets.UTF_8);
+        byte[] text = l.text == null ? new byte[0] : l.text.getBytes(StandardCharsets.UTF_8);
+        int len = HEAD + 2 + room.length + 2 + sender.length + text.length;
+        if (len > segBytes || room.length > 0xFFFF || sender.length > 0xFFFF) {
+            Log.warn(Log.Cat.STORE, "chat line too large for the log; skipped", "seq", l.seq, "bytes", len);
+            return;
+        }
+        Segment s = active();
+        if (s.end + len > s.map.capacity()) s = roll(l.seq);
+        s.append(l, len, room, sender, text);
+    }
+
+    private Segment roll(long base) throws IOException {
+        Segment old = active();
+        old.map.force();
+        Segment s = newSegment(base);
+        segs.add(s);
+        return s;
+    }
+
+    private Segment newSegment(long base) throws IOException {
+        return new Segment(dir.resolve(String.format("%020d", base) + EXT), segBytes);
+    }
+
+    // Time-based roll, then retention. The active segment is never removed.
+    private void maintain(long now) throws IOException {
+        Segment cur = active();
+        if (cur.lastSeq >= 0 && now - cur.firstTime >= rollMs) roll(cur.lastSeq + 1);
+        long total = 0;
+        for (Segment s : segs) total += s.end;
+        while (segs.size() > 1) {
+            Segment oldest = segs.get(0);
+            if (total <= keepBytes && (oldest.lastSeq < 0 || now - oldest.lastTime <= keepMs)) break;
+            segs.remove(0);
+            total -= oldest.end;
+            oldest.retire();
+            Files.deleteIfExists(oldest.path);
+            Log.info(Log.Cat.STORE, "chat log dropped segment", "file", oldest.path.getFileName());
+        }
+    }
+
+    private static final class Segment {
+        final Path path;
+        final long base;
+        final MappedByteBuffer map;
+        // Bytes of complete records; written by the writer thread only, after the record itself.
+        volatile int end;
+        volatile long lastSeq = -1;
+        volatile long lastTime;
+        // First record's time, for rolling by age: a segment nobody has written to yet is not old.
+        private long firstTime = -1;
+        // Per room, where each of its records starts, in seq order. Arrays only ever grow and
+        // are appended to past what a reader copied, so a reader needs the lock only to copy.
+        private final Map<String, Rows> rooms = new HashMap<>();
+        // Queries reading the map now; once retired, the last one out unmaps it.
+        private int readers;
+        private boolean retired;
+
+        Segment(Path path, int size) throws IOException {
+            this.path = path;
+            this.base = Long.parseLong(path.getFileName().toString().replace(EXT, ""));
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                this.map = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            recover();
+        }
+
+        // Finds where the valid records stop, rebuilding the room index on the way.
+        private void recover() {
+            int pos = 0;
+            CRC32 crc = new CRC32();
+            ByteBuffer r = map.duplicate();
+            while (pos + HEAD <= map.capacity()) {
+                int len = map.getInt(pos);
+                if (len < HEAD + 4 || pos + len > map.capacity()) break;
+                crc.reset();
+                crc.update(map.duplicate().position(pos + 8).limit(pos + len));
+                if ((int) crc.getValue() != map.getInt(pos + 4)) break;
+                r.position(pos + HEAD);
+                indexed(str(r, r.getShort() & 0xFFFF), map.getLong(pos + 8), map.getLong(pos + 16), pos);
+                pos += len;
+            }
+            end = pos;
+        }
+
+        void append(Line l, int len, byte[] room, byte[] sender, byte[] text) {
+            int pos = end;
+            ByteBuffer w = map.duplicate();
+            w.position(pos + 8);
+            w.putLong(l.seq).putLong(l.time);
+            w.putShort((short) room.length).put(room);
+            w.putShort((short) sender.length).put(sender);
+            w.put(text);
+            CRC32 crc = new CRC32();
+            crc.update(map.duplicate().position(pos + 8).limit(pos + len));
+            map.putInt(pos + 4, (int) crc.getValue());
+            map.putInt(pos, len);
+            indexed(l.room, l.seq, l.time, pos);
+            end = pos + len;
+        }
+
+        private synchronized void indexed(String room, long seq, long time, int pos) {
+            rooms.computeIfAbsent(room, r -> new Rows()).add(pos);
+            if (firstTime < 0) firstTime = time;
+            lastTime = time;
+            lastSeq = seq;
+        }
+
+        // Collects room's records with seq >= fromSeq stamped within [since, until] until out
+        // holds limit lines; true once a record past until was seen. Each record read takes one
+        // from budget[0], and the scan stops when it runs out.
+        boolean query(String room, long fromSeq, long since, long until, int limit, List<Line> out, int[] budget) {
+            int[] pos;
+            int n;
+            synchronized (this) {
+                Rows rows = rooms.get(room);
+                if (rows == null || !acquire()) return false;
+                pos = rows.pos;
+                n = rows.n;
+            }
+            try {
+                ByteBuffer r = map.duplicate();
+                // Times are searched as if they never went backwards; a clock step can hide a
+                // few lines from a time query, never from a seq one.
+                int i = fromSeq > Long.MIN_VALUE ? firstAt(pos, n, 8, fromSeq) : firstAt(pos, n, 16, since);
+                for (; i < n && out.size() < limit && budget[0] > 0; i++) {
+                    budget[0]--;
+                    int p = pos[i];
+                    long time = r.getLong(p + 16);
+                    if (time > until) return true;
+                    if (time < since) continue;
+                    int len = r.getInt(p);
+                    r.position(p + HEAD);
+                    String rm = str(r, r.getShort() & 0xFFFF);
+                    String sender = str(r, r.getShort() & 0xFFFF);
+                    out.add(new Line(r.getLong(p + 8), time, rm, sender, str(r, p + len - r.position())));
+                }
+                return false;
+            } finally {
+                release();
+            }
+        }
+
+        // Index of the first of pos[0, n) whose long at offset off is >= key.
+        private int firstAt(int[] pos, int n, int off, long key) {
+            int lo = 0, hi = n;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (map.getLong(pos[mid] + off) < key) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        // Caller holds the lock.
+        private boolean acquire() {
+            if (retired) return false;
+            readers++;
+            return true;
+        }
+
+        private synchronized void release() {
+            if (--readers == 0 && retired) unmap(map);
+        }
+
+        // Dropped from the log: no new readers, and the mapping goes once the last one is done.
+        synchronized void retire() {
+            retired = true;
+            rooms.clear();
+            if (readers == 0) unmap(map);
+        }
+
+        private static String str(ByteBuffer r, int n) {
+            byte[] b = new byte[n];
+            r.get(b);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final class Rows {
+        int[] pos = new int[16];
+        int n;
+
+        void add(int p) {
+            if (n == pos.length) pos = Arrays.copyOf(pos, n * 2);
+            pos[n++] = p;
+        }
+    }
+
+    // Releases a mapping now instead of whenever the GC gets to it. There is no public API for
+    // this before JDK 19's MemorySegment, so it goes through Unsafe.invokeCleaner; if that is not
+    // reachable the mapping is simply left to the GC.
+    private static void unmap(MappedByteBuffer map) {
+        try {
+            Class<?> unsafe = Class.forName("sun.misc.Unsafe");
+            Field f = unsafe.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            Method clean = unsafe.getMethod("invokeCleaner", ByteBuffer.class);
+            clean.invoke(f.get(null), map);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            Log.debug(Log.Cat.STORE, "could not unmap a dropped chat log segment", "error", e);
+        }
+    }
+}
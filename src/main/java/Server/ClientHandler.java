@@ -1,104 +1,202 @@
 package Server;
 
+import Shared.Caps;
+import Shared.ChunkIn;
+import Shared.FileList;
 import Shared.Message;
+import Shared.MsgCodec;
+import Shared.Zip;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ClientHandler implements Runnable {
     private Socket sock;
-    private ObjectOutputStream objOut;
-    private ObjectInputStream objIn;
-    private DataOutputStream dataOut;
-    private DataInputStream dataIn;
-    private List<ClientHandler> clientsList;
+    private Conn conn;
+    private SessionRegistry sessions;
     private String uname;
-    private boolean loggedIn = false;
+    private volatile boolean loggedIn = false;
+    // Set once a FILE_RANGE with a valid token arrives instead of a login.
+    private volatile boolean dataConn = false;
+    private boolean cleanedUp = false;
+    private int chunk = 0;
+    private boolean zip = false;
+    private volatile boolean presenceDeltas = false;
+    private volatile boolean history = false;
+    private volatile Room room;
+    private volatile long loginAt;
+    // Seq of the last chat line in the latest history replay; live copies up to it are skipped.
+    private volatile long replayedTo = -1;
+    // Set when another cluster node opens its link here instead of a user logging in.
+    private volatile String peerNode;
+    private int dlSeq = 0;
+    // Written only by the thread reading this connection.
+    private volatile long msgsIn;
+    private final ChunkIn parts = new ChunkIn();
+    private final Map<String, Up> upsById = new ConcurrentHashMap<>();
 
     private static final String S_DIR = "resources/Server/";
+    // Smallest byte range worth its own data connection.
+    private static final long MIN_RANGE = 4L * 1024 * 1024;
+    private static final int MAX_HISTORY = 1000;
+    private static final int MAX_STATS_CONNS = 10_000;
 
-    public ClientHandler(Socket sock, List<ClientHandler> clientsList) {
+    // A chunked upload in progress: the name it will be stored under and the digest the
+    // client announced for it, if any.
+    private static final class Up {
+        final String fname;
+        final String digest;
+
+        Up(String fname, String digest) {
+            this.fname = fname;
+            this.digest = digest;
+        }
+    }
+
+    public ClientHandler(Socket sock, SessionRegistry sessions) {
         this.sock = sock;
-        this.clientsList = clientsList;
+        this.sessions = sessions;
+        opened();
+    }
+
+    ClientHandler(Conn conn, SessionRegistry sessions) {
+        this.conn = conn;
+        this.sessions = sessions;
+        opened();
+    }
+
+    private void opened() {
+        Metrics.connsOpen.increment();
+        Metrics.connsTotal.increment();
+        mkServerDir();
+    }
+
+    private void mkServerDir() {
         try {
-            this.objOut = new ObjectOutputStream(sock.getOutputStream());
-            this.objOut.flush();
-            this.objIn = new ObjectInputStream(sock.getInputStream());
-            this.dataOut = new DataOutputStream(sock.getOutputStream());
-            this.dataIn = new DataInputStream(sock.getInputStream());
             Files.createDirectories(Paths.get(S_DIR));
         } catch (IOException e) {
-            System.err.println("ClientHandler IO Exception during setup: " + e.getMessage());
-            closeConn();
+            Log.error(Log.Cat.STORE, "could not create the server directory", "dir", S_DIR, "error", e.getMessage());
         }
     }
 
     public String getUname() { return uname; }
     public boolean isLoggedIn() { return loggedIn; }
+    // Data connections have no session but stay up until the client has all its ranges.
+    boolean keepOpen() { return loggedIn || dataConn || peerNode != null; }
+    boolean wantsPresenceDeltas() { return presenceDeltas; }
+    boolean wantsHistory() { return history; }
+    long getLoginAt() { return loginAt; }
+    long getReplayedTo() { return replayedTo; }
+    void setReplayedTo(long seq) { replayedTo = seq; }
+    Room getRoom() { return room; }
+    void setRoom(Room room) { this.room = room; }
+    public long getQueuedCount() { return conn != null ? conn.outQueue().getQueued() : 0; }
+    public long getDroppedCount() { return conn != null ? conn.outQueue().getDropped() : 0; }
 
+    // Blocking engines only; an NIO connection pushes each decoded frame into recv() instead.
     @Override
     public void run() {
         try {
-            doLogin();
-            if (loggedIn) {
-                procCliMsgs();
+            SockConn in = new SockConn(sock);
+            conn = in;
+            doLogin(in);
+            if (keepOpen()) {
+                procCliMsgs(in);
             }
         } catch (SocketException e) {
-            System.out.println("Client " + getCliId() + " disconnected abruptly: " + e.getMessage());
+            Log.info(Log.Cat.CONN, "client disconnected abruptly", "client", getCliId(), "error", e.getMessage());
         } catch (EOFException e) {
-            System.out.println("Client " + getCliId() + " closed the connection (EOF in run).");
-        } catch (IOException | ClassNotFoundException e) {
+            Log.info(Log.Cat.CONN, "client closed the connection", "client", getCliId());
+        } catch (IOException e) {
             if (loggedIn) {
-                System.err.println("Error handling client " + uname + ": " + e.getMessage());
+                Log.warn(Log.Cat.CONN, "error handling client", "user", uname, "error", e.getMessage());
             } else {
-                System.err.println("Error with unauthenticated client " + getCliId() + ": " + e.getMessage());
+                Log.warn(Log.Cat.CONN, "error with unauthenticated client", "client", getCliId(), "error", e.getMessage());
             }
         } finally {
             cleanup();
         }
     }
 
-    private void doLogin() throws IOException, ClassNotFoundException {
-        if (sock.isClosed()) return;
+    private void doLogin(SockConn in) throws IOException {
+        if (!in.isOpen()) return;
 
         try {
-            Message loginMsg = (Message) objIn.readObject();
-            if (loginMsg.type == Message.LOGIN_REQUEST) {
-                procLoginReq(loginMsg);
-            } else {
-                sendMsgToCli(new Message(Message.LOGIN_FAILURE, "Server", "Invalid request type. Expected LOGIN_REQUEST."));
-            }
+            recv(in.read());
         } catch (EOFException e) {
-            System.out.println("Client " + getCliId() + " closed connection before sending login request.");
+            Log.info(Log.Cat.CONN, "client closed the connection before logging in", "client", getCliId());
+        }
+    }
+
+    private void procCliMsgs(SockConn in) throws IOException {
+        while (keepOpen() && in.isOpen()) {
+            recv(in.read());
         }
     }
 
-    private void procCliMsgs() throws IOException, ClassNotFoundException {
-        while (loggedIn && !sock.isClosed()) {
-            Message cliMsg = (Message) objIn.readObject();
-            handleMsg(cliMsg);
+    void recv(Message msg) throws IOException {
+        Metrics.msgIn(msg.type);
+        msgsIn++;
+        if (loggedIn) {
+            handleMsg(msg);
+        } else if (peerNode != null) {
+            Server.cluster.onPeer(peerNode, msg);
+        } else if (msg.type == Message.FILE_RANGE) {
+            procRangeReq(msg);
+        } else if (msg.type == Message.PEER && !dataConn) {
+            procPeerHello(msg);
+        } else if (msg.type == Message.LOGIN_REQUEST && !dataConn) {
+            procLoginReq(msg);
+        } else {
+            sendMsgToCli(new Message(Message.LOGIN_FAILURE, "Server", "Invalid request type. Expected LOGIN_REQUEST."));
         }
     }
 
     private String getCliId() {
-        return uname != null ? uname : sock.getInetAddress().toString();
+        if (uname != null) return uname;
+        return conn != null ? conn.addr() : sock.getInetAddress().toString();
+    }
+
+    // Requests that may wait on the disk: staging and storing uploads, opening downloads and
+    // scanning the chat log. The NIO engine runs these off its event loop.
+    boolean touchesDisk(Message msg) {
+        if (!loggedIn) return false;
+        switch (msg.type) {
+            case Message.FILE_UPLOAD_REQUEST_METADATA:
+            case Message.FILE_CHUNK:
+            case Message.FILE_TRANSFER_ABORT:
+            case Message.FILE_DOWNLOAD_REQUEST:
+            case Message.CHAT_HISTORY:
+                return true;
+            default:
+                return false;
+        }
     }
 
     private void handleMsg(Message msg) throws IOException {
         switch (msg.type) {
             case Message.CHAT_MESSAGE: procChatMsg(msg); break;
             case Message.FILE_UPLOAD_REQUEST_METADATA: procUploadReq(msg); break;
-            case Message.FILE_LIST_REQUEST: procFileListReq(); break;
+            case Message.FILE_LIST_REQUEST: procFileListReq(msg); break;
             case Message.FILE_DOWNLOAD_REQUEST: procDownloadReq(msg); break;
+            case Message.FILE_CHUNK: procChunk(msg); break;
+            case Message.FILE_TRANSFER_ABORT: procXferAbort(msg); break;
+            case Message.USER_LIST_UPDATE: room.sendSnapshot(this); break;
+            case Message.ROOM_JOIN: procRoomJoin(msg); break;
+            case Message.DIRECT_MESSAGE: procDirectMsg(msg); break;
+            case Message.CHAT_HISTORY: procHistoryReq(msg); break;
+            case Message.ADMIN_STATS: procStatsReq(msg); break;
             case Message.CLIENT_DISCONNECT: procCliDisconnect(); break;
             default:
-                System.out.println("Unknown message type " + msg.type + " from " + uname);
+                Log.warn(Log.Cat.CONN, "unknown message type", "user", uname, "type", msg.type);
                 sendMsgToCli(new Message(Message.GENERAL_SERVER_MESSAGE, "Server", "Unknown request type."));
         }
     }
@@ -106,167 +204,431 @@ public class ClientHandler implements Runnable {
     private void procLoginReq(Message loginMsg) throws IOException {
         String[] creds = loginMsg.content.split(":", 2);
         if (creds.length != 2) {
-            Message failMsg = new Message(Message.LOGIN_FAILURE, "Server", "Malformed login request.");
-            System.out.println("[SERVER DEBUG] Sending LOGIN_FAILURE. Type: " + failMsg.type + ", Sender: " + failMsg.sender + ", Content: '" + failMsg.content + "'");
-            sendMsgToCli(failMsg);
+            refuseLogin(null, "Malformed login request.");
             return;
         }
         String attemptUname = creds[0];
         String attemptPass = creds[1];
 
-        synchronized (clientsList) {
-            if (clientsList.stream().anyMatch(ch -> ch.loggedIn && ch.getUname().equals(attemptUname))) {
-                Message failMsg = new Message(Message.LOGIN_FAILURE, "Server", "User " + attemptUname + " is already logged in.");
-                System.out.println("[SERVER DEBUG] Sending LOGIN_FAILURE. Type: " + failMsg.type + ", Sender: " + failMsg.sender + ", Content: '" + failMsg.content + "'");
-                sendMsgToCli(failMsg);
-                return;
-            }
+        if (!Server.authUser(attemptUname, attemptPass)) {
+            refuseLogin(attemptUname, "Invalid username or password.");
+            return;
+        }
+        String elsewhere = Server.cluster.ownerOf(attemptUname);
+        if (elsewhere != null || !sessions.register(attemptUname, this)) {
+            refuseLogin(attemptUname, "User " + attemptUname + " is already logged in" + (elsewhere != null ? " on " + elsewhere : "") + ".");
+            return;
         }
 
-        if (Server.authUser(attemptUname, attemptPass)) {
-            this.uname = attemptUname;
+        this.uname = attemptUname;
+        this.loginAt = System.currentTimeMillis();
 
-            Message successMsg = new Message(Message.LOGIN_SUCCESS, "Server", "Welcome " + uname + "!");
-            System.out.println("[SERVER DEBUG] Sending LOGIN_SUCCESS. Type: " + successMsg.type + ", Sender: " + successMsg.sender + ", Content: '" + successMsg.content + "'");
-            sendMsgToCli(successMsg);
+        int codec = Math.min(MsgCodec.LATEST, Caps.getInt(loginMsg.payload, Caps.CODEC, MsgCodec.V_JAVA));
+        this.chunk = Math.max(0, Math.min(Server.config.chunk, Caps.getInt(loginMsg.payload, Caps.CHUNK, 0)));
+        this.zip = Server.config.zip && Caps.getInt(loginMsg.payload, Caps.ZIP, 0) != 0;
+        this.presenceDeltas = Caps.getInt(loginMsg.payload, Caps.PRESENCE, 0) != 0;
+        this.history = Server.config.history > 0 && Caps.getInt(loginMsg.payload, Caps.HISTORY, 0) != 0;
+        Message successMsg = new Message(Message.LOGIN_SUCCESS, "Server", "Welcome " + uname + "!");
+        successMsg.payload = new String[] { Caps.CODEC + "=" + codec, Caps.CHUNK + "=" + chunk, Caps.ZIP + "=" + (zip ? 1 : 0),
+                Caps.PRESENCE + "=" + (presenceDeltas ? 1 : 0), Caps.HISTORY + "=" + (history ? 1 : 0) };
+        sendMsgToCli(successMsg);
+        conn.setCodec(zip ? codec | MsgCodec.ZIP : codec);
 
-            this.loggedIn = true;
-            Server.addCli(this);
+        this.loggedIn = true;
+        Metrics.loginsOk.increment();
+        Server.addCli(this);
 
-            System.out.println(uname + " logged in. Total clients: " + Server.clients.size());
-            bcast(new Message(Message.USER_JOINED_NOTIFICATION, "Server", uname + " has joined the chat."), this);
-        } else {
-            Message failMsg = new Message(Message.LOGIN_FAILURE, "Server", "Invalid username or password.");
-            System.out.println("[SERVER DEBUG] Sending LOGIN_FAILURE. Type: " + failMsg.type + ", Sender: " + failMsg.sender + ", Content: '" + failMsg.content + "'");
-            sendMsgToCli(failMsg);
-        }
+        Log.info(Log.Cat.LOGIN, "logged in", "user", uname, "client", conn.addr(), "codec", zip ? codec + "+zip" : codec, "sessions", sessions.size());
+        bcast(room, new Message(Message.USER_JOINED_NOTIFICATION, "Server", uname + " has joined the chat."));
+    }
+
+    private void refuseLogin(String user, String reason) {
+        Log.info(Log.Cat.LOGIN, "login refused", "user", user, "client", getCliId(), "reason", reason);
+        Metrics.loginsFailed.increment();
+        sendMsgToCli(new Message(Message.LOGIN_FAILURE, "Server", reason));
     }
 
     private void procChatMsg(Message msg) {
-        System.out.println("Chat from " + msg.sender + ": " + msg.content);
-        bcast(new Message(Message.CHAT_MESSAGE, this.uname, msg.content), this);
+        if (Log.on(Log.Level.DEBUG)) {
+            Log.debug(Log.Cat.CHAT, "chat", "user", uname, "room", room.name, "chars", msg.content != null ? msg.content.length() : 0, Log.chatText() ? "text" : null, msg.content);
+        }
+        Message out = new Message(Message.CHAT_MESSAGE, this.uname, msg.content);
+        Room to = room;
+        Server.history.post(to.name, to, out, f -> bcast(to, f));
+    }
+
+    // The link another node writes its events to; we never answer on it.
+    private void procPeerHello(Message msg) {
+        String node = Caps.get(msg.payload, Caps.NODE);
+        int codec = Caps.getInt(msg.payload, Caps.CODEC, MsgCodec.V_JAVA);
+        if (!Cluster.HELLO.equals(msg.content) || !Server.cluster.accepts(node, Caps.get(msg.payload, Caps.KEY)) || codec > MsgCodec.LATEST) {
+            Log.warn(Log.Cat.CLUSTER, "refused cluster link", "client", getCliId(), "node", node);
+            sendMsgToCli(new Message(Message.LOGIN_FAILURE, "Server", "Not a known cluster peer."));
+            return;
+        }
+        conn.setCodec(codec);
+        peerNode = node;
+        Server.cluster.peerUp(node, this);
+    }
+
+    // Ends this session from outside its own thread; cleanup runs as the connection drops.
+    void kick(String reason) {
+        sendMsgToCli(new Message(Message.GENERAL_SERVER_MESSAGE, "Server", reason));
+        if (conn != null) Server.spawn(conn::close);
+    }
+
+    // One map lookup and one queued frame, whatever the number of sessions.
+    private void procDirectMsg(Message msg) {
+        String to = msg.payload instanceof String ? (String) msg.payload : null;
+        ClientHandler target = to != null ? sessions.get(to) : null;
+        if (target == null || !target.isLoggedIn()) {
+            Message out = new Message(Message.DIRECT_MESSAGE, uname, msg.content);
+            out.payload = to;
+            if (to != null && Server.cluster.routeDirect(to, out)) return;
+            sendMsgToCli(new Message(Message.GENERAL_SERVER_MESSAGE, "Server", (to != null ? to : "That user") + " is not online; message not delivered."));
+            return;
+        }
+        if (Log.on(Log.Level.DEBUG)) {
+            Log.debug(Log.Cat.CHAT, "direct message", "user", uname, "to", to, "chars", msg.content != null ? msg.content.length() : 0, Log.chatText() ? "text" : null, msg.content);
+        }
+        Message out = new Message(Message.DIRECT_MESSAGE, uname, msg.content);
+        out.payload = to;
+        target.sendMsgToCli(out);
+    }
+
+    private void procRoomJoin(Message msg) {
+        String name = msg.content == null ? "" : msg.content.trim();
+        Room old = room;
+        if (old != null && old.name.equals(name)) {
+            sendMsgToCli(new Message(Message.GENERAL_SERVER_MESSAGE, "Server", "You are already in #" + name + "."));
+            return;
+        }
+        if (Server.rooms.join(this, name) == null) {
+            sendMsgToCli(new Message(Message.GENERAL_SERVER_MESSAGE, "Server", Rooms.validName(name)
+                    ? "No more rooms can be opened right now." : "Room names are 1-32 letters, digits, '-' or '_'."));
+            return;
+        }
+        Log.info(Log.Cat.ROOM, "moved", "user", uname, "from", old != null ? old.name : null, "to", name);
+        Server.cluster.moved(uname, name);
+        if (old != null) bcast(old, new Message(Message.USER_LEFT_NOTIFICATION, "Server", uname + " has left #" + old.name + "."));
+        bcast(room, new Message(Message.USER_JOINED_NOTIFICATION, "Server", uname + " has joined #" + name + "."));
+    }
+
+    private void procHistoryReq(Message msg) {
+        int limit = Math.max(1, Math.min(MAX_HISTORY, Caps.getInt(msg.payload, Caps.LIMIT, 100)));
+        long from = Caps.getLong(msg.payload, Caps.FROM, -1);
+        String in = room.name;
+        List<ChatLog.Line> lines = from >= 0
+                ? Server.chatLog.from(in, from, limit)
+                : Server.chatLog.between(in, Caps.getLong(msg.payload, Caps.SINCE, 0), Caps.getLong(msg.payload, Caps.UNTIL, Long.MAX_VALUE), limit);
+        sendMsgToCli(ChatLog.reply(in, lines));
+    }
+
+    private void procStatsReq(Message msg) {
+        if (!Server.config.admins.contains(uname)) {
+            sendMsgToCli(new Message(Message.GENERAL_SERVER_MESSAGE, "Server", "Server stats are for admins only."));
+            return;
+        }
+        int limit = Math.max(0, Math.min(MAX_STATS_CONNS, Caps.getInt(msg.payload, Caps.LIMIT, 100)));
+        List<String> lines = Metrics.report();
+        for (ClientHandler cli : sessions.snapshot()) {
+            if (limit-- <= 0) break;
+            lines.add(cli.statsLine());
+        }
+        Message reply = new Message(Message.ADMIN_STATS, "Server", (Object) lines.toArray(new String[0]));
+        sendMsgToCli(reply);
+    }
+
+    private String statsLine() {
+        OutQueue q = conn != null ? conn.outQueue() : null;
+        Room r = room;
+        return "conn." + getCliId() + "=addr:" + (conn != null ? conn.addr() : "-") + " room:" + (r != null ? r.name : "-")
+                + " in:" + msgsIn + " out:" + getQueuedCount() + " dropped:" + getDroppedCount() + " depth:" + (q != null ? q.depth() : 0);
     }
 
     private void procUploadReq(Message msg) throws IOException {
-        System.out.println("File upload request from " + uname + ": " + msg.content + " (" + msg.fileSize + " bytes)");
+        Log.info(Log.Cat.XFER, "upload requested", "user", uname, "file", msg.content, "bytes", msg.fileSize);
+        String id = Caps.get(msg.payload, Caps.XFER);
+        if (chunk > 0 && id != null) {
+            recvChunks(id, msg.content, msg.fileSize, Caps.get(msg.payload, Caps.DIGEST), zip && Caps.getInt(msg.payload, Caps.ZIP, 0) != 0);
+            return;
+        }
         sendMsgToCli(new Message(Message.FILE_UPLOAD_READY_FOR_BYTES, "Server", msg.content));
         recvFile(msg.content, msg.fileSize);
     }
 
-    private void procFileListReq() throws IOException {
-        System.out.println("File list request from " + uname);
-        sendFileList();
+    // Chunked uploads land in a per-user staging file first. Whatever a dropped connection left
+    // there is kept, and the READY reply tells the client where to resume. If the client
+    // announced a digest we already store, READY says everything is here and no bytes are sent.
+    private void recvChunks(String id, String fname, long fLen, String digest, boolean zipped) {
+        Path stage = null;
+        try {
+            stage = stagePath(fname, fLen);
+            if (Server.store.linkExisting(fname, digest, fLen) != null) {
+                Log.info(Log.Cat.XFER, "upload matched a stored blob; skipping transfer", "user", uname, "file", fname, "sha256", digest);
+                Files.deleteIfExists(stage);
+                Message ready = new Message(Message.FILE_UPLOAD_READY_FOR_BYTES, "Server", fname);
+                ready.payload = Caps.of(Caps.XFER, id, Caps.OFF, String.valueOf(fLen));
+                sendMsgToCli(ready);
+                uploadDone(id, fname, null, null);
+                return;
+            }
+            Files.createDirectories(stage.getParent());
+            long off = Files.exists(stage) ? Math.min(Files.size(stage), fLen) : 0;
+            if (off > 0) Log.info(Log.Cat.XFER, "resuming upload", "user", uname, "file", fname, "off", off);
+            upsById.put(id, new Up(fname, digest));
+            Message ready = new Message(Message.FILE_UPLOAD_READY_FOR_BYTES, "Server", fname);
+            ready.payload = Caps.of(Caps.XFER, id, Caps.OFF, String.valueOf(off));
+            sendMsgToCli(ready);
+            ChunkIn.Part done = parts.open(id, stage, fLen, off, BlobStore.newDigest(), zipped);
+            if (done != null) finishUpload(done);
+        } catch (IOException e) {
+            sendMsgToCli(new Message(Message.FILE_TRANSFER_ABORT, "Server", id));
+            uploadDone(id, fname, stage, e);
+        }
+    }
+
+    private void procChunk(Message msg) {
+        byte[] data = msg.payload instanceof byte[] ? (byte[]) msg.payload : null;
+        try {
+            ChunkIn.Part done = parts.write(msg.content, data);
+            if (done != null) finishUpload(done);
+        } catch (IOException e) {
+            sendMsgToCli(new Message(Message.FILE_TRANSFER_ABORT, "Server", msg.content));
+            uploadDone(msg.content, upName(msg.content), null, e);
+        }
+    }
+
+    private void finishUpload(ChunkIn.Part part) {
+        Up up = upsById.get(part.id);
+        String digest = BlobStore.hex(part.digest());
+        try {
+            if (up.digest != null && !up.digest.equalsIgnoreCase(digest)) {
+                throw new IOException("content does not match the announced digest");
+            }
+            Server.store.put(up.fname, part.path, digest, part.size);
+            if (part.ratio() != null) Log.info(Log.Cat.XFER, "upload compressed", "user", uname, "file", up.fname, "xfer", part.id, "ratio", part.ratio());
+            uploadDone(part.id, up.fname, null, null);
+        } catch (IOException e) {
+            uploadDone(part.id, up.fname, part.path, e);
+        }
+    }
+
+    private void procXferAbort(Message msg) {
+        ChunkIn.Part part = parts.abort(msg.content);
+        if (part != null) {
+            uploadDone(part.id, upName(part.id), part.path, new IOException("Client aborted the upload."));
+        }
+    }
+
+    private String upName(String id) {
+        Up up = upsById.get(id);
+        return up != null ? up.fname : id;
+    }
+
+    // The name has to be a plain file name, so the stage stays inside this user's directory.
+    private Path stagePath(String fname, long size) throws IOException {
+        if (!BlobStore.validName(fname) || size < 0) throw new IOException("Invalid file name: " + fname);
+        Path dir = Paths.get(S_DIR, ".partial", uname).toAbsolutePath().normalize();
+        Path stage = dir.resolve(fname + "." + size + ".part").normalize();
+        if (!dir.equals(stage.getParent())) throw new IOException("Invalid file name: " + fname);
+        return stage;
+    }
+
+    private void procFileListReq(Message msg) throws IOException {
+        Log.debug(Log.Cat.XFER, "file list requested", "user", uname);
+        int limit = Caps.getInt(msg.payload, Caps.LIMIT, 0);
+        if (limit <= 0) {
+            sendFileList();
+            return;
+        }
+        String prefix = Caps.get(msg.payload, Caps.PREFIX);
+        sendFilePage(prefix != null ? prefix : "", Caps.get(msg.payload, Caps.AFTER), Math.min(limit, FileList.MAX_PAGE));
     }
 
     private void procDownloadReq(Message msg) throws IOException {
-        System.out.println("File download request from " + uname + " for: " + msg.content);
-        sendFile(msg.content);
+        Log.info(Log.Cat.XFER, "download requested", "user", uname, "file", msg.content);
+        sendFile(msg.content, Caps.getLong(msg.payload, Caps.OFF, 0), Caps.getLong(msg.payload, Caps.SIZE, -1),
+                Caps.getInt(msg.payload, Caps.STREAMS, 1));
+    }
+
+    // One range of a parallel download, on its own connection. Any bad request ends it.
+    private void procRangeReq(Message msg) throws IOException {
+        DataGrants.Claim claim = Server.grants.claim(msg.content);
+        DataGrants.Grant grant = claim != null ? claim.grant : null;
+        long off = Caps.getLong(msg.payload, Caps.OFF, -1);
+        long len = Caps.getLong(msg.payload, Caps.LEN, -1);
+        if (grant == null || !grant.covers(off, len)) {
+            if (claim != null) claim.pin.close();
+            Log.warn(Log.Cat.XFER, "rejected range request", "client", getCliId(), "reason", grant == null ? "unknown or expired token" : "bad range " + off + "+" + len);
+            sendMsgToCli(new Message(Message.FILE_DOWNLOAD_ERROR, "Server", "Invalid range request."));
+            dataConn = false;
+            return;
+        }
+        dataConn = true;
+        try {
+            conn.sendFile(new Message(Message.FILE_RANGE, "Server", grant.xfer, len), claim.pin, off, len);
+        } catch (IOException e) {
+            claim.pin.close();
+            throw e;
+        }
+        Log.info(Log.Cat.XFER, "range queued", "user", grant.user, "xfer", grant.xfer, "off", off, "bytes", len);
     }
 
     private void procCliDisconnect() {
-        System.out.println(uname + " is disconnecting.");
+        Log.info(Log.Cat.LOGIN, "disconnecting", "user", uname);
         loggedIn = false;
     }
 
     public void sendMsgToCli(Message msg) {
+        sendFrame(new Frame(msg));
+    }
+
+    void sendFrame(Frame frame) {
         try {
-            if (objOut != null && !sock.isClosed()) {
-                objOut.writeObject(msg);
-                objOut.flush();
+            if (conn != null && conn.isOpen()) {
+                conn.send(frame);
             }
         } catch (IOException e) {
-            System.err.println("Error sending message to " + getCliId() + ": " + e.getMessage());
+            Log.warn(Log.Cat.CONN, "error sending message", "client", getCliId(), "error", e.getMessage());
         }
     }
 
-    private void bcast(Message msg, ClientHandler sender) {
-        System.out.println("Broadcasting: \"" + msg.content + "\" (from " + msg.sender + ")");
-        synchronized (clientsList) {
-            for (ClientHandler cli : clientsList) {
-                if (cli.loggedIn && cli != sender) {
-                    cli.sendMsgToCli(msg);
-                }
-            }
-        }
+    // Everyone in the room but us.
+    private void bcast(Room to, Message msg) {
+        bcast(to, new Frame(msg));
+    }
+
+    private void bcast(Room to, Frame f) {
+        if (Log.on(Log.Level.DEBUG)) Log.debug(Log.Cat.ROOM, "broadcast", "room", to.name, "type", f.msg.type, "from", f.msg.sender);
+        to.bcast(f, this);
+        Server.cluster.relay(to.name, f.msg);
     }
 
     private void sendFileList() throws IOException {
-        File dir = new File(S_DIR);
-        String fListStr = "";
-        if (dir.exists() && dir.isDirectory()) {
-            File[] files = dir.listFiles(f -> f.isFile());
-            if (files != null) {
-                fListStr = java.util.Arrays.stream(files)
-                        .map(File::getName)
-                        .collect(Collectors.joining(","));
-            }
-        } else {
-            Files.createDirectories(Paths.get(S_DIR));
-        }
-        sendMsgToCli(new Message(Message.FILE_LIST_RESPONSE, "Server", fListStr));
+        sendMsgToCli(new Message(Message.FILE_LIST_RESPONSE, "Server", String.join(",", Server.store.names())));
+    }
+
+    // One more entry than asked for is fetched only to learn whether another page follows.
+    private void sendFilePage(String prefix, String after, int limit) {
+        List<BlobStore.Entry> page = Server.store.page(prefix, after, limit + 1);
+        boolean more = page.size() > limit;
+        if (more) page = page.subList(0, limit);
+        List<FileList.Entry> out = new ArrayList<>(page.size());
+        for (BlobStore.Entry e : page) out.add(new FileList.Entry(e.name, e.size, e.mtime));
+        Message resp = new Message(Message.FILE_LIST_RESPONSE, "Server", more ? page.get(limit - 1).name : null);
+        resp.payload = FileList.pack(out);
+        sendMsgToCli(resp);
     }
 
-    private void sendFile(String fname) throws IOException {
-        Path fPath = Paths.get(S_DIR, fname);
-        if (!Files.exists(fPath) || !Files.isReadable(fPath)) {
+    // A resume offset is honoured only if the file still has the size the client saw before.
+    // Asking for several streams (with no resume offset) gets a token for that many extra data
+    // connections instead of the bytes; the client then fetches disjoint ranges over them.
+    private void sendFile(String fname, long off, long expSize, int streams) throws IOException {
+        BlobStore.Entry entry = Server.store.get(fname);
+        // Pinned before the check, so an upload replacing the name can no longer unlink it.
+        BlobStore.Pin pin = entry != null ? Server.store.pin(entry.path) : null;
+        if (pin == null || !Files.isReadable(pin.path)) {
+            if (pin != null) pin.close();
             sendMsgToCli(new Message(Message.FILE_DOWNLOAD_ERROR, "Server", "File not found: " + fname));
             return;
         }
-        long fSize = Files.size(fPath);
-        sendMsgToCli(new Message(Message.FILE_DOWNLOAD_INFO_AND_START, "Server", fname, fSize));
-        sendMsgToCli(new Message(Message.FILE_DOWNLOAD_SENDING_BYTES, "Server", fname));
-        try (InputStream fIs = Files.newInputStream(fPath)) {
-            byte[] buf = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = fIs.read(buf)) != -1) {
-                dataOut.write(buf, 0, bytesRead);
+        long fSize = entry.size;
+        int k = (int) Math.min(Math.min(streams, Server.config.streams), fSize / MIN_RANGE);
+        try {
+            if (k >= 2 && off == 0) {
+                String id = "d" + (++dlSeq);
+                Message start = new Message(Message.FILE_DOWNLOAD_INFO_AND_START, "Server", fname, fSize);
+                start.payload = Caps.of(Caps.XFER, id, Caps.STREAMS, String.valueOf(k), Caps.TOKEN, Server.grants.issue(uname, id, pin, fSize, k));
+                sendMsgToCli(start);
+                Log.info(Log.Cat.XFER, "parallel download offered", "user", uname, "file", fname, "xfer", id, "streams", k);
+                return;
+            }
+            if (chunk > 0) {
+                String id = "d" + (++dlSeq);
+                if (expSize != fSize || off < 0 || off > fSize) off = 0;
+                boolean z = zip && Zip.compressible(fname);
+                Message start = new Message(Message.FILE_DOWNLOAD_INFO_AND_START, "Server", fname, fSize);
+                start.payload = Caps.of(Caps.XFER, id, Caps.OFF, String.valueOf(off), Caps.ZIP, z ? "1" : "0");
+                conn.sendChunks(start, id, pin, fSize, off, chunk, z);
+                Log.info(Log.Cat.XFER, "download queued", "user", uname, "file", fname, "xfer", id, "off", off);
+                return;
             }
-            dataOut.flush();
+            sendMsgToCli(new Message(Message.FILE_DOWNLOAD_INFO_AND_START, "Server", fname, fSize));
+            conn.sendFile(new Message(Message.FILE_DOWNLOAD_SENDING_BYTES, "Server", fname), pin, 0, fSize);
+        } catch (IOException e) {
+            pin.close();
+            throw e;
         }
-        System.out.println("File " + fname + " (" + fSize + " bytes) sent to " + uname);
+        Log.info(Log.Cat.XFER, "file sent", "user", uname, "file", fname, "bytes", fSize);
     }
 
     private void recvFile(String fname, long fLen) throws IOException {
-        Path outPath = Paths.get(S_DIR, fname);
-        try (OutputStream fOs = Files.newOutputStream(outPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
-            byte[] buf = new byte[8192];
-            long bytesRecvd = 0;
-            int curBytesRead;
-            while (bytesRecvd < fLen) {
-                int toRead = (int) Math.min(buf.length, fLen - bytesRecvd);
-                curBytesRead = dataIn.read(buf, 0, toRead);
-                if (curBytesRead == -1) throw new EOFException("Client closed connection during file upload.");
-                fOs.write(buf, 0, curBytesRead);
-                bytesRecvd += curBytesRead;
+        Path tmp = Server.store.tmpFile();
+        MessageDigest md = BlobStore.newDigest();
+        conn.recvFile(tmp, fLen, md, err -> {
+            if (err == null) {
+                try {
+                    Server.store.put(fname, tmp, BlobStore.hex(md.digest()), fLen);
+                } catch (IOException e) {
+                    err = e;
+                }
+            }
+            uploadDone(null, fname, tmp, err);
+        });
+    }
+
+    // id is set for chunked uploads and echoed in the confirmation so the client can match it.
+    private void uploadDone(String id, String fname, Path outPath, IOException err) {
+        if (id != null) upsById.remove(id);
+        Message confirm;
+        if (err == null) {
+            Log.info(Log.Cat.XFER, "upload saved", "user", uname, "file", fname);
+            confirm = new Message(Message.FILE_UPLOAD_CONFIRMATION, "Server", "File '" + fname + "' uploaded successfully.");
+        } else {
+            Log.warn(Log.Cat.XFER, "upload failed", "user", uname, "file", fname, "error", err.getMessage());
+            confirm = new Message(Message.FILE_UPLOAD_CONFIRMATION, "Server", "File upload failed for '" + fname + "'.");
+        }
+        if (id != null) confirm.payload = Caps.of(Caps.XFER, id);
+        sendMsgToCli(confirm);
+        if (err != null) {
+            if (outPath != null) {
+                try { Files.deleteIfExists(outPath); } catch (IOException ignored) {}
             }
-            fOs.flush();
-            System.out.println("File " + fname + " received from " + uname + " and saved.");
-            sendMsgToCli(new Message(Message.FILE_UPLOAD_CONFIRMATION, "Server", "File '" + fname + "' uploaded successfully."));
-        } catch (IOException e) {
-            System.err.println("Error receiving file " + fname + ": " + e.getMessage());
-            sendMsgToCli(new Message(Message.FILE_UPLOAD_CONFIRMATION, "Server", "File upload failed for '" + fname + "'."));
-            try { Files.deleteIfExists(outPath); } catch (IOException ignored) {}
         }
     }
 
-    private void cleanup() {
+    void cleanup() {
+        synchronized (this) {
+            if (cleanedUp) return;
+            cleanedUp = true;
+        }
+        Metrics.connsOpen.decrement();
         if (loggedIn) {
-            bcast(new Message(Message.USER_LEFT_NOTIFICATION, "Server", uname + " has left the chat."), this);
+            bcast(room, new Message(Message.USER_LEFT_NOTIFICATION, "Server", uname + " has left the chat."));
+        }
+        if (peerNode != null) {
+            Server.cluster.peerDown(peerNode, this);
+        } else if (!dataConn) {
+            Server.remCli(this);
+        }
+        for (ChunkIn.Part part : parts.closeAll()) {
+            Log.info(Log.Cat.XFER, "kept partial upload for resume", "client", getCliId(), "file", upName(part.id), "got", part.getPos(), "bytes", part.size);
         }
-        Server.remCli(this);
         closeConn();
     }
 
     private void closeConn() {
-        try {
-            if (objIn != null) objIn.close();
-            if (objOut != null) objOut.close();
-            if (dataIn != null) dataIn.close();
-            if (dataOut != null) dataOut.close();
-            if (sock != null && !sock.isClosed()) sock.close();
-        } catch (IOException e) {
-            System.err.println("Error closing connection for " + getCliId() + ": " + e.getMessage());
+        if (conn != null) {
+            conn.close();
+            Log.info(Log.Cat.CONN, "outbound queue", "client", getCliId(), "stats", conn.outQueue().stats());
+        } else {
+            try {
+                if (sock != null && !sock.isClosed()) sock.close();
+            } catch (IOException e) {
+                Log.warn(Log.Cat.CONN, "error closing connection", "client", getCliId(), "error", e.getMessage());
+            }
         }
-        System.out.println("Connection closed for " + getCliId());
+        Log.info(Log.Cat.CONN, "connection closed", "client", getCliId());
     }
 }
\ No newline at end of file
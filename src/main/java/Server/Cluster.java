@@ -0,0 +1,259 @@
+package Server;
+
+import Shared.Caps;
+import Shared.Message;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// Several server processes acting as one chat: every node links to every peer named in
+// --peers=name@host:port,... (see PeerLink) and tells them about its own users and traffic.
+// Room chat and notices are relayed to every peer, which hands them to its local members of that
+// room; direct messages go to the one node holding the recipient. Peers never relay onward, so
+// the mesh must be complete.
+//
+// A username may be held by one node at a time. Logins are refused while a peer holds the name;
+// if two nodes accept the same name before hearing of each other, the earlier login (then the
+// lower node name) wins everywhere and the other node disconnects its session.
+final class Cluster {
+    static final String HELLO = "hello";
+    static final String ONLINE = "online";
+    static final String OFFLINE = "offline";
+    static final String MOVE = "move";
+
+    private static final class Owner {
+        final String node;
+        final long since;
+
+        Owner(String node, long since) {
+            this.node = node;
+            this.since = since;
+        }
+    }
+
+    final String node;
+    final String key;
+    private final List<PeerLink> links = new ArrayList<>();
+    // Users logged in on other nodes. Guarded by this.
+    private final Map<String, Owner> owners = new HashMap<>();
+    // The inbound link each peer is currently talking to us over.
+    private final Map<String, ClientHandler> inbound = new HashMap<>();
+
+    Cluster(String node, String key, List<String> peers) {
+        this.node = node;
+        this.key = key;
+        for (String peer : peers) {
+            int at = peer.indexOf('@');
+            int colon = peer.lastIndexOf(':');
+            if (at <= 0 || colon < at) throw new IllegalArgumentException("Expected name@host:port but got: " + peer);
+            links.add(new PeerLink(peer.substring(0, at), peer.substring(at + 1, colon), Integer.parseInt(peer.substring(colon + 1)), this));
+        }
+    }
+
+    boolean enabled() {
+        return !links.isEmpty();
+    }
+
+    void start() {
+        for (PeerLink link : links) {
+            Thread t = new Thread(link, "peer-" + link);
+            t.setDaemon(true);
+            t.start();
+        }
+        if (enabled()) Log.info(Log.Cat.CLUSTER, "linking", "node", node, "peers", links);
+    }
+
+    // Only the peers we were told about, holding our key, may open a link.
+    boolean accepts(String peer, String k) {
+        return !key.isEmpty() && k != null
+                && MessageDigest.isEqual(key.getBytes(StandardCharsets.UTF_8), k.getBytes(StandardCharsets.UTF_8))
+                && link(peer) != null;
+    }
+
+    // --- local events, told to every peer ---
+
+    void online(ClientHandler cli) {
+        send(control(ONLINE, cli.getUname(), cli.getRoom().name, cli.getLoginAt()));
+    }
+
+    void offline(String uname) {
+        send(control(OFFLINE, uname, null, 0));
+    }
+
+    void moved(String uname, String room) {
+        send(control(MOVE, uname, room, 0));
+    }
+
+    // Room chat or a notice; msg must not be modified afterwards.
+    void relay(String room, Message msg) {
+        if (!enabled()) return;
+        Message copy = new Message(msg.type, msg.sender, msg.content);
+        copy.payload = room;
+        send(new Frame(copy));
+    }
+
+    // False if no peer holds the recipient.
+    boolean routeDirect(String to, Message dm) {
+        String at = ownerOf(to);
+        PeerLink link = at != null ? link(at) : null;
+        if (link == null) return false;
+        link.offer(new Frame(dm));
+        return true;
+    }
+
+    synchronized String ownerOf(String uname) {
+        Owner o = owners.get(uname);
+        return o != null ? o.node : null;
+    }
+
+    // Sent first on every new link so the peer can rebuild what it knows about us.
+    List<Frame> localState() {
+        List<Frame> out = new ArrayList<>();
+        for (ClientHandler cli : Server.sessions.snapshot()) {
+            Room room = cli.getRoom();
+            if (cli.isLoggedIn() && room != null) out.add(control(ONLINE, cli.getUname(), room.name, cli.getLoginAt()));
+        }
+        return out;
+    }
+
+    private void send(Frame frame) {
+        for (PeerLink link : links) link.offer(frame);
+    }
+
+    private Frame control(String op, String uname, String room, long since) {
+        Message msg = new Message(Message.PEER, node, op);
+        msg.payload = room != null
+                ? Caps.of(Caps.USER, uname, Caps.ROOM, room, Caps.SINCE, Long.toString(since))
+                : Caps.of(Caps.USER, uname);
+        return new Frame(msg);
+    }
+
+    private PeerLink link(String peer) {
+        for (PeerLink l : links) {
+            if (l.peer.equals(peer)) return l;
+        }
+        return null;
+    }
+
+    // --- what peers tell us ---
+
+    void peerUp(String peer, ClientHandler via) {
+        ClientHandler old;
+        synchronized (this) {
+            old = inbound.put(peer, via);
+        }
+        Log.info(Log.Cat.CLUSTER, "peer connected", "peer", peer);
+        forget(peer);
+        if (old != null) old.kick("Replaced by a newer link.");
+    }
+
+    void peerDown(String peer, ClientHandler via) {
+        synchronized (this) {
+            if (!inbound.remove(peer, via)) return;
+        }
+        Log.info(Log.Cat.CLUSTER, "peer disconnected; dropping its users", "peer", peer);
+        forget(peer);
+    }
+
+    void onPeer(String peer, Message msg) {
+        switch (msg.type) {
+            case Message.PEER: onControl(peer, msg); break;
+            case Message.CHAT_MESSAGE: {
+                String room = (String) msg.payload;
+                Message out = new Message(Message.CHAT_MESSAGE, msg.sender, msg.content);
+                Room r = Server.rooms.find(room);
+                Server.history.post(room, r, out, f -> {
+                    if (r != null) r.bcast(f, null);
+                });
+                break;
+            }
+            case Message.USER_JOINED_NOTIFICATION:
+            case Message.USER_LEFT_NOTIFICATION:
+                deliver((String) msg.payload, new Message(msg.type, msg.sender, msg.content));
+                break;
+            case Message.DIRECT_MESSAGE: {
+                ClientHandler to = Server.sessions.get((String) msg.payload);
+                if (to != null && to.isLoggedIn()) to.sendMsgToCli(msg);
+                break;
+            }
+            default:
+                Log.warn(Log.Cat.CLUSTER, "ignoring message", "peer", peer, "type", msg.type);
+        }
+    }
+
+    private void deliver(String room, Message msg) {
+        Room r = Server.rooms.find(room);
+        if (r != null) r.bcast(new Frame(msg), null);
+    }
+
+    private void onControl(String peer, Message msg) {
+        String uname = Caps.get(msg.payload, Caps.USER);
+        if (uname == null) return;
+        switch (msg.content) {
+            case ONLINE:
+            case MOVE: {
+                String room = Caps.get(msg.payload, Caps.ROOM);
+                long since = Caps.getLong(msg.payload, Caps.SINCE, 0);
+                if (!claim(peer, uname, since, msg.content.equals(ONLINE))) return;
+                Server.rooms.remoteMove(uname, room);
+                break;
+            }
+            case OFFLINE: {
+                synchronized (this) {
+                    Owner o = owners.get(uname);
+                    if (o == null || !o.node.equals(peer)) return;
+                    owners.remove(uname);
+                }
+                Server.rooms.remoteMove(uname, null);
+                break;
+            }
+            default:
+                Log.warn(Log.Cat.CLUSTER, "unknown cluster op", "peer", peer, "op", msg.content);
+        }
+    }
+
+    // Whether peer holds uname from now on. A fresh ONLINE competes with whoever holds it
+    // already; MOVE only counts from the current holder.
+    private boolean claim(String peer, String uname, long since, boolean fresh) {
+        ClientHandler local = null;
+        synchronized (this) {
+            Owner cur = owners.get(uname);
+            if (cur != null && cur.node.equals(peer)) return true;
+            if (!fresh) return false;
+            if (cur != null && !wins(since, peer, cur.since, cur.node)) return false;
+            ClientHandler mine = Server.sessions.get(uname);
+            if (mine != null && mine.isLoggedIn()) {
+                if (!wins(since, peer, mine.getLoginAt(), node)) return false;
+                local = mine;
+            }
+            owners.put(uname, new Owner(peer, since));
+        }
+        if (local != null) {
+            Log.info(Log.Cat.CLUSTER, "user logged in on a peer first; disconnecting the local session", "user", uname, "peer", peer);
+            local.kick("You were logged in on another server.");
+        }
+        return true;
+    }
+
+    private static boolean wins(long since, String node, long otherSince, String otherNode) {
+        return since != otherSince ? since < otherSince : node.compareTo(otherNode) < 0;
+    }
+
+    private void forget(String peer) {
+        List<String> gone = new ArrayList<>();
+        synchronized (this) {
+            for (Iterator<Map.Entry<String, Owner>> it = owners.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Owner> e = it.next();
+                if (e.getValue().node.equals(peer)) {
+                    gone.add(e.getKey());
+                    it.remove();
+                }
+            }
+        }
+        for (String uname : gone) Server.rooms.remoteMove(uname, null);
+    }
+}
@@ -0,0 +1,36 @@
+package Server;
+
+import Shared.Message;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.function.Consumer;
+
+// The sending side of a client connection, shared by both engines. How frames come in differs:
+// SockConn is read by its handler's thread, NioConn feeds its handler from the event loop.
+interface Conn {
+    void send(Frame frame) throws IOException;
+
+    // Switches the frame encoding for everything sent or read after this call.
+    void setCodec(int ver);
+
+    // Writes start and the raw file bytes [off, off + len) back to back, so no other message can
+    // land in between. The connection closes pin once it is done with the file.
+    void sendFile(Message start, BlobStore.Pin pin, long off, long len) throws IOException;
+
+    // Queues start, then streams the file from off as FILE_CHUNK frames tagged with id whenever
+    // no message is waiting. With zip the chunk payloads are one deflate stream.
+    void sendChunks(Message start, String id, BlobStore.Pin pin, long size, long off, int chunk, boolean zip) throws IOException;
+
+    // Feeds every byte to md on its way to the file. done receives null on success, or the
+    // failure that aborted the upload.
+    void recvFile(Path path, long size, MessageDigest md, Consumer<IOException> done);
+
+    OutQueue outQueue();
+
+    String addr();
+
+    boolean isOpen();
+
+    void close();
+}
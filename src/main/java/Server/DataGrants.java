@@ -0,0 +1,90 @@
+package Server;
+
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Tokens that let extra, unauthenticated data connections fetch ranges of one file a logged-in
+// user asked for. Each token is good for a fixed number of connections and expires soon after.
+// A grant pins its file until it is spent or purged, so the ranges can still be served if the
+// name is replaced in the meantime.
+final class DataGrants {
+    private static final long TTL_MS = 60_000;
+
+    static final class Grant {
+        final String user;
+        final String xfer;
+        final Path path;
+        final long size;
+        final long expires;
+        private final BlobStore.Pin pin;
+        private int uses;
+
+        Grant(String user, String xfer, BlobStore.Pin pin, long size, int uses) {
+            this.user = user;
+            this.xfer = xfer;
+            this.pin = pin;
+            this.path = pin.path;
+            this.size = size;
+            this.uses = uses;
+            this.expires = System.currentTimeMillis() + TTL_MS;
+        }
+
+        // Whether [off, off + len) is a non-empty range inside the file; written so that no
+        // off or len a client sends can overflow past the check.
+        boolean covers(long off, long len) {
+            return off >= 0 && len > 0 && off <= size && len <= size - off;
+        }
+    }
+
+    private final Map<String, Grant> byToken = new ConcurrentHashMap<>();
+    private final SecureRandom rnd = new SecureRandom();
+
+    // Takes over pin.
+    String issue(String user, String xfer, BlobStore.Pin pin, long size, int uses) {
+        purge();
+        byte[] raw = new byte[16];
+        rnd.nextBytes(raw);
+        String token = HexFormat.of().formatHex(raw);
+        byToken.put(token, new Grant(user, xfer, pin, size, uses));
+        return token;
+    }
+
+    // Uses up one connection's worth of the token; null if it is unknown, spent or expired.
+    // A claim comes with a pin of its own on the grant's file, which the caller must close.
+    Claim claim(String token) {
+        if (token == null) return null;
+        Claim[] out = new Claim[1];
+        byToken.computeIfPresent(token, (t, g) -> {
+            if (g.expires < System.currentTimeMillis()) {
+                g.pin.close();
+                return null;
+            }
+            out[0] = new Claim(g, g.pin.again());
+            if (--g.uses > 0) return g;
+            g.pin.close();
+            return null;
+        });
+        return out[0];
+    }
+
+    static final class Claim {
+        final Grant grant;
+        final BlobStore.Pin pin;
+
+        Claim(Grant grant, BlobStore.Pin pin) {
+            this.grant = grant;
+            this.pin = pin;
+        }
+    }
+
+    private void purge() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Grant> e : byToken.entrySet()) {
+            Grant g = e.getValue();
+            if (g.expires < now && byToken.remove(e.getKey(), g)) g.pin.close();
+        }
+    }
+}
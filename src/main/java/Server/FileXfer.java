@@ -0,0 +1,92 @@
+package Server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// Moves exactly size bytes of a file (from off) onto a connection, via sendfile when the socket has a channel,
+// and lands uploads from a connection into a file.
+final class FileXfer {
+    static final int BUF_SIZE = 8192;
+    // FileChannel.transferFrom bounces socket sources through an 8K temp buffer, so uploads read
+    // through large direct buffers instead; these are pooled since they are costly to allocate.
+    static final int RECV_BUF = 256 * 1024;
+    private static final ArrayBlockingQueue<ByteBuffer> recvBufs = new ArrayBlockingQueue<>(16);
+
+    private FileXfer() {}
+
+    static void copy(Path path, long off, long size, OutputStream out) throws IOException {
+        try (InputStream fIs = Files.newInputStream(path)) {
+            fIs.skipNBytes(off);
+            byte[] buf = new byte[BUF_SIZE];
+            long left = size;
+            while (left > 0) {
+                int bytesRead = fIs.read(buf, 0, (int) Math.min(buf.length, left));
+                if (bytesRead == -1) throw new EOFException("File " + path.getFileName() + " shrank during transfer.");
+                out.write(buf, 0, bytesRead);
+                left -= bytesRead;
+            }
+        }
+        out.flush();
+    }
+
+    static void transfer(Path path, long off, long size, WritableByteChannel ch) throws IOException {
+        try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+            long pos = off;
+            long end = off + size;
+            while (pos < end) {
+                long n = fc.transferTo(pos, end - pos, ch);
+                if (n <= 0 && pos >= fc.size()) throw new EOFException("File " + path.getFileName() + " shrank during transfer.");
+                pos += n;
+            }
+        }
+    }
+
+    static ByteBuffer takeBuf() {
+        ByteBuffer buf = recvBufs.poll();
+        return buf != null ? buf.clear() : ByteBuffer.allocateDirect(RECV_BUF);
+    }
+
+    static void giveBuf(ByteBuffer buf) {
+        recvBufs.offer(buf);
+    }
+
+    // Lands exactly size bytes from a blocking channel into fc, starting at pos.
+    static void recv(ReadableByteChannel ch, FileChannel fc, long pos, long size, MessageDigest md) throws IOException {
+        ByteBuffer buf = takeBuf();
+        try {
+            long end = pos + size;
+            while (pos < end) {
+                buf.clear().limit((int) Math.min(buf.capacity(), end - pos));
+                if (ch.read(buf) == -1) throw new EOFException("Client closed connection during file upload.");
+                buf.flip();
+                md.update(buf.duplicate());
+                while (buf.hasRemaining()) pos += fc.write(buf, pos);
+            }
+        } finally {
+            giveBuf(buf);
+        }
+    }
+
+    static void recv(InputStream in, FileChannel fc, long size, MessageDigest md) throws IOException {
+        byte[] buf = new byte[BUF_SIZE];
+        long pos = 0;
+        while (pos < size) {
+            int bytesRead = in.read(buf, 0, (int) Math.min(buf.length, size - pos));
+            if (bytesRead == -1) throw new EOFException("Client closed connection during file upload.");
+            md.update(buf, 0, bytesRead);
+            ByteBuffer part = ByteBuffer.wrap(buf, 0, bytesRead);
+            while (part.hasRemaining()) pos += fc.write(part, pos);
+        }
+    }
+}
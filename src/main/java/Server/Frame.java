@@ -0,0 +1,40 @@
+package Server;
+
+import Shared.Message;
+import Shared.MsgCodec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// A message plus its wire encodings, built at most once per codec version (plain or compressed)
+// and shared by every recipient of a broadcast.
+final class Frame {
+    final Message msg;
+    // System.nanoTime() at construction, for Metrics' chat latency.
+    final long born = System.nanoTime();
+    // Chat log sequence number of a chat line, -1 for anything else.
+    final long seq;
+    private final ByteBuffer[] enc = new ByteBuffer[2 * (MsgCodec.LATEST + 1)];
+
+    Frame(Message msg) {
+        this(msg, -1);
+    }
+
+    Frame(Message msg, long seq) {
+        this.msg = msg;
+        this.seq = seq;
+    }
+
+    // Returns a private view (own position/limit) over the shared, never-modified bytes.
+    ByteBuffer bytes(int ver) throws IOException {
+        ByteBuffer buf;
+        int slot = MsgCodec.base(ver) + ((ver & MsgCodec.ZIP) != 0 ? MsgCodec.LATEST + 1 : 0);
+        synchronized (enc) {
+            buf = enc[slot];
+            if (buf == null) {
+                buf = MsgCodec.frame(msg, ver);
+                enc[slot] = buf;
+            }
+        }
+        return buf.duplicate();
+    }
+}
@@ -0,0 +1,133 @@
+package Server;
+
+import Shared.Message;
+import java.util.function.Consumer;
+
+// The last few chat lines of each room, replayed to a client as one CHAT_HISTORY frame right
+// after it logs in. Each room's ring lives on its Room, so it goes when the room does; it is a
+// fixed ring of parallel arrays, so recording a line stores two references and a timestamp, and
+// the oldest lines also go once the room's text passes its byte cap. Every line is also numbered
+// and persisted by the ChatLog.
+final class History {
+    // Rough per-line cost on top of the text: the slot, the two strings' headers and the time.
+    private static final int LINE_OVERHEAD = 64;
+
+    private final int lines;
+    private final long maxBytes;
+    private final ChatLog log;
+
+    History(int lines, long maxBytes, ChatLog log) {
+        this.lines = lines;
+        this.maxBytes = maxBytes;
+        this.log = log;
+    }
+
+    // Numbers and records a chat line for the room named name (room is null if it has no one on
+    // this node), then hands deliver the frame to fan out. All three happen under the room's
+    // lock, so members get a room's lines in the order they are numbered and stored; fanout only
+    // queues frames. The one step every room shares is ChatLog.append, which numbers and queues.
+    void post(String name, Room room, Message msg, Consumer<Frame> deliver) {
+        long now = System.currentTimeMillis();
+        Ring ring = room != null ? ring(room) : null;
+        Object lock = ring != null ? ring : room;
+        if (lock == null) {
+            deliver.accept(new Frame(msg, log.append(name, msg.sender, msg.content, now)));
+            return;
+        }
+        synchronized (lock) {
+            long seq = log.append(name, msg.sender, msg.content, now);
+            if (ring != null) ring.add(seq, msg.sender, msg.content, now);
+            deliver.accept(new Frame(msg, seq));
+        }
+    }
+
+    // Runs goLive (which makes cli a member that post()'s deliveries reach) and queues the room's
+    // backlog. Lines already in the backlog whose fanout is still under way are skipped for cli
+    // by seq (see Room.bcast), so it gets each line once: in the replay or live.
+    void replay(Room room, ClientHandler cli, Runnable goLive) {
+        Ring ring = ring(room);
+        if (ring == null) {
+            goLive.run();
+            return;
+        }
+        synchronized (ring) {
+            goLive.run();
+            cli.setReplayedTo(ring.lastSeq);
+            if (ring.count > 0) cli.sendFrame(ring.frame(room.name));
+        }
+    }
+
+    // Null when history is off.
+    private Ring ring(Room room) {
+        if (lines <= 0) return null;
+        Ring r = room.history;
+        if (r != null) return r;
+        synchronized (room) {
+            if (room.history == null) room.history = new Ring(lines, maxBytes);
+            return room.history;
+        }
+    }
+
+    static final class Ring {
+        private final String[] from;
+        private final String[] text;
+        private final long[] at;
+        private final long maxBytes;
+        private int head;   // oldest line
+        private int count;
+        private long bytes;
+        private long lastSeq = -1;
+        // Replay frame for the current contents, shared by everyone who logs in until the next line.
+        private Frame cached;
+
+        Ring(int lines, long maxBytes) {
+            this.from = new String[lines];
+            this.text = new String[lines];
+            this.at = new long[lines];
+            this.maxBytes = maxBytes;
+        }
+
+        void add(long seq, String sender, String content, long time) {
+            lastSeq = seq;
+            cached = null;
+            long cost = cost(sender, content);
+            if (cost > maxBytes) return;
+            while (count > 0 && (count == from.length || bytes + cost > maxBytes)) evict();
+            int slot = (head + count) % from.length;
+            from[slot] = sender;
+            text[slot] = content;
+            at[slot] = time;
+            count++;
+            bytes += cost;
+        }
+
+        private void evict() {
+            bytes -= cost(from[head], text[head]);
+            from[head] = null;
+            text[head] = null;
+            head = (head + 1) % from.length;
+            count--;
+        }
+
+        private static long cost(String sender, String content) {
+            return LINE_OVERHEAD + 2L * ((sender == null ? 0 : sender.length()) + (content == null ? 0 : content.length()));
+        }
+
+        // Oldest first, as {sender, text, millis} triples.
+        Frame frame(String room) {
+            if (cached != null) return cached;
+            String[] out = new String[3 * count];
+            for (int i = 0; i < count; i++) {
+                int slot = (head + i) % from.length;
+                out[3 * i] = from[slot];
+                out[3 * i + 1] = text[slot];
+                out[3 * i + 2] = Long.toString(at[slot]);
+            }
+            Message msg = new Message(Message.CHAT_HISTORY, "Server", (Object) out);
+            msg.content = room;
+            msg.fileSize = lastSeq + 1;
+            cached = new Frame(msg);
+            return cached;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package Server;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Server logging: one line per event, "time LEVEL category message key=value...", written by a
+// background thread so a caller never waits on stdout. Events go into a fixed ring of reused
+// slots; a caller that finds it full drops its event rather than block, and each category is
+// held to --lograte INFO and DEBUG lines a second; warnings and errors are never rate limited.
+// Drops and suppressed lines are reported as they happen. The writer sleeps while the ring is
+// empty and is woken by whoever publishes into it.
+//
+// A Throwable value on an ERROR line is followed by its stack trace.
+//
+// Per-message events (chat, direct messages) are DEBUG; chat text is only included with
+// --logchat. Wrap calls on hot paths in on() so that nothing is boxed when the level is off.
+final class Log {
+    enum Level { DEBUG, INFO, WARN, ERROR }
+
+    enum Cat {
+        SERVER, CONN, LOGIN, CHAT, ROOM, XFER, STORE, CLUSTER;
+
+        final String tag = name().toLowerCase();
+        private final AtomicLong window = new AtomicLong();
+        private final AtomicLong used = new AtomicLong();
+        private final LongAdder suppressed = new LongAdder();
+
+        // Fixed one-second windows; the first rate lines of each get through.
+        private boolean allow() {
+            long now = System.nanoTime() / 1_000_000_000L;
+            long w = window.get();
+            if (w != now && window.compareAndSet(w, now)) used.set(0);
+            if (used.incrementAndGet() <= rate) return true;
+            suppressed.increment();
+            return false;
+        }
+    }
+
+    private static final int PAIRS = 4;
+    private static final int SIZE = 1 << 14;
+    private static final long REPORT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final class Slot {
+        volatile long seq = -1;   // the claim this slot was last published for
+        long time;
+        Level level;
+        Cat cat;
+        String msg;
+        final String[] keys = new String[PAIRS];
+        final Object[] vals = new Object[PAIRS];
+    }
+
+    private static volatile Level min = Level.INFO;
+    private static volatile int rate = 200;
+    private static volatile boolean chat = false;
+
+    private static final Slot[] ring = new Slot[SIZE];
+    private static final AtomicLong claimed = new AtomicLong();
+    private static volatile long consumed;
+    private static final LongAdder dropped = new LongAdder();
+    private static final Thread writer = new Thread(Log::writeLoop, "log-writer");
+
+    static {
+        for (int i = 0; i < SIZE; i++) ring[i] = new Slot();
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::awaitDrained, "log-flush"));
+    }
+
+    private Log() {}
+
+    static void configure(Level level, int perSecond, boolean logChat) {
+        min = level;
+        rate = Math.max(1, perSecond);
+        chat = logChat;
+    }
+
+    static boolean on(Level level) {
+        return level.compareTo(min) >= 0;
+    }
+
+    // Whether chat text may be logged at all.
+    static boolean chatText() {
+        return chat;
+    }
+
+    static void debug(Cat c, String m) { log(Level.DEBUG, c, m, null, null, null, null, null, null, null, null); }
+    static void debug(Cat c, String m, String k1, Object v1) { log(Level.DEBUG, c, m, k1, v1, null, null, null, null, null, null); }
+    static void debug(Cat c, String m, String k1, Object v1, String k2, Object v2) { log(Level.DEBUG, c, m, k1, v1, k2, v2, null, null, null, null); }
+    static void debug(Cat c, String m, String k1, Object v1, String k2, Object v2, String k3, Object v3) { log(Level.DEBUG, c, m, k1, v1, k2, v2, k3, v3, null, null); }
+    static void debug(Cat c, String m, String k1, Object v1, String k2, Object v2, String k3, Object v3, String k4, Object v4) { log(Level.DEBUG, c, m, k1, v1, k2, v2, k3, v3, k4, v4); }
+
+    static void info(Cat c, String m) { log(Level.INFO, c, m, null, null, null, null, null, null, null, null); }
+    static void info(Cat c, String m, String k1, Object v1) { log(Level.INFO, c, m, k1, v1, null, null, null, null, null, null); }
+    static void info(Cat c, String m, String k1, Object v1, String k2, Object v2) { log(Level.INFO, c, m, k1, v1, k2, v2, null, null, null, null); }
+    static void info(Cat c, String m, String k1, Object v1, String k2, Object v2, String k3, Object v3) { log(Level.INFO, c, m, k1, v1, k2, v2, k3, v3, null, null); }
+    static void info(Cat c, String m, String k1, Object v1, String k2, Object v2, String k3, Object v3, String k4, Object v4) { log(Level.INFO, c, m, k1, v1, k2, v2, k3, v3, k4, v4); }
+
+    static void warn(Cat c, String m) { log(Level.WARN, c, m, null, null, null, null, null, null, null, null); }
+    static void warn(Cat c, String m, String k1, Object v1) { log(Level.WARN, c, m, k1, v1, null, null, null, null, null, null); }
+    static void warn(Cat c, String m, String k1, Object v1, String k2, Object v2) { log(Level.WARN, c, m, k1, v1, k2, v2, null, null, null, null); }
+    static void warn(Cat c, String m, String k1, Object v1, String k2, Object v2, String k3, Object v3) { log(Level.WARN, c, m, k1, v1, k2, v2, k3, v3, null, null); }
+    static void warn(Cat c, String m, String k1, Object v1, String k2, Object v2, String k3, Object v3, String k4, Object v4) { log(Level.WARN, c, m, k1, v1, k2, v2, k3, v3, k4, v4); }
+
+    static void error(Cat c, String m) { log(Level.ERROR, c, m, null, null, null, null, null, null, null, null); }
+    static void error(Cat c, String m, String k1, Object v1) { log(Level.ERROR, c, m, k1, v1, null, null, null, null, null, null); }
+    static void error(Cat c, String m, String k1, Object v1, String k2, Object v2) { log(Level.ERROR, c, m, k1, v1, k2, v2, null, null, null, null); }
+    static void error(Cat c, String m, String k1, Object v1, String k2, Object v2, String k3, Object v3) { log(Level.ERROR, c, m, k1, v1, k2, v2, k3, v3, null, null); }
+    static void error(Cat c, String m, String k1, Object v1, String k2, Object v2, String k3, Object v3, String k4, Object v4) { log(Level.ERROR, c, m, k1, v1, k2, v2, k3, v3, k4, v4); }
+
+    private static void log(Level level, Cat cat, String msg, String k1, Object v1, String k2, Object v2,
+                            String k3, Object v3, String k4, Object v4) {
+        if (!on(level) || (level.compareTo(Level.WARN) < 0 && !cat.allow())) return;
+        long seq;
+        do {
+            seq = claimed.get();
+            if (seq - consumed >= SIZE) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(seq, seq + 1));
+        Slot s = ring[(int) (seq & (SIZE - 1))];
+        s.time = System.currentTimeMillis();
+        s.level = level;
+        s.cat = cat;
+        s.msg = msg;
+        s.keys[0] = k1; s.vals[0] = v1;
+        s.keys[1] = k2; s.vals[1] = v2;
+        s.keys[2] = k3; s.vals[2] = v3;
+        s.keys[3] = k4; s.vals[3] = v4;
+        s.seq = seq;
+        // The writer has caught up with everything before this line, so it may be asleep.
+        if (seq == consumed) LockSupport.unpark(writer);
+    }
+
+    // --- writer ---
+
+    private static void writeLoop() {
+        StringBuilder out = new StringBuilder(64 * 1024);
+        StringBuilder err = new StringBuilder(4 * 1024);
+        long next = consumed;
+        long lastReport = System.nanoTime();
+        long lastDropped = 0;
+        while (true) {
+            int n = 0;
+            Slot s;
+            while (n < 1024 && (s = ring[(int) (next & (SIZE - 1))]).seq == next) {
+                format(s, s.level.compareTo(Level.WARN) >= 0 ? err : out);
+                s.msg = null;
+                for (int i = 0; i < PAIRS; i++) s.vals[i] = null;
+                consumed = ++next;
+                n++;
+            }
+            flush(out, System.out);
+            flush(err, System.err);
+            long now = System.nanoTime();
+            if (now - lastReport >= REPORT_NANOS) {
+                lastReport = now;
+                long d = dropped.sum();
+                if (d > lastDropped) {
+                    System.err.println(Instant.ofEpochMilli(System.currentTimeMillis()) + " WARN  server  log buffer full; lines dropped n=" + (d - lastDropped));
+                    lastDropped = d;
+                }
+                for (Cat c : Cat.values()) {
+                    long sup = c.suppressed.sumThenReset();
+                    if (sup > 0) System.err.println(Instant.ofEpochMilli(System.currentTimeMillis()) + " WARN  server  log rate limit hit category=" + c.tag + " suppressed=" + sup);
+                }
+            }
+            // Publishers check consumed after publishing, so either this sees their line or
+            // they see the writer caught up and unpark it; the timeout is for the reports.
+            if (n == 0) LockSupport.parkNanos(REPORT_NANOS);
+        }
+    }
+
+    private static void flush(StringBuilder sb, PrintStream to) {
+        if (sb.length() == 0) return;
+        to.print(sb);
+        to.flush();
+        sb.setLength(0);
+    }
+
+    private static void format(Slot s, StringBuilder sb) {
+        sb.append(Instant.ofEpochMilli(s.time)).append(' ');
+        sb.append(s.level);
+        for (int i = s.level.name().length(); i < 6; i++) sb.append(' ');
+        sb.append(s.cat.tag);
+        for (int i = s.cat.tag.length(); i < 8; i++) sb.append(' ');
+        sb.append(s.msg);
+        for (int i = 0; i < PAIRS; i++) {
+            if (s.keys[i] == null) continue;
+            sb.append(' ').append(s.keys[i]).append('=');
+            value(String.valueOf(s.vals[i]), sb);
+        }
+        sb.append('\n');
+        if (s.level != Level.ERROR) return;
+        for (int i = 0; i < PAIRS; i++) {
+            if (s.vals[i] instanceof Throwable) stack((Throwable) s.vals[i], sb);
+        }
+    }
+
+    private static void stack(Throwable t, StringBuilder sb) {
+        StringWriter w = new StringWriter();
+        t.printStackTrace(new PrintWriter(w));
+        for (String line : w.toString().split("\r?\n")) {
+            if (!line.isEmpty()) sb.append("    ").append(line.trim()).append('\n');
+        }
+    }
+
+    // Quoted if it would otherwise not read back as one value.
+    private static void value(String v, StringBuilder sb) {
+        boolean plain = !v.isEmpty();
+        for (int i = 0; i < v.length() && plain; i++) {
+            char c = v.charAt(i);
+            plain = c > ' ' && c != '"' && c != '=';
+        }
+        if (plain) {
+            sb.append(v);
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < v.length(); i++) {
+            char c = v.charAt(i);
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c == '\n') sb.append("\\n");
+            else if (c < ' ') sb.append(' ');
+            else sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    // Gives the writer up to a second to empty the ring when the JVM exits.
+    private static void awaitDrained() {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (consumed < claimed.get() && System.nanoTime() < deadline) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package Server;
+
+import Shared.Histogram;
+import Shared.Message;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+// Server-wide counters and histograms. Recording is a LongAdder add or a Histogram increment,
+// so it is cheap enough for every message and never allocates; everything is read back through
+// report(), which serves both JMX and ADMIN_STATS. Counts run from startup and are never reset.
+//
+// Chat latency is the time from building a CHAT_MESSAGE or DIRECT_MESSAGE frame (right after
+// the sender's line is decoded) until a connection's writer hands it to the socket, so it covers
+// history, fanout and time spent queued. Fanout is the time one broadcast takes to queue a frame
+// for every member of a room; queue depth is sampled on every offer to an outbound queue.
+final class Metrics implements MetricsMBean {
+    private static final int TYPES = 32;
+    private static final String[] TYPE_NAMES = typeNames();
+    private static final long STARTED = System.currentTimeMillis();
+
+    static final LongAdder connsOpen = new LongAdder();
+    static final LongAdder connsTotal = new LongAdder();
+    static final LongAdder loginsOk = new LongAdder();
+    static final LongAdder loginsFailed = new LongAdder();
+    static final LongAdder bytesIn = new LongAdder();
+    static final LongAdder bytesOut = new LongAdder();
+    private static final LongAdder[] in = adders();
+    private static final LongAdder[] out = adders();
+    static final Histogram chatLatency = new Histogram();
+    static final Histogram fanout = new Histogram();
+    static final Histogram queueDepth = new Histogram();
+
+    private Metrics() {}
+
+    static void msgIn(int type) {
+        in[slot(type)].increment();
+    }
+
+    // Called by writers for each item as it goes to the socket: type is -1 for raw file bytes,
+    // born is when its frame was built (System.nanoTime(), 0 if unknown).
+    static void wrote(int type, long born) {
+        if (type < 0) return;
+        out[slot(type)].increment();
+        if (born != 0 && (type == Message.CHAT_MESSAGE || type == Message.DIRECT_MESSAGE)) {
+            chatLatency.record(System.nanoTime() - born);
+        }
+    }
+
+    static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(new Metrics(), MetricsMBean.class),
+                    new ObjectName("Server:type=Metrics"));
+        } catch (JMException e) {
+            Log.warn(Log.Cat.SERVER, "could not register metrics with JMX", "error", e.getMessage());
+        }
+    }
+
+    static List<String> report() {
+        List<String> lines = new ArrayList<>();
+        lines.add("uptime_s=" + (System.currentTimeMillis() - STARTED) / 1000);
+        lines.add("conns_open=" + connsOpen.sum());
+        lines.add("conns_total=" + connsTotal.sum());
+        lines.add("sessions=" + Server.sessions.size());
+        lines.add("logins_ok=" + loginsOk.sum());
+        lines.add("logins_failed=" + loginsFailed.sum());
+        lines.add("msgs_in=" + sum(in));
+        lines.add("msgs_out=" + sum(out));
+        byType(lines, "in.", in);
+        byType(lines, "out.", out);
+        lines.add("bytes_in=" + bytesIn.sum());
+        lines.add("bytes_out=" + bytesOut.sum());
+        times(lines, "chat_latency_us", chatLatency);
+        times(lines, "fanout_us", fanout);
+        lines.add(String.format(Locale.ROOT, "queue_depth=p50:%d p99:%d p999:%d max:%d n:%d", queueDepth.percentile(0.5),
+                queueDepth.percentile(0.99), queueDepth.percentile(0.999), queueDepth.max(), queueDepth.count()));
+        return lines;
+    }
+
+    private static void byType(List<String> lines, String prefix, LongAdder[] counts) {
+        for (int i = 0; i < TYPES; i++) {
+            long n = counts[i].sum();
+            if (n > 0) lines.add(prefix + TYPE_NAMES[i] + "=" + n);
+        }
+    }
+
+    private static void times(List<String> lines, String key, Histogram h) {
+        lines.add(String.format(Locale.ROOT, "%s=p50:%d p99:%d p999:%d max:%d n:%d", key, micros(h.percentile(0.5)),
+                micros(h.percentile(0.99)), micros(h.percentile(0.999)), micros(h.max()), h.count()));
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static long sum(LongAdder[] counts) {
+        long n = 0;
+        for (LongAdder a : counts) n += a.sum();
+        return n;
+    }
+
+    // Anything out of range is counted in the last slot.
+    private static int slot(int type) {
+        return type >= 0 && type < TYPES - 1 ? type : TYPES - 1;
+    }
+
+    private static LongAdder[] adders() {
+        LongAdder[] a = new LongAdder[TYPES];
+        for (int i = 0; i < TYPES; i++) a[i] = new LongAdder();
+        return a;
+    }
+
+    // The constant names from Message, so reports say CHAT_MESSAGE rather than 3.
+    private static String[] typeNames() {
+        String[] names = new String[TYPES];
+        for (int i = 0; i < TYPES; i++) names[i] = i < TYPES - 1 ? Integer.toString(i) : "OTHER";
+        for (Field f : Message.class.getFields()) {
+            if (f.getType() != int.class || !Modifier.isStatic(f.getModifiers())) continue;
+            try {
+                int type = f.getInt(null);
+                if (type >= 0 && type < TYPES - 1) names[type] = f.getName();
+            } catch (IllegalAccessException ignored) {
+            }
+        }
+        return names;
+    }
+
+    @Override public long getConnectionsOpen() { return connsOpen.sum(); }
+    @Override public long getConnectionsTotal() { return connsTotal.sum(); }
+    @Override public long getLoginsOk() { return loginsOk.sum(); }
+    @Override public long getLoginsFailed() { return loginsFailed.sum(); }
+    @Override public long getMessagesIn() { return sum(in); }
+    @Override public long getMessagesOut() { return sum(out); }
+    @Override public long getBytesIn() { return bytesIn.sum(); }
+    @Override public long getBytesOut() { return bytesOut.sum(); }
+    @Override public long getChatLatencyP50() { return micros(chatLatency.percentile(0.5)); }
+    @Override public long getChatLatencyP99() { return micros(chatLatency.percentile(0.99)); }
+    @Override public long getChatLatencyP999() { return micros(chatLatency.percentile(0.999)); }
+    @Override public long getFanoutP50() { return micros(fanout.percentile(0.5)); }
+    @Override public long getFanoutP99() { return micros(fanout.percentile(0.99)); }
+    @Override public long getFanoutP999() { return micros(fanout.percentile(0.999)); }
+    @Override public long getQueueDepthP50() { return queueDepth.percentile(0.5); }
+    @Override public long getQueueDepthP99() { return queueDepth.percentile(0.99); }
+    @Override public long getQueueDepthP999() { return queueDepth.percentile(0.999); }
+    @Override public long getQueueDepthMax() { return queueDepth.max(); }
+    @Override public String[] getReport() { return report().toArray(new String[0]); }
+}
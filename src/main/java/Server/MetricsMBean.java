@@ -0,0 +1,25 @@
+package Server;
+
+// What Metrics shows over JMX (as Server:type=Metrics). Times are in microseconds.
+public interface MetricsMBean {
+    long getConnectionsOpen();
+    long getConnectionsTotal();
+    long getLoginsOk();
+    long getLoginsFailed();
+    long getMessagesIn();
+    long getMessagesOut();
+    long getBytesIn();
+    long getBytesOut();
+    long getChatLatencyP50();
+    long getChatLatencyP99();
+    long getChatLatencyP999();
+    long getFanoutP50();
+    long getFanoutP99();
+    long getFanoutP999();
+    long getQueueDepthP50();
+    long getQueueDepthP99();
+    long getQueueDepthP999();
+    long getQueueDepthMax();
+    // Every counter and percentile as key=value lines, the same as an ADMIN_STATS reply.
+    String[] getReport();
+}
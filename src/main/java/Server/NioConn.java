@@ -0,0 +1,448 @@
+package Server;
+
+import Shared.Message;
+import Shared.MsgCodec;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+class NioConn implements Conn {
+    private static final int IN_BUF = 8192;
+
+    private final SocketChannel ch;
+    private final SelectionKey key;
+    private final NioLoop loop;
+    private final String addr;
+    private ClientHandler handler;
+
+    private ByteBuffer in = ByteBuffer.allocate(IN_BUF);
+    private boolean gotMagic = false;
+    private volatile int codec = MsgCodec.V_JAVA;
+
+    // Set by recvFile() and finishUpload(). upPos and upMd are only touched by offloaded writes.
+    private FileChannel upFile;
+    private long upPos;
+    private long upLeft;
+    private Consumer<IOException> upDone;
+    private MessageDigest upMd;
+    // Loop thread only: work handed to the I/O pool has not reported back yet.
+    private boolean busy;
+
+    private final OutQueue outQ;
+    private final AtomicBoolean flushPending = new AtomicBoolean();
+    private final AtomicBoolean timerPending = new AtomicBoolean();
+    // Frames gathered for one write: out[outOff, outOff + outLen).
+    private final ByteBuffer[] out = new ByteBuffer[Server.config.batch];
+    private int outOff, outLen;
+    // A raw file item polled while gathering frames; it goes out after them.
+    private OutQueue.Item held;
+    private FileRegion curFile;
+    private boolean closeAfterFlush = false;
+    private volatile boolean closed = false;
+
+    private interface IoTask {
+        void run() throws IOException;
+    }
+
+    private static class FileRegion {
+        final FileChannel file;
+        long pos;
+        final long end;
+
+        FileRegion(FileChannel file, long off, long len) {
+            this.file = file;
+            this.pos = off;
+            this.end = off + len;
+        }
+    }
+
+    NioConn(SocketChannel ch, SelectionKey key, NioLoop loop) throws IOException {
+        this.ch = ch;
+        this.key = key;
+        this.loop = loop;
+        this.addr = ch.socket().getInetAddress().toString();
+        this.outQ = new OutQueue(Server.config.outQueueCap, Server.config.slowPolicy, Server.config.spillBytes, addr);
+    }
+
+    void setHandler(ClientHandler handler) {
+        this.handler = handler;
+    }
+
+    void onReadable() {
+        if (busy) return;
+        try {
+            if (upFile != null && in.position() == 0) {
+                readUpload();
+                return;
+            }
+            int n = ch.read(in);
+            if (n == -1) {
+                close();
+                return;
+            }
+            Metrics.bytesIn.add(n);
+            in.flip();
+            try {
+                drainIn();
+            } finally {
+                in.compact();
+            }
+        } catch (IOException e) {
+            Log.warn(Log.Cat.CONN, "read error", "client", addr, "error", e.getMessage());
+            close();
+        }
+    }
+
+    private void drainIn() throws IOException {
+        while (!closed && !busy) {
+            if (upFile != null) {
+                if (!in.hasRemaining()) return;
+                int take = (int) Math.min(in.remaining(), upLeft);
+                ByteBuffer part = ByteBuffer.allocate(take);
+                part.put(in.slice().limit(take)).flip();
+                in.position(in.position() + take);
+                upLeft -= take;
+                boolean last = upLeft == 0;
+                offload(() -> {
+                    writeUpload(part);
+                    if (last) finishUpload(null);
+                });
+                continue;
+            }
+            if (!gotMagic) {
+                if (in.remaining() < 4) return;
+                if (in.getInt() != MsgCodec.MAGIC) throw new IOException("Unsupported protocol (NIO engine requires framed clients).");
+                gotMagic = true;
+                continue;
+            }
+            if (in.remaining() < 4) return;
+            int len = in.getInt(in.position());
+            MsgCodec.checkLen(len);
+            if (in.remaining() < 4 + len) {
+                if (in.capacity() < 4 + len) growIn(4 + len);
+                return;
+            }
+            in.position(in.position() + 4);
+            Message msg = MsgCodec.decode(in.array(), in.arrayOffset() + in.position(), len, codec);
+            in.position(in.position() + len);
+            if (handler.touchesDisk(msg)) {
+                offload(() -> handler.recv(msg));
+                continue;
+            }
+            handler.recv(msg);
+            if (!handler.keepOpen()) {
+                closeAfterFlush();
+                return;
+            }
+        }
+    }
+
+    // Once the frame buffer is drained, upload bytes skip it and land via a pooled direct buffer.
+    private void readUpload() throws IOException {
+        ByteBuffer buf = FileXfer.takeBuf();
+        buf.clear().limit((int) Math.min(buf.capacity(), upLeft));
+        int n;
+        try {
+            n = ch.read(buf);
+        } catch (IOException e) {
+            FileXfer.giveBuf(buf);
+            throw e;
+        }
+        if (n <= 0) {
+            FileXfer.giveBuf(buf);
+            if (n == -1) close();
+            return;
+        }
+        Metrics.bytesIn.add(n);
+        buf.flip();
+        upLeft -= n;
+        boolean last = upLeft == 0;
+        offload(() -> {
+            try {
+                writeUpload(buf);
+            } finally {
+                FileXfer.giveBuf(buf);
+            }
+            if (last) finishUpload(null);
+        });
+    }
+
+    private void writeUpload(ByteBuffer data) throws IOException {
+        upMd.update(data.duplicate());
+        while (data.hasRemaining()) upPos += upFile.write(data, upPos);
+    }
+
+    // Runs work that may block on the disk on the shared I/O pool. Until it reports back nothing
+    // more is read or parsed for this connection, so the handler still sees one frame at a time
+    // in order, and a slow disk pushes back on the client through TCP instead of piling up here.
+    private void offload(IoTask task) {
+        busy = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        try {
+            loop.io.execute(() -> {
+                IOException err = null;
+                try {
+                    task.run();
+                } catch (IOException e) {
+                    err = e;
+                } catch (RuntimeException e) {
+                    Log.error(Log.Cat.CONN, "unexpected error; closing connection", "client", addr, "error", e);
+                    err = new IOException(e.toString(), e);
+                }
+                IOException failed = err;
+                loop.execute(() -> resume(failed));
+            });
+        } catch (RejectedExecutionException e) {
+            resume(new IOException("I/O pool is shut down", e));
+        }
+    }
+
+    // Back on the loop once offloaded work is done: picks up where drainIn() stopped.
+    private void resume(IOException err) {
+        busy = false;
+        if (err != null && !closed) {
+            Log.warn(Log.Cat.CONN, "read error", "client", addr, "error", err.getMessage());
+            if (upFile != null) finishUpload(err);
+            close();
+        }
+        if (closed) {
+            released();
+            return;
+        }
+        if (!handler.keepOpen()) {
+            closeAfterFlush();
+            return;
+        }
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        in.flip();
+        try {
+            drainIn();
+        } catch (IOException e) {
+            Log.warn(Log.Cat.CONN, "read error", "client", addr, "error", e.getMessage());
+            close();
+        } finally {
+            in.compact();
+        }
+    }
+
+    private void growIn(int need) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(need, in.capacity() * 2));
+        bigger.put(in);
+        bigger.flip();
+        in = bigger;
+    }
+
+    @Override
+    public void send(Frame frame) throws IOException {
+        OutQueue.Item it = OutQueue.Item.msg(frame, frame.bytes(codec));
+        if (!outQ.offer(it)) {
+            overflow();
+            return;
+        }
+        scheduleFlush(it.urgent());
+    }
+
+    @Override
+    public void setCodec(int ver) {
+        codec = ver;
+    }
+
+    @Override
+    public void sendFile(Message start, BlobStore.Pin pin, long off, long len) throws IOException {
+        Frame head = new Frame(start);
+        if (!outQ.offer(OutQueue.Item.msg(head, head.bytes(codec)), OutQueue.Item.file(pin, off, len))) {
+            overflow();
+            return;
+        }
+        scheduleFlush(true);
+    }
+
+    @Override
+    public void sendChunks(Message start, String id, BlobStore.Pin pin, long size, long off, int chunk, boolean zip) throws IOException {
+        send(new Frame(start));
+        outQ.addXfer(new OutQueue.Xfer(id, pin, size, off, chunk, zip));
+        scheduleFlush(false);
+    }
+
+    @Override
+    public OutQueue outQueue() {
+        return outQ;
+    }
+
+    // With --batch, a frame that neither fills the batch nor is urgent waits out the window so
+    // whatever follows it can share the write.
+    private void scheduleFlush(boolean urgent) {
+        int batch = Server.config.batch;
+        if (batch > 1 && !urgent && outQ.depth() < batch) {
+            if (timerPending.compareAndSet(false, true)) loop.schedule(this::onTimer, Server.config.batchNanos);
+            return;
+        }
+        if (flushPending.compareAndSet(false, true)) loop.execute(this::onWritable);
+    }
+
+    private void onTimer() {
+        timerPending.set(false);
+        onWritable();
+    }
+
+    private void overflow() {
+        Log.warn(Log.Cat.CONN, "outbound queue overflow; disconnecting", "client", addr, "stats", outQ.stats());
+        outQ.clear();
+        close();
+    }
+
+    void onWritable() {
+        if (closed) return;
+        flushPending.set(false);
+        try {
+            while (true) {
+                if (outLen == 0 && curFile == null && !nextOut()) break;
+                if (outLen > 0) {
+                    Metrics.bytesOut.add(ch.write(out, outOff, outLen));
+                    while (outLen > 0 && !out[outOff].hasRemaining()) {
+                        out[outOff++] = null;
+                        outLen--;
+                    }
+                    if (outLen > 0) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                } else {
+                    long n = curFile.file.transferTo(curFile.pos, curFile.end - curFile.pos, ch);
+                    curFile.pos += n;
+                    Metrics.bytesOut.add(n);
+                    if (curFile.pos < curFile.end) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    curFile.file.close();
+                    curFile = null;
+                }
+            }
+            if (key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closeAfterFlush) close();
+        } catch (IOException e) {
+            Log.warn(Log.Cat.CONN, "write error", "client", addr, "error", e.getMessage());
+            close();
+        }
+    }
+
+    // Gathers up to --batch queued frames into one write, or sets up the next raw file region.
+    private boolean nextOut() throws IOException {
+        OutQueue.Item it = held != null ? held : outQ.poll();
+        held = null;
+        if (it == null) return false;
+        if (it.file != null) {
+            // The open channel keeps the bytes readable even if the file is unlinked meanwhile.
+            try {
+                curFile = new FileRegion(FileChannel.open(it.file, StandardOpenOption.READ), it.fileOff, it.fileSize);
+            } finally {
+                it.done();
+            }
+            return true;
+        }
+        outOff = 0;
+        out[outLen++] = frameBytes(it);
+        while (outLen < out.length && (it = outQ.poll()) != null) {
+            if (it.file != null) {
+                held = it;
+                break;
+            }
+            out[outLen++] = frameBytes(it);
+        }
+        outQ.wrote(outLen);
+        return true;
+    }
+
+    // Chat latency is taken here, as the frame joins a gathering write.
+    private ByteBuffer frameBytes(OutQueue.Item it) throws IOException {
+        Metrics.wrote(it.type, it.born);
+        return it.xfer != null ? it.chunk(codec) : it.bytes;
+    }
+
+    @Override
+    public void recvFile(Path path, long size, MessageDigest md, Consumer<IOException> done) {
+        try {
+            upFile = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            done.accept(e);
+            return;
+        }
+        upPos = 0;
+        upLeft = size;
+        upDone = done;
+        upMd = md;
+        if (size <= 0) finishUpload(null);
+    }
+
+    private void finishUpload(IOException err) {
+        FileChannel file = upFile;
+        Consumer<IOException> done = upDone;
+        upFile = null;
+        upDone = null;
+        upMd = null;
+        try {
+            file.close();
+        } catch (IOException e) {
+            if (err == null) err = e;
+        }
+        done.accept(err);
+    }
+
+    private void closeAfterFlush() {
+        closeAfterFlush = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        onWritable();
+    }
+
+    @Override
+    public String addr() {
+        return addr;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() {
+        if (!loop.inLoop()) {
+            loop.execute(this::close);
+            return;
+        }
+        if (closed) return;
+        closed = true;
+        key.cancel();
+        try {
+            ch.close();
+        } catch (IOException e) {
+            Log.warn(Log.Cat.CONN, "error closing connection", "client", addr, "error", e.getMessage());
+        }
+        outQ.clear();
+        if (held != null) {
+            held.done();
+            held = null;
+        }
+        if (curFile != null) {
+            try { curFile.file.close(); } catch (IOException ignored) {}
+            curFile = null;
+        }
+        // With work still out on the I/O pool, resume() finishes this once it is back.
+        if (!busy) released();
+    }
+
+    private void released() {
+        if (upFile != null) finishUpload(new EOFException("Client closed connection during file upload."));
+        handler.cleanup();
+    }
+}
@@ -0,0 +1,146 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+class NioLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();   // loop thread only
+    private final SessionRegistry sessions;
+    // Shared by all loops for handler work that may block on the disk.
+    final Executor io;
+    private Thread thread;
+
+    private static final class Timer implements Comparable<Timer> {
+        final long due;
+        final Runnable task;
+
+        Timer(long due, Runnable task) {
+            this.due = due;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer o) {
+            return Long.compare(due, o.due);
+        }
+    }
+
+    NioLoop(SessionRegistry sessions, Executor io) throws IOException {
+        this.selector = Selector.open();
+        this.sessions = sessions;
+        this.io = io;
+    }
+
+    void start(String name) {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inLoop()) selector.wakeup();
+    }
+
+    // Runs task on the loop after delayNanos, give or take the selector's millisecond tick.
+    void schedule(Runnable task, long delayNanos) {
+        long due = System.nanoTime() + delayNanos;
+        execute(() -> timers.add(new Timer(due, task)));
+    }
+
+    void register(SocketChannel ch) {
+        execute(() -> {
+            try {
+                SelectionKey key = ch.register(selector, SelectionKey.OP_READ);
+                NioConn conn = new NioConn(ch, key, this);
+                conn.setHandler(new ClientHandler(conn, sessions));
+                key.attach(conn);
+            } catch (IOException e) {
+                Log.warn(Log.Cat.CONN, "error registering client channel", "error", e.getMessage());
+                try { ch.close(); } catch (IOException ignored) {}
+            }
+        });
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            runSafely(task);
+        }
+    }
+
+    private void runTimers() {
+        long now = System.nanoTime();
+        while (!timers.isEmpty() && timers.peek().due - now <= 0) {
+            runSafely(timers.poll().task);
+        }
+    }
+
+    // A task that throws is logged and dropped so the ones queued behind it still run.
+    private static void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            Log.error(Log.Cat.SERVER, "event loop task failed", "error", e, "at", where(e));
+        }
+    }
+
+    // A bug triggered by one connection closes that connection rather than failing the loop,
+    // which would otherwise hit the same error on every select.
+    private static void dispatch(SelectionKey key, NioConn conn) {
+        try {
+            if (key.isReadable()) conn.onReadable();
+            if (key.isValid() && key.isWritable()) conn.onWritable();
+        } catch (RuntimeException e) {
+            Log.error(Log.Cat.CONN, "unexpected error; closing connection", "client", conn.addr(), "error", e, "at", where(e));
+            conn.close();
+        }
+    }
+
+    private static StackTraceElement where(Throwable e) {
+        StackTraceElement[] st = e.getStackTrace();
+        return st.length > 0 ? st[0] : null;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                if (timers.isEmpty()) {
+                    selector.select();
+                } else {
+                    long left = timers.peek().due - System.nanoTime();
+                    if (left > 0) selector.select(Math.max(1, (left + 999_999) / 1_000_000));
+                    else selector.selectNow();
+                }
+                runTasks();
+                runTimers();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioConn conn = (NioConn) key.attachment();
+                    if (conn == null || !key.isValid()) continue;
+                    dispatch(key, conn);
+                }
+                runTasks();
+            } catch (IOException e) {
+                Log.warn(Log.Cat.SERVER, "event loop error", "error", e.getMessage());
+            } catch (RuntimeException e) {
+                Log.error(Log.Cat.SERVER, "unexpected event loop error", "error", e, "at", where(e));
+            }
+        }
+    }
+}
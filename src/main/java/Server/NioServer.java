@@ -0,0 +1,56 @@
+package Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class NioServer {
+    private final int port;
+    private final NioLoop[] loops;
+
+    NioServer(int port, int loopCount, SessionRegistry sessions) throws IOException {
+        this.port = port;
+        this.loops = new NioLoop[loopCount];
+        ExecutorService io = ioPool(Server.config.ioThreads);
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new NioLoop(sessions, io);
+        }
+    }
+
+    private static ExecutorService ioPool(int threads) {
+        AtomicInteger n = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, task -> {
+            Thread t = new Thread(task, "nio-io-" + n.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    void run() throws IOException {
+        try (ServerSocketChannel srvCh = ServerSocketChannel.open()) {
+            srvCh.bind(new InetSocketAddress(port), Server.ACCEPT_BACKLOG);
+            for (int i = 0; i < loops.length; i++) {
+                loops[i].start("nio-loop-" + i);
+            }
+            Log.info(Log.Cat.SERVER, "started; waiting for clients", "engine", "nio", "loops", loops.length);
+            int next = 0;
+            while (true) {
+                try {
+                    SocketChannel cliCh = srvCh.accept();
+                    cliCh.configureBlocking(false);
+                    cliCh.socket().setTcpNoDelay(true);
+                    if (Server.config.sndBuf > 0) cliCh.socket().setSendBufferSize(Server.config.sndBuf);
+                    Log.debug(Log.Cat.CONN, "accepted", "client", cliCh.socket().getInetAddress());
+                    loops[next].register(cliCh);
+                    next = (next + 1) % loops.length;
+                } catch (IOException e) {
+                    Log.warn(Log.Cat.CONN, "error accepting client connection", "error", e.getMessage());
+                }
+            }
+        }
+    }
+}
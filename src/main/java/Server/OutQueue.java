@@ -0,0 +1,471 @@
+package Server;
+
+import Shared.Message;
+import Shared.MsgCodec;
+import Shared.Zip;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded per-connection outbound queue. Producers (bcast, replies) only enqueue; the
+// connection's writer drains it. What happens once the bound is hit is up to the Policy.
+// Chunked downloads are not queued up front: the writer pulls their next chunk only when no
+// message is waiting, so chat never sits behind more than one chunk. SPILL moves the overflow to
+// a temp file, up to spillMax bytes; past that the connection is dropped as with DISCONNECT.
+final class OutQueue {
+    enum Policy { DROP_OLDEST, DISCONNECT, SPILL }
+
+    static final class Item {
+        final int type;          // message type, or -1 for raw file bytes
+        final Frame frame;       // for legacy object-stream connections
+        final ByteBuffer bytes;  // pre-encoded frame for framed connections
+        final Path file;
+        final long fileOff;      // raw file bytes [fileOff, fileOff + fileSize)
+        final long fileSize;
+        final BlobStore.Pin pin; // keeps file on disk until the item is written or dropped
+        final Xfer xfer;         // chunk [off, off + len) of a chunked download
+        final long off;
+        final int len;
+        final long born;         // when its frame was built (System.nanoTime()), 0 if unknown
+
+        private Item(int type, Frame frame, ByteBuffer bytes, BlobStore.Pin pin, long fileOff, long fileSize, Xfer xfer, long off, int len, long born) {
+            this.type = type;
+            this.frame = frame;
+            this.bytes = bytes;
+            this.file = pin != null ? pin.path : null;
+            this.fileOff = fileOff;
+            this.fileSize = fileSize;
+            this.pin = pin;
+            this.xfer = xfer;
+            this.off = off;
+            this.len = len;
+            this.born = born;
+        }
+
+        static Item msg(Frame frame, ByteBuffer bytes) {
+            return new Item(frame.msg.type, bytes == null ? frame : null, bytes, null, 0, 0, null, 0, 0, frame.born);
+        }
+
+        // Takes over the pin: the writer closes it once the bytes are out, or the queue does if
+        // they never go.
+        static Item file(BlobStore.Pin pin, long off, long len) {
+            return new Item(-1, null, null, pin, off, len, null, 0, 0, 0);
+        }
+
+        void done() {
+            if (pin != null) pin.close();
+        }
+
+        // Replies a client is blocked on; they end a write batch instead of waiting in it.
+        boolean urgent() {
+            switch (type) {
+                case Message.LOGIN_SUCCESS:
+                case Message.LOGIN_FAILURE:
+                case Message.FILE_UPLOAD_READY_FOR_BYTES:
+                case Message.FILE_RANGE:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        // Reads the chunk and frames it with the given codec; only the writer calls this.
+        ByteBuffer chunk(int codec) throws IOException {
+            return xfer.frame(off, len, codec);
+        }
+    }
+
+    static final class Xfer {
+        final String id;
+        final Path file;
+        private final BlobStore.Pin pin;   // closed along with ch
+        final long size;
+        final int chunk;
+        private long next;                 // guarded by the queue lock
+        private volatile boolean failed;
+        private FileChannel ch;
+        private Zip.Out zout;              // set if the chunks are one deflate stream
+
+        Xfer(String id, BlobStore.Pin pin, long size, long off, int chunk, boolean zip) {
+            this.id = id;
+            this.file = pin.path;
+            this.pin = pin;
+            this.size = size;
+            this.next = off;
+            this.chunk = chunk;
+            this.zout = zip ? new Zip.Out() : null;
+        }
+
+        // A read failure is reported to the client as FILE_TRANSFER_ABORT instead of a chunk.
+        private synchronized ByteBuffer frame(long off, int len, int codec) throws IOException {
+            Message m;
+            try {
+                if (failed) throw new IOException("transfer cancelled");
+                if (ch == null) ch = FileChannel.open(file, StandardOpenOption.READ);
+                byte[] data = new byte[len];
+                ByteBuffer buf = ByteBuffer.wrap(data);
+                while (buf.hasRemaining()) {
+                    if (ch.read(buf, off + buf.position()) < 0) throw new EOFException("File " + file.getFileName() + " shrank during transfer.");
+                }
+                m = new Message(Message.FILE_CHUNK, null, id);
+                m.payload = zout != null ? zout.deflate(data) : data;
+                if (off + len == size) {
+                    if (zout != null) Log.info(Log.Cat.XFER, "transfer compressed", "xfer", id, "ratio", zout.ratio());
+                    close();
+                }
+            } catch (IOException e) {
+                Log.warn(Log.Cat.XFER, "aborting transfer", "xfer", id, "file", file.getFileName(), "error", e.getMessage());
+                failed = true;
+                close();
+                m = new Message(Message.FILE_TRANSFER_ABORT, "Server", id);
+            }
+            return MsgCodec.frame(m, codec, false);
+        }
+
+        private synchronized void close() {
+            if (zout != null) {
+                zout.end();
+                zout = null;
+            }
+            pin.close();
+            if (ch == null) return;
+            try { ch.close(); } catch (IOException ignored) {}
+            ch = null;
+        }
+    }
+
+    private static final byte REC_BYTES = 0;
+    private static final byte REC_MSG = 1;
+    private static final byte REC_FILE = 2;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<Item> q = new ArrayDeque<>();
+    private final ArrayDeque<Xfer> xfers = new ArrayDeque<>();
+    private final int cap;
+    private final Policy policy;
+    private final long spillMax;
+    private final String owner;
+    private boolean closed = false;
+
+    private Path spillPath;
+    private DataOutputStream spillOut;
+    private DataInputStream spillIn;
+    private long spillPending;
+    private long spillBytes;   // written to the file since it was created; it is only removed once drained
+    // Pins of the spilled file items, in spill order.
+    private final ArrayDeque<BlobStore.Pin> spillPins = new ArrayDeque<>();
+
+    // Changed under the lock, read without it by stats lines.
+    private volatile long queued, dropped, spilled;
+    private int peak;
+    // Updated by the single writer only.
+    private volatile long writes, written;
+
+    OutQueue(int cap, Policy policy, long spillMax, String owner) {
+        this.cap = Math.max(1, cap);
+        this.policy = policy;
+        this.spillMax = spillMax;
+        this.owner = owner;
+    }
+
+    // Returns false if the slow-consumer policy wants the connection dropped.
+    boolean offer(Item... items) {
+        lock.lock();
+        try {
+            if (closed) {
+                for (Item it : items) it.done();
+                return true;
+            }
+            for (int i = 0; i < items.length; i++) {
+                if (!offerOne(items[i])) {
+                    for (int j = i; j < items.length; j++) items[j].done();
+                    return false;
+                }
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean offerOne(Item it) {
+        if (spillOut != null || (q.size() >= cap && policy == Policy.SPILL)) {
+            try {
+                if (!spill(it)) {
+                    Log.warn(Log.Cat.CONN, "spill file full", "client", owner, "bytes", spillBytes);
+                    dropped++;
+                    return false;
+                }
+                spilled++;
+                queued++;
+                return true;
+            } catch (IOException e) {
+                Log.warn(Log.Cat.CONN, "spill failed", "client", owner, "error", e.getMessage());
+                return false;
+            }
+        }
+        if (q.size() >= cap) {
+            if (policy == Policy.DISCONNECT) {
+                dropped++;
+                return false;
+            }
+            if (!dropOldestChat()) {
+                if (it.type == Message.CHAT_MESSAGE) {
+                    dropped++;
+                    return true;
+                }
+                // Only control traffic is queued; let it exceed the bound but not without limit.
+                if (q.size() >= cap * 2) {
+                    dropped++;
+                    return false;
+                }
+            }
+        }
+        q.add(it);
+        queued++;
+        if (q.size() > peak) peak = q.size();
+        Metrics.queueDepth.record(q.size() + spillPending);
+        return true;
+    }
+
+    // Schedules a chunked download behind everything already queued.
+    void addXfer(Xfer x) {
+        lock.lock();
+        try {
+            if (closed || x.next >= x.size) {
+                x.close();
+                return;
+            }
+            xfers.add(x);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Messages first; otherwise one chunk from the next download, round robin. A closing
+    // queue only flushes messages.
+    private Item next() {
+        refill();
+        Item it = q.poll();
+        if (it != null || closed) return it;
+        Xfer x;
+        while ((x = xfers.poll()) != null) {
+            if (x.failed) continue;
+            long off = x.next;
+            int len = (int) Math.min(x.chunk, x.size - off);
+            x.next += len;
+            if (x.next < x.size) xfers.add(x);
+            return new Item(Message.FILE_CHUNK, null, null, null, 0, 0, x, off, len, 0);
+        }
+        return null;
+    }
+
+    private boolean dropOldestChat() {
+        Iterator<Item> iter = q.iterator();
+        while (iter.hasNext()) {
+            if (iter.next().type == Message.CHAT_MESSAGE) {
+                iter.remove();
+                dropped++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    Item poll() {
+        lock.lock();
+        try {
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks until an item is available; returns null once the queue is closed and drained.
+    Item take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                Item it = next();
+                if (it != null || closed) return it;
+                notEmpty.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Like take(), but gives up and returns null once System.nanoTime() passes deadline.
+    Item poll(long deadline) throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                Item it = next();
+                if (it != null || closed) return it;
+                long left = deadline - System.nanoTime();
+                if (left <= 0) return null;
+                notEmpty.awaitNanos(left);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called by the writer after each socket write with the number of frames it carried.
+    void wrote(int frames) {
+        writes++;
+        written += frames;
+    }
+
+    // Whether poll() could return something now.
+    boolean pending() {
+        lock.lock();
+        try {
+            return !q.isEmpty() || spillPending > 0 || (!closed && !xfers.isEmpty());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int depth() {
+        lock.lock();
+        try {
+            return q.size() + (int) Math.min(Integer.MAX_VALUE, spillPending);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stops accepting items; anything already queued can still be drained.
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drops everything still queued and removes the spill file.
+    void clear() {
+        lock.lock();
+        try {
+            closed = true;
+            for (Item it : q) it.done();
+            q.clear();
+            for (Xfer x : xfers) {
+                x.failed = true;
+                x.close();
+            }
+            xfers.clear();
+            closeSpill();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    String stats() {
+        lock.lock();
+        try {
+            return "queued=" + queued + ", dropped=" + dropped + ", spilled=" + spilled + ", peak=" + peak
+                    + ", writes=" + writes + String.format(Locale.ROOT, ", frames/write=%.2f", written / (double) Math.max(1, writes));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getQueued() { return queued; }
+    long getDropped() { return dropped; }
+    long getSpilled() { return spilled; }
+
+    // Record: int type, byte kind, long born, then the kind's data. False if it would take the
+    // file past spillMax.
+    private boolean spill(Item it) throws IOException {
+        byte[] body = it.file == null && it.bytes == null ? MsgCodec.encode(it.frame.msg, MsgCodec.V_BIN) : null;
+        long size = 4 + 1 + 8 + (it.file != null ? 16 : 4 + (body != null ? body.length : it.bytes.remaining()));
+        if (spillBytes + size > spillMax) return false;
+        if (spillOut == null) {
+            spillPath = Files.createTempFile("outq-", ".bin");
+            spillOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spillPath)));
+            spillIn = new DataInputStream(new BufferedInputStream(Files.newInputStream(spillPath)));
+        }
+        spillOut.writeInt(it.type);
+        if (it.file != null) {
+            spillOut.writeByte(REC_FILE);
+            spillOut.writeLong(it.born);
+            spillPins.add(it.pin);
+            spillOut.writeLong(it.fileOff);
+            spillOut.writeLong(it.fileSize);
+        } else if (it.bytes != null) {
+            ByteBuffer b = it.bytes.duplicate();
+            spillOut.writeByte(REC_BYTES);
+            spillOut.writeLong(it.born);
+            spillOut.writeInt(b.remaining());
+            spillOut.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+        } else {
+            spillOut.writeByte(REC_MSG);
+            spillOut.writeLong(it.born);
+            spillOut.writeInt(body.length);
+            spillOut.write(body);
+        }
+        spillBytes += size;
+        spillPending++;
+        return true;
+    }
+
+    private void refill() {
+        if (spillOut == null || q.size() >= cap / 2) return;
+        try {
+            spillOut.flush();
+            while (spillPending > 0 && q.size() < cap) {
+                int type = spillIn.readInt();
+                byte kind = spillIn.readByte();
+                long born = spillIn.readLong();
+                Item it;
+                if (kind == REC_FILE) {
+                    long off = spillIn.readLong();
+                    it = Item.file(spillPins.poll(), off, spillIn.readLong());
+                } else {
+                    byte[] body = new byte[spillIn.readInt()];
+                    spillIn.readFully(body);
+                    it = kind == REC_BYTES
+                            ? new Item(type, null, ByteBuffer.wrap(body), null, 0, 0, null, 0, 0, born)
+                            : new Item(type, new Frame(MsgCodec.decode(body, 0, body.length, MsgCodec.V_BIN)), null, null, 0, 0, null, 0, 0, born);
+                }
+                q.add(it);
+                spillPending--;
+            }
+        } catch (IOException e) {
+            Log.warn(Log.Cat.CONN, "error reading spilled messages", "client", owner, "error", e.getMessage());
+            spillPending = 0;
+        }
+        if (spillPending == 0) closeSpill();
+    }
+
+    private void closeSpill() {
+        if (spillOut == null) return;
+        try { spillOut.close(); } catch (IOException ignored) {}
+        try { spillIn.close(); } catch (IOException ignored) {}
+        try { Files.deleteIfExists(spillPath); } catch (IOException ignored) {}
+        spillOut = null;
+        spillIn = null;
+        spillPath = null;
+        spillPending = 0;
+        spillBytes = 0;
+        for (BlobStore.Pin p : spillPins) p.close();
+        spillPins.clear();
+    }
+}
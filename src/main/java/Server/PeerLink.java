@@ -0,0 +1,134 @@
+package Server;
+
+import Shared.Caps;
+import Shared.Message;
+import Shared.MsgCodec;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Our half of the link to one peer: a connection we open to its client port and only ever write
+// to. The peer sends its own events over the link it opens to us, so a pair of nodes shares two
+// one-way links and nothing is relayed twice. After every (re)connect the link sends a hello and
+// the state of our local users before anything queued; events raised while it is down are
+// dropped, since that state supersedes them.
+//
+// Chat may queue up to QUEUE frames, control frames (presence and claims) up to MAX_QUEUE. A
+// frame that does not fit is not silently lost: the link is closed, and the reconnect sends
+// the peer our whole state again.
+final class PeerLink implements Runnable {
+    private static final int QUEUE = 16 * 1024;
+    private static final int MAX_QUEUE = 4 * QUEUE;
+    private static final int BATCH = 64;
+    private static final long MAX_BACKOFF_MS = 10_000;
+
+    final String peer;
+    final String host;
+    final int port;
+    private final Cluster cluster;
+    private final BlockingQueue<Frame> queue = new LinkedBlockingQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private volatile SocketChannel ch;
+    private volatile boolean up;
+    // Something was dropped; nothing more is queued until the link has been re-established.
+    private volatile boolean stale;
+
+    PeerLink(String peer, String host, int port, Cluster cluster) {
+        this.peer = peer;
+        this.host = host;
+        this.port = port;
+        this.cluster = cluster;
+    }
+
+    // Under the lock so no frame checked against an earlier link lands in the queue of a new one.
+    synchronized void offer(Frame frame) {
+        if (!up || stale) return;
+        if (queued.incrementAndGet() > (frame.msg.type == Message.PEER ? MAX_QUEUE : QUEUE)) {
+            queued.decrementAndGet();
+            resync(frame);
+            return;
+        }
+        queue.add(frame);
+    }
+
+    private synchronized void resync(Frame frame) {
+        if (stale) return;
+        stale = true;
+        Log.warn(Log.Cat.CLUSTER, "peer link fell behind; dropping it to resend our state", "peer", this, "queued", queued.get(), "type", frame.msg.type);
+        SocketChannel c = ch;
+        try {
+            if (c != null) c.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void run() {
+        long backoff = 500;
+        while (true) {
+            try (SocketChannel ch = SocketChannel.open(new InetSocketAddress(host, port))) {
+                ch.socket().setTcpNoDelay(true);
+                synchronized (this) {
+                    queue.clear();
+                    queued.set(0);
+                    this.ch = ch;
+                    stale = false;
+                    up = true;
+                }
+                // Only now: an event dropped before this point is already in the snapshot, and
+                // one raised after it is queued behind the snapshot.
+                List<Frame> state = cluster.localState();
+                Log.info(Log.Cat.CLUSTER, "peer link up", "peer", this);
+                backoff = 500;
+                pump(ch, state);
+            } catch (IOException e) {
+                if (up) Log.warn(Log.Cat.CLUSTER, "peer link down", "peer", this, "error", e.getMessage());
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                up = false;
+                ch = null;
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(MAX_BACKOFF_MS, backoff * 2);
+        }
+    }
+
+    private void pump(SocketChannel ch, List<Frame> state) throws IOException, InterruptedException {
+        ByteBuffer magic = ByteBuffer.allocate(4).putInt(0, MsgCodec.MAGIC);
+        Message hello = new Message(Message.PEER, cluster.node, Cluster.HELLO);
+        hello.payload = Caps.of(Caps.NODE, cluster.node, Caps.KEY, cluster.key, Caps.CODEC, Integer.toString(MsgCodec.LATEST));
+        write(ch, new ByteBuffer[] { magic, new Frame(hello).bytes(MsgCodec.V_JAVA) }, 2);
+        for (Frame f : state) write(ch, new ByteBuffer[] { f.bytes(MsgCodec.LATEST) }, 1);
+        List<Frame> batch = new ArrayList<>(BATCH);
+        ByteBuffer[] bufs = new ByteBuffer[BATCH];
+        while (true) {
+            batch.add(queue.take());
+            queue.drainTo(batch, BATCH - 1);
+            for (int i = 0; i < batch.size(); i++) bufs[i] = batch.get(i).bytes(MsgCodec.LATEST);
+            queued.addAndGet(-batch.size());
+            write(ch, bufs, batch.size());
+            batch.clear();
+            if (stale) throw new IOException("fell behind");
+        }
+    }
+
+    private static void write(SocketChannel ch, ByteBuffer[] bufs, int n) throws IOException {
+        while (bufs[n - 1].hasRemaining()) ch.write(bufs, 0, n);
+    }
+
+    @Override
+    public String toString() {
+        return peer + "@" + host + ":" + port;
+    }
+}
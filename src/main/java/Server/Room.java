@@ -0,0 +1,113 @@
+package Server;
+
+import Shared.Message;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A named room: the members its chat fans out to, and who is in it as a versioned set that also
+// counts users in this room on other cluster nodes. Every join or leave bumps the version and
+// reaches each member as one USER_PRESENCE delta; members that did not negotiate deltas get the
+// whole USER_LIST_UPDATE as before. A full snapshot is only sent on joining, or when a client
+// asks for one after spotting a gap in the versions.
+final class Room {
+    final String name;
+    // Read without the lock by broadcasts; changed under it so deltas and snapshots agree.
+    private final Set<ClientHandler> members = ConcurrentHashMap.newKeySet();
+    private final Set<String> online = new TreeSet<>();
+    private final Set<String> remote = new HashSet<>();
+    private long version;
+    // Recent chat for replay, made by History on the first line; dropped along with the room.
+    volatile History.Ring history;
+
+    Room(String name) {
+        this.name = name;
+    }
+
+    // The lock keeps versions in the order they are queued to every member.
+    synchronized void join(ClientHandler cli) {
+        members.add(cli);
+        if (online.add(cli.getUname())) {
+            version++;
+            fanout(delta(cli.getUname(), Message.JOINED), cli);
+        }
+        cli.sendFrame(snapshot());
+    }
+
+    synchronized boolean leave(ClientHandler cli) {
+        if (!members.remove(cli)) return false;
+        if (!remote.contains(cli.getUname()) && online.remove(cli.getUname())) {
+            version++;
+            fanout(delta(cli.getUname(), Message.LEFT), null);
+        }
+        return true;
+    }
+
+    // A user in this room on another node; their chat arrives through the cluster, not members.
+    synchronized void addRemote(String uname) {
+        remote.add(uname);
+        if (online.add(uname)) {
+            version++;
+            fanout(delta(uname, Message.JOINED), null);
+        }
+    }
+
+    synchronized void removeRemote(String uname) {
+        if (!remote.remove(uname) || isLocal(uname)) return;
+        online.remove(uname);
+        version++;
+        fanout(delta(uname, Message.LEFT), null);
+    }
+
+    private boolean isLocal(String uname) {
+        for (ClientHandler ch : members) {
+            if (uname.equals(ch.getUname())) return true;
+        }
+        return false;
+    }
+
+    synchronized void sendSnapshot(ClientHandler cli) {
+        cli.sendFrame(snapshot());
+    }
+
+    boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    // Touches this room's members only, whatever the number of sessions on the server. A chat
+    // line a member already got in its history replay is not sent again.
+    void bcast(Frame frame, ClientHandler skip) {
+        long t0 = System.nanoTime();
+        for (ClientHandler ch : members) {
+            if (ch != skip && (frame.seq < 0 || frame.seq > ch.getReplayedTo())) ch.sendFrame(frame);
+        }
+        Metrics.fanout.record(System.nanoTime() - t0);
+    }
+
+    private void fanout(Frame delta, ClientHandler skip) {
+        Frame full = null;
+        for (ClientHandler ch : members) {
+            if (ch == skip) continue;
+            if (ch.wantsPresenceDeltas()) {
+                ch.sendFrame(delta);
+            } else {
+                if (full == null) full = snapshot();
+                ch.sendFrame(full);
+            }
+        }
+    }
+
+    private Frame delta(String uname, String op) {
+        Message msg = new Message(Message.USER_PRESENCE, "Server", uname, version);
+        msg.payload = op;
+        return new Frame(msg);
+    }
+
+    private Frame snapshot() {
+        Message msg = new Message(Message.USER_LIST_UPDATE, "Server", (Object) online.toArray(new String[0]));
+        msg.content = name;
+        msg.fileSize = version;
+        return new Frame(msg);
+    }
+}
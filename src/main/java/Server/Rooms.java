@@ -0,0 +1,85 @@
+package Server;
+
+import Shared.Message;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+// Rooms by name. A client is in exactly one at a time, the lobby after login. Rooms are made on
+// first join and dropped when their last member leaves, except the lobby. Moves are serialized
+// here so a room cannot be dropped while someone is on the way in.
+final class Rooms {
+    static final String LOBBY = "lobby";
+    private static final int MAX_ROOMS = 1024;
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+
+    private final Map<String, Room> byName = new HashMap<>();
+    // Where users on other cluster nodes are, so a room made here later starts with them listed.
+    private final Map<String, String> remoteRoom = new HashMap<>();
+    private final Map<String, Set<String>> remoteByRoom = new HashMap<>();
+
+    Rooms() {
+        byName.put(LOBBY, new Room(LOBBY));
+    }
+
+    static boolean validName(String name) {
+        return name != null && NAME.matcher(name).matches();
+    }
+
+    // Moves cli into the named room, replaying its recent chat if cli asked for that. Null if
+    // the name is not valid or there are too many rooms already.
+    synchronized Room join(ClientHandler cli, String name) {
+        if (!validName(name)) return null;
+        Room room = byName.get(name);
+        if (room == null) {
+            if (byName.size() >= MAX_ROOMS) return null;
+            room = new Room(name);
+            for (String uname : remoteByRoom.getOrDefault(name, Set.of())) room.addRemote(uname);
+            byName.put(name, room);
+        }
+        Room old = cli.getRoom();
+        if (old == room) return room;
+        if (old != null) {
+            leave(cli);
+            cli.sendMsgToCli(new Message(Message.ROOM_JOIN, "Server", name));
+        }
+        cli.setRoom(room);
+        Room to = room;
+        if (cli.wantsHistory()) {
+            Server.history.replay(to, cli, () -> to.join(cli));
+        } else {
+            to.join(cli);
+        }
+        return room;
+    }
+
+    synchronized Room find(String name) {
+        return byName.get(name);
+    }
+
+    // A user on another node moved to room, or logged out (room null).
+    synchronized void remoteMove(String uname, String room) {
+        String from = room != null ? remoteRoom.put(uname, room) : remoteRoom.remove(uname);
+        if (Objects.equals(from, room)) return;
+        if (from != null) {
+            Set<String> in = remoteByRoom.get(from);
+            if (in != null && in.remove(uname) && in.isEmpty()) remoteByRoom.remove(from);
+            Room r = byName.get(from);
+            if (r != null) r.removeRemote(uname);
+        }
+        if (room != null) {
+            remoteByRoom.computeIfAbsent(room, r -> new HashSet<>()).add(uname);
+            Room r = byName.get(room);
+            if (r != null) r.addRemote(uname);
+        }
+    }
+
+    synchronized void leave(ClientHandler cli) {
+        Room room = cli.getRoom();
+        if (room == null || !room.leave(cli)) return;
+        if (room.isEmpty() && !room.name.equals(LOBBY)) byName.remove(room.name);
+    }
+}
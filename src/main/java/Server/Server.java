@@ -1,16 +1,24 @@
 package Server;
 
-import Shared.Message;
 import Shared.User;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Server {
-    private static final int PORT = 12345;
+    static final int ACCEPT_BACKLOG = 1024;
+    private static final String STORE_DIR = "resources/Server/";
     private static final User[] DEF_USERS = {
             new User("user1", "1234"),
             new User("user2", "1234"),
@@ -19,70 +27,138 @@ public class Server {
             new User("user5", "1234"),
     };
 
-    public static List<ClientHandler> clients = Collections.synchronizedList(new ArrayList<>());
+    // name -> password; the built-in users plus any from --users.
+    private static final Map<String, String> users = new HashMap<>();
+    static {
+        for (User u : DEF_USERS) users.put(u.getUsername(), u.getPassword());
+    }
+
+    public static SessionRegistry sessions = new SessionRegistry();
+    static BlobStore store;
+    static final DataGrants grants = new DataGrants();
+    static final Rooms rooms = new Rooms();
+    static ServerConfig config = new ServerConfig();
+    static ChatLog chatLog = ChatLog.off();
+    static History history = new History(0, 0, chatLog);
+    static Cluster cluster = new Cluster("", "", List.of());
+    private static ExecutorService workers;
+    private static boolean virtualThreads;
+    // Shared by SockConns for writing; null when each connection runs its own writer.
+    static ExecutorService writers;
 
     public static void main(String[] args) {
-        System.out.println("Server starting on port " + PORT + "...");
-        try (ServerSocket srvSocket = new ServerSocket(PORT)) {
-            System.out.println("Server started. Waiting for clients...");
-            while (true) {
-                try {
-                    Socket cliSocket = srvSocket.accept();
-                    System.out.println("New client connection attempt from: " + cliSocket.getInetAddress());
-                    ClientHandler cliHandler = new ClientHandler(cliSocket, clients);
-                    new Thread(cliHandler).start();
-                } catch (IOException e) {
-                    System.err.println("Error accepting client connection: " + e.getMessage());
-                }
+        ServerConfig cfg = ServerConfig.parse(args);
+        config = cfg;
+        Log.configure(cfg.logLevel, cfg.logRate, cfg.logChat);
+        Log.info(Log.Cat.SERVER, "starting", "port", cfg.port, "engine", cfg.engine);
+        try {
+            if (!cfg.usersFile.isEmpty()) loadUsers(Paths.get(cfg.usersFile));
+            if (cfg.chatLog) {
+                chatLog = new ChatLog(Paths.get(STORE_DIR, ".chatlog"), cfg.logSegBytes, cfg.logKeepBytes,
+                        TimeUnit.DAYS.toMillis(cfg.logKeepDays), TimeUnit.MINUTES.toMillis(cfg.logRollMinutes));
+                Runtime.getRuntime().addShutdownHook(new Thread(chatLog::close, "chat-log-close"));
+            }
+            history = new History(cfg.history, cfg.historyBytes, chatLog);
+            cluster = new Cluster(cfg.node, cfg.clusterKey, cfg.peers);
+            cluster.start();
+            Metrics.register();
+            store = new BlobStore(Paths.get(STORE_DIR));
+            store.watch();
+            if (ServerConfig.ENGINE_NIO.equals(cfg.engine)) {
+                new NioServer(cfg.port, cfg.loops, sessions).run();
+            } else {
+                if (ServerConfig.ENGINE_VIRTUAL.equals(cfg.engine)) workers = newVirtualExecutor();
+                // Opt-in: a virtual writer per connection is cheap anyway, and a pool trades
+                // isolation between clients for threads.
+                if (!virtualThreads && cfg.writers > 0) writers = writerPool(cfg.writers);
+                runThreaded(cfg.port);
             }
         } catch (IOException e) {
-            System.err.println("Could not start server on port " + PORT + ": " + e.getMessage());
-            e.printStackTrace();
+            Log.error(Log.Cat.SERVER, "could not start server", "port", cfg.port, "error", e);
         }
     }
 
-    public static boolean authUser(String uname, String pass) {
-        for (User defUser : DEF_USERS) {
-            if (defUser.getUsername().equals(uname)) {
-                return defUser.getPassword().equals(pass);
-            }
+    // Executors.newVirtualThreadPerTaskExecutor() only exists on JDK 21+, so look it up at runtime.
+    private static ExecutorService newVirtualExecutor() {
+        try {
+            ExecutorService ex = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            virtualThreads = true;
+            return ex;
+        } catch (ReflectiveOperationException e) {
+            Log.warn(Log.Cat.SERVER, "virtual threads are not available; using a cached thread pool", "java", System.getProperty("java.version"));
+            return Executors.newCachedThreadPool();
         }
-        return false;
     }
 
-    public static void addCli(ClientHandler cliHandler) {
-        synchronized (clients) {
-            clients.add(cliHandler);
-            bcastUserList();
-        }
+    private static ExecutorService writerPool(int threads) {
+        AtomicInteger n = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, task -> {
+            Thread t = new Thread(task, "writer-" + n.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
     }
 
-    public static void remCli(ClientHandler cliHandler) {
-        synchronized (clients) {
-            clients.remove(cliHandler);
-            if (cliHandler.getUname() != null) {
-                System.out.println("Client " + cliHandler.getUname() + " disconnected. Remaining: " + clients.size());
-            } else {
-                System.out.println("Unauth client disconnected. Remaining: " + clients.size());
-            }
-            bcastUserList();
+    // Runs a per-connection task (reader or writer) the way the selected engine wants it.
+    static void spawn(Runnable task) {
+        if (workers != null) {
+            workers.execute(task);
+        } else {
+            new Thread(task).start();
         }
     }
 
-    public static void bcastUserList() {
-        synchronized (clients) {
-            List<String> unames = new ArrayList<>();
-            for (ClientHandler ch : clients) {
-                if (ch.isLoggedIn() && ch.getUname() != null) {
-                    unames.add(ch.getUname());
-                }
-            }
-            Message ulistMsg = new Message(Message.USER_LIST_UPDATE, "Server", unames.toArray(new String[0]));
-            for (ClientHandler ch : clients) {
-                if (ch.isLoggedIn()) {
-                    ch.sendMsgToCli(ulistMsg);
+    private static void runThreaded(int port) throws IOException {
+        // Accepting through a (blocking) channel gives every Socket a SocketChannel, which the
+        // download path needs for FileChannel.transferTo.
+        try (ServerSocketChannel srvCh = ServerSocketChannel.open()) {
+            srvCh.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            Log.info(Log.Cat.SERVER, "started; waiting for clients", "engine", "thread");
+            while (true) {
+                try {
+                    Socket cliSocket = srvCh.accept().socket();
+                    Log.debug(Log.Cat.CONN, "accepted", "client", cliSocket.getInetAddress());
+                    ClientHandler cliHandler = new ClientHandler(cliSocket, sessions);
+                    spawn(cliHandler);
+                } catch (IOException e) {
+                    Log.warn(Log.Cat.CONN, "error accepting client connection", "error", e.getMessage());
                 }
             }
         }
     }
+
+    // Blank lines and lines starting with # are skipped.
+    private static void loadUsers(Path file) throws IOException {
+        int n = 0;
+        for (String line : Files.readAllLines(file)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            int colon = line.indexOf(':');
+            if (colon <= 0) throw new IOException("Expected name:password in " + file + " but got: " + line);
+            users.put(line.substring(0, colon), line.substring(colon + 1));
+            n++;
+        }
+        Log.info(Log.Cat.LOGIN, "loaded users", "count", n, "file", file);
+    }
+
+    public static boolean authUser(String uname, String pass) {
+        String known = users.get(uname);
+        return known != null && known.equals(pass);
+    }
+
+    // The handler has already claimed its name in sessions; it starts out in the lobby.
+    public static void addCli(ClientHandler cliHandler) {
+        rooms.join(cliHandler, Rooms.LOBBY);
+        cluster.online(cliHandler);
+    }
+
+    public static void remCli(ClientHandler cliHandler) {
+        if (sessions.unregister(cliHandler.getUname(), cliHandler)) {
+            Log.info(Log.Cat.CONN, "client disconnected", "user", cliHandler.getUname(), "remaining", sessions.size());
+            rooms.leave(cliHandler);
+            cluster.offline(cliHandler.getUname());
+        } else {
+            Log.debug(Log.Cat.CONN, "unauthenticated client disconnected", "remaining", sessions.size());
+        }
+    }
 }
\ No newline at end of file
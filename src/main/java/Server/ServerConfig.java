@@ -0,0 +1,145 @@
+package Server;
+
+import Shared.MsgCodec;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+class ServerConfig {
+    static final String ENGINE_THREAD = "thread";
+    static final String ENGINE_NIO = "nio";
+    static final String ENGINE_VIRTUAL = "virtual";
+
+    int port = 12345;
+    String engine = ENGINE_THREAD;
+    int loops = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    // Threads the NIO engine hands disk work to (uploads, downloads, chat log queries).
+    int ioThreads = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    // With more than 0, the blocking engines share this many threads for writing to clients
+    // instead of giving each connection a writer thread of its own (virtual threads always get
+    // their own). Saves a thread per client, but writes block: a client that stops reading, or
+    // a raw download, holds a shared thread until it is done, and everyone else waits on the rest.
+    int writers = 0;
+    int outQueueCap = 1024;
+    OutQueue.Policy slowPolicy = OutQueue.Policy.DROP_OLDEST;
+    // Most a connection may spill to disk under --slow=spill before it is dropped.
+    long spillBytes = 64L * 1024 * 1024;
+    boolean zeroCopy = true;
+    int chunk = 64 * 1024;
+    // Socket send buffer; 0 keeps the OS default. Smaller means less file data queued ahead of chat.
+    int sndBuf = 0;
+    // Most data connections one download may be split across; 1 turns parallel downloads off.
+    int streams = 4;
+    // Offer deflate to clients that ask for it.
+    boolean zip = true;
+    // Write coalescing: up to batch frames per write, waiting at most batchNanos after the first
+    // for the rest. 1 writes every frame as soon as it is queued.
+    int batch = 1;
+    long batchNanos = 1_000_000;
+    // Chat lines kept per room for replay at login (0 turns it off), and the text they may hold.
+    int history = 100;
+    long historyBytes = 256 * 1024;
+    // Durable chat log: segment size, and how much and how long to keep. Segments also roll
+    // after rollMinutes so retention by age can drop them.
+    boolean chatLog = true;
+    int logSegBytes = 64 * 1024 * 1024;
+    long logKeepBytes = 1024L * 1024 * 1024;
+    long logKeepDays = 7;
+    long logRollMinutes = 60;
+    // Cluster mode: this node's name, its peers as name@host:port, and the key they all share.
+    String node = "";
+    List<String> peers = new ArrayList<>();
+    String clusterKey = "";
+    // Extra accounts, one name:password per line, on top of the built-in user1..user5.
+    String usersFile = "";
+    // Users allowed to ask for ADMIN_STATS; nobody by default.
+    Set<String> admins = new HashSet<>();
+    // Server log: the lowest level written, lines a second allowed per category, and whether
+    // chat and direct message text may appear at DEBUG.
+    Log.Level logLevel = Log.Level.INFO;
+    int logRate = 200;
+    boolean logChat = false;
+
+    // Accepts --key=value arguments, e.g. --engine=nio --loops=2 --iothreads=8 --writers=8 --port=12345 --outq=1024 --slow=spill --spillmb=64 --chunk=65536 --batch=32 --history=100
+    // --node=a --peers=b@host:12346,c@host:12347 --clusterkey=secret --admins=user1
+    // --users=resources/Server/users.txt --loglevel=debug --lograte=200 --logchat=false
+    static ServerConfig parse(String[] args) {
+        ServerConfig cfg = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --key=value but got: " + arg);
+            }
+            String key = arg.substring(2, arg.indexOf('='));
+            String val = arg.substring(arg.indexOf('=') + 1);
+            cfg.set(key, val);
+        }
+        if (cfg.node.isEmpty()) cfg.node = "node-" + cfg.port;
+        if (!cfg.peers.isEmpty() && cfg.clusterKey.isEmpty()) {
+            throw new IllegalArgumentException("--peers needs --clusterkey so peers can tell each other from clients.");
+        }
+        return cfg;
+    }
+
+    private void set(String key, String val) {
+        switch (key) {
+            case "port": port = Integer.parseInt(val); break;
+            case "engine":
+                if (!val.equals(ENGINE_THREAD) && !val.equals(ENGINE_NIO) && !val.equals(ENGINE_VIRTUAL)) {
+                    throw new IllegalArgumentException("Unknown engine: " + val);
+                }
+                engine = val;
+                break;
+            case "loops": loops = Math.max(1, Integer.parseInt(val)); break;
+            case "iothreads": ioThreads = Math.max(1, Integer.parseInt(val)); break;
+            case "writers": writers = Math.max(0, Integer.parseInt(val)); break;
+            case "outq": outQueueCap = Math.max(1, Integer.parseInt(val)); break;
+            case "spillmb": spillBytes = Math.max(1, Long.parseLong(val)) * 1024 * 1024; break;
+            case "zerocopy": zeroCopy = Boolean.parseBoolean(val); break;
+            case "batch": batch = Math.max(1, Integer.parseInt(val)); break;
+            case "batchus": batchNanos = Math.max(0, Long.parseLong(val)) * 1000; break;
+            case "history": history = Math.max(0, Integer.parseInt(val)); break;
+            case "historykb": historyBytes = Math.max(0, Long.parseLong(val)) * 1024; break;
+            case "chatlog": chatLog = Boolean.parseBoolean(val); break;
+            case "logsegmb": logSegBytes = (int) Math.max(1, Math.min(1024, Long.parseLong(val))) * 1024 * 1024; break;
+            case "logmb": logKeepBytes = Math.max(1, Long.parseLong(val)) * 1024 * 1024; break;
+            case "logdays": logKeepDays = Math.max(1, Long.parseLong(val)); break;
+            case "logrollmin": logRollMinutes = Math.max(1, Long.parseLong(val)); break;
+            case "node": node = val; break;
+            case "peers":
+                for (String p : val.split(",")) {
+                    if (!p.isBlank()) peers.add(p.trim());
+                }
+                break;
+            case "clusterkey": clusterKey = val; break;
+            case "users": usersFile = val; break;
+            case "admins":
+                for (String a : val.split(",")) {
+                    if (!a.isBlank()) admins.add(a.trim());
+                }
+                break;
+            case "loglevel":
+                try {
+                    logLevel = Log.Level.valueOf(val.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Unknown log level: " + val);
+                }
+                break;
+            case "lograte": logRate = Math.max(1, Integer.parseInt(val)); break;
+            case "logchat": logChat = Boolean.parseBoolean(val); break;
+            case "zip": zip = Boolean.parseBoolean(val); break;
+            case "streams": streams = Math.max(1, Integer.parseInt(val)); break;
+            case "sndbuf": sndBuf = Math.max(0, Integer.parseInt(val)); break;
+            case "chunk": chunk = Math.max(0, Math.min(MsgCodec.MAX_FRAME / 2, Integer.parseInt(val))); break;
+            case "slow":
+                switch (val) {
+                    case "drop": slowPolicy = OutQueue.Policy.DROP_OLDEST; break;
+                    case "disconnect": slowPolicy = OutQueue.Policy.DISCONNECT; break;
+                    case "spill": slowPolicy = OutQueue.Policy.SPILL; break;
+                    default: throw new IllegalArgumentException("Unknown slow-consumer policy: " + val);
+                }
+                break;
+            default: throw new IllegalArgumentException("Unknown option: --" + key);
+        }
+    }
+}
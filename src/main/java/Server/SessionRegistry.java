@@ -0,0 +1,59 @@
+package Server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Logged-in sessions by username. Login, logout and lookup are single map operations; fanout
+// iterates an array snapshot that is rebuilt lazily after membership changes, so broadcasts
+// never block joins or leaves.
+public class SessionRegistry {
+    private static final ClientHandler[] EMPTY = new ClientHandler[0];
+
+    private final ConcurrentHashMap<String, ClientHandler> byName = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicReference<Snapshot> snap = new AtomicReference<>(new Snapshot(0, EMPTY));
+
+    private static final class Snapshot {
+        final long version;
+        final ClientHandler[] handlers;
+
+        Snapshot(long version, ClientHandler[] handlers) {
+            this.version = version;
+            this.handlers = handlers;
+        }
+    }
+
+    // Atomically claims uname; false if another session already holds it.
+    public boolean register(String uname, ClientHandler handler) {
+        if (byName.putIfAbsent(uname, handler) != null) return false;
+        version.incrementAndGet();
+        return true;
+    }
+
+    // Releases uname only if it is still held by this handler.
+    public boolean unregister(String uname, ClientHandler handler) {
+        if (uname == null || !byName.remove(uname, handler)) return false;
+        version.incrementAndGet();
+        return true;
+    }
+
+    public ClientHandler get(String uname) {
+        return byName.get(uname);
+    }
+
+    public int size() {
+        return byName.size();
+    }
+
+    // The returned array is shared; callers must not modify it.
+    public ClientHandler[] snapshot() {
+        Snapshot s = snap.get();
+        long v = version.get();
+        if (s.version == v) return s.handlers;
+        ClientHandler[] handlers = byName.values().toArray(EMPTY);
+        // Publish only if no join/leave raced with the copy; otherwise the next caller rebuilds.
+        if (version.get() == v) snap.compareAndSet(s, new Snapshot(v, handlers));
+        return handlers;
+    }
+}
@@ -0,0 +1,309 @@
+package Server;
+
+import Shared.Message;
+import Shared.MsgCodec;
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+// Writes go out from a writer thread of the connection's own, or with --writers=N from the
+// shared Server.writers pool, which runs a drain task whenever something is queued and no
+// drain is already scheduled.
+class SockConn implements Conn {
+    private static final int BUF_SIZE = 8192;
+    private static final long CLOSE_WAIT_MS = 2000;
+    // Most items one pooled drain writes before making way for other connections. A raw file
+    // is one item, however large.
+    private static final int DRAIN_MAX = 256;
+
+    private final Socket sock;
+    private final boolean framed;
+    private volatile int codec = MsgCodec.V_JAVA;
+    private ObjectOutputStream objOut;
+    private ObjectInputStream objIn;
+    private final DataOutputStream dataOut;
+    private final DataInputStream dataIn;
+    private final PeekIn bufIn;
+    // Only the writer task touches objOut/dataOut once the handshake is done.
+    private final OutQueue outQ;
+    private final CountDownLatch writerDone = new CountDownLatch(1);
+    private final Executor writers;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile boolean closing;
+
+    SockConn(Socket sock) throws IOException {
+        this.sock = sock;
+        this.bufIn = new PeekIn(new CountIn(sock.getInputStream()), BUF_SIZE);
+        bufIn.mark(4);
+        this.dataIn = new DataInputStream(bufIn);
+        this.framed = dataIn.readInt() == MsgCodec.MAGIC;
+        if (framed) {
+            this.dataOut = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream(), BUF_SIZE));
+        } else {
+            // Legacy client speaking a raw ObjectOutputStream: replay the stream header we peeked.
+            bufIn.reset();
+            this.objOut = new ObjectOutputStream(sock.getOutputStream());
+            this.objOut.flush();
+            this.objIn = new ObjectInputStream(bufIn);
+            this.dataOut = new DataOutputStream(sock.getOutputStream());
+        }
+        if (Server.config.sndBuf > 0) sock.setSendBufferSize(Server.config.sndBuf);
+        this.outQ = new OutQueue(Server.config.outQueueCap, Server.config.slowPolicy, Server.config.spillBytes, addr());
+        this.writers = Server.writers;
+        if (writers == null) Server.spawn(this::writeLoop);
+    }
+
+    // The next frame from the client; blocks until it has arrived.
+    Message read() throws IOException {
+        if (framed) return MsgCodec.readFrame(dataIn, codec);
+        try {
+            return (Message) objIn.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Invalid message object: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void send(Frame frame) throws IOException {
+        if (!outQ.offer(item(frame))) overflow();
+        else kick();
+    }
+
+    @Override
+    public void setCodec(int ver) {
+        // Legacy object-stream clients cannot switch encodings.
+        if (framed) codec = ver;
+    }
+
+    @Override
+    public void sendFile(Message start, BlobStore.Pin pin, long off, long len) throws IOException {
+        if (!outQ.offer(item(new Frame(start)), OutQueue.Item.file(pin, off, len))) overflow();
+        else kick();
+    }
+
+    @Override
+    public void sendChunks(Message start, String id, BlobStore.Pin pin, long size, long off, int chunk, boolean zip) throws IOException {
+        send(new Frame(start));
+        outQ.addXfer(new OutQueue.Xfer(id, pin, size, off, chunk, zip));
+        kick();
+    }
+
+    @Override
+    public OutQueue outQueue() {
+        return outQ;
+    }
+
+    // Encodes with the codec in force now, not when the writer gets to it: LOGIN_SUCCESS must
+    // still go out in the old encoding even though setCodec follows right after it.
+    private OutQueue.Item item(Frame frame) throws IOException {
+        return OutQueue.Item.msg(frame, framed ? frame.bytes(codec) : null);
+    }
+
+    private void overflow() {
+        Log.warn(Log.Cat.CONN, "outbound queue overflow; disconnecting", "client", addr(), "stats", outQ.stats());
+        outQ.clear();
+        closeSock();
+    }
+
+    // With --batch, frames queued within the window after the first one share its flush. Raw
+    // file bytes and urgent replies end the batch.
+    private void writeLoop() {
+        int batch = Server.config.batch;
+        try {
+            OutQueue.Item it;
+            while ((it = outQ.take()) != null) {
+                int frames = 1;
+                write(it);
+                long deadline = System.nanoTime() + Server.config.batchNanos;
+                while (frames < batch && !it.urgent() && it.file == null) {
+                    if ((it = outQ.poll(deadline)) == null) break;
+                    write(it);
+                    frames++;
+                }
+                flush(frames);
+            }
+        } catch (IOException e) {
+            if (!sock.isClosed()) Log.warn(Log.Cat.CONN, "write error", "client", addr(), "error", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            writerDone.countDown();
+            closeSock();
+        }
+    }
+
+    private void kick() {
+        if (writers != null && draining.compareAndSet(false, true)) writers.execute(this::drain);
+    }
+
+    // Pooled writer: writes what is queued now, then gives the thread back. Frames are flushed
+    // in runs of up to --batch; unlike writeLoop it never waits for more to arrive.
+    private void drain() {
+        try {
+            int batch = Server.config.batch;
+            int frames = 0, n = 0;
+            OutQueue.Item it;
+            while (n < DRAIN_MAX && (it = outQ.poll()) != null) {
+                write(it);
+                n++;
+                if (++frames >= batch || it.urgent() || it.file != null) {
+                    flush(frames);
+                    frames = 0;
+                }
+            }
+            if (frames > 0) flush(frames);
+            if (n == DRAIN_MAX) {
+                writers.execute(this::drain);
+                return;
+            }
+            if (closing) {
+                writerDone.countDown();
+                closeSock();
+                return;
+            }
+            draining.set(false);
+            // Anything queued after our last poll found a drain still scheduled and left it to us.
+            if ((closing || outQ.pending()) && draining.compareAndSet(false, true)) writers.execute(this::drain);
+        } catch (IOException e) {
+            if (!sock.isClosed()) Log.warn(Log.Cat.CONN, "write error", "client", addr(), "error", e.getMessage());
+            writerDone.countDown();
+            closeSock();
+        }
+    }
+
+    private void flush(int frames) throws IOException {
+        if (framed) dataOut.flush();
+        else objOut.flush();
+        outQ.wrote(frames);
+    }
+
+    private void write(OutQueue.Item it) throws IOException {
+        if (it.xfer != null) {
+            ByteBuffer buf = it.chunk(codec);
+            Metrics.bytesOut.add(buf.remaining());
+            dataOut.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        } else if (it.file != null) {
+            Metrics.bytesOut.add(it.fileSize);
+            // A legacy start message may still sit in the object stream's block buffer.
+            if (objOut != null) objOut.flush();
+            SocketChannel ch = sock.getChannel();
+            try {
+                if (ch != null && Server.config.zeroCopy) {
+                    dataOut.flush();
+                    FileXfer.transfer(it.file, it.fileOff, it.fileSize, ch);
+                } else {
+                    FileXfer.copy(it.file, it.fileOff, it.fileSize, dataOut);
+                }
+            } finally {
+                it.done();
+            }
+        } else if (it.bytes != null) {
+            Metrics.bytesOut.add(it.bytes.remaining());
+            dataOut.write(it.bytes.array(), it.bytes.arrayOffset() + it.bytes.position(), it.bytes.remaining());
+        } else {
+            objOut.writeObject(it.frame.msg);
+        }
+        Metrics.wrote(it.type, it.born);
+    }
+
+    @Override
+    public void recvFile(Path path, long size, MessageDigest md, Consumer<IOException> done) {
+        try (FileChannel fc = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            SocketChannel ch = sock.getChannel();
+            if (ch != null && Server.config.zeroCopy) {
+                // Whatever the stream already pulled off the socket goes first; the rest bypasses it.
+                long pos = bufIn.drainTo(fc, size, md);
+                FileXfer.recv(ch, fc, pos, size - pos, md);
+                Metrics.bytesIn.add(size - pos);
+            } else {
+                FileXfer.recv(dataIn, fc, size, md);
+            }
+        } catch (IOException e) {
+            done.accept(e);
+            return;
+        }
+        done.accept(null);
+    }
+
+    @Override
+    public String addr() {
+        return sock.getInetAddress().toString();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !sock.isClosed();
+    }
+
+    // Lets the writer flush what is already queued (bounded by CLOSE_WAIT_MS) before closing.
+    @Override
+    public void close() {
+        closing = true;
+        outQ.close();
+        kick();
+        try {
+            if (!writerDone.await(CLOSE_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                Log.warn(Log.Cat.CONN, "timed out flushing output", "client", addr(), "stats", outQ.stats());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        outQ.clear();
+        closeSock();
+    }
+
+    private void closeSock() {
+        try {
+            if (!sock.isClosed()) sock.close();
+        } catch (IOException e) {
+            Log.warn(Log.Cat.CONN, "error closing connection", "client", addr(), "error", e.getMessage());
+        }
+    }
+
+    // Counts what the stream pulls off the socket; raw uploads past it are counted in recvFile.
+    private static final class CountIn extends FilterInputStream {
+        CountIn(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) Metrics.bytesIn.increment();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) Metrics.bytesIn.add(n);
+            return n;
+        }
+    }
+
+    // Exposes the buffered-but-unread bytes so an upload can switch to the raw channel without losing them.
+    private static final class PeekIn extends BufferedInputStream {
+        PeekIn(InputStream in, int size) {
+            super(in, size);
+        }
+
+        synchronized long drainTo(FileChannel fc, long max, MessageDigest md) throws IOException {
+            int n = (int) Math.min(count - pos, max);
+            md.update(buf, pos, n);
+            ByteBuffer part = ByteBuffer.wrap(buf, pos, n);
+            while (part.hasRemaining()) fc.write(part, part.position() - pos);
+            pos += n;
+            return n;
+        }
+    }
+}
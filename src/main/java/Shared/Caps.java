@@ -0,0 +1,77 @@
+package Shared;
+
+// Capabilities exchanged in the payload of LOGIN_REQUEST / LOGIN_SUCCESS as "key=value" strings.
+// Transfer messages use the same String[] form for their id and byte offsets.
+public final class Caps {
+    public static final String CODEC = "codec";
+    // Largest FILE_CHUNK payload; absent or 0 means files travel as raw bytes after the metadata.
+    public static final String CHUNK = "chunk";
+    // 1 if deflate is on: at login for message frames (see MsgCodec.ZIP), on a transfer's
+    // metadata/INFO for its chunk payloads.
+    public static final String ZIP = "zip";
+    // 1 if the client applies USER_PRESENCE deltas instead of needing every full user list.
+    public static final String PRESENCE = "presence";
+    // 1 if the client shows a CHAT_HISTORY replay after login.
+    public static final String HISTORY = "history";
+    // CHAT_HISTORY queries: lines from a sequence number on, or within a time range in millis.
+    public static final String FROM = "from";
+    public static final String SINCE = "since";
+    public static final String UNTIL = "until";
+    // FILE_LIST_REQUEST paging: only names starting with prefix, after the cursor name, at most
+    // limit per reply. Without limit the server answers in the old comma-joined form.
+    public static final String PREFIX = "prefix";
+    public static final String AFTER = "after";
+    public static final String LIMIT = "limit";
+    public static final String XFER = "xfer";
+    public static final String OFF = "off";
+    public static final String SIZE = "size";
+    // Hex SHA-256 of an upload's content, so the server can skip bytes it already stores.
+    public static final String DIGEST = "sha256";
+    // Parallel downloads: how many data connections to use, the token that admits them, and the
+    // length of the byte range each one asks for.
+    public static final String STREAMS = "streams";
+    public static final String TOKEN = "token";
+    public static final String LEN = "len";
+    // Cluster peer links: the sending node, the shared key, and the user/room an event is about.
+    public static final String NODE = "node";
+    public static final String KEY = "key";
+    public static final String USER = "user";
+    public static final String ROOM = "room";
+
+    private Caps() {}
+
+    public static String get(Object payload, String key) {
+        if (!(payload instanceof String[])) return null;
+        String prefix = key + "=";
+        for (String cap : (String[]) payload) {
+            if (cap != null && cap.startsWith(prefix)) return cap.substring(prefix.length());
+        }
+        return null;
+    }
+
+    public static int getInt(Object payload, String key, int def) {
+        String val = get(payload, key);
+        if (val == null) return def;
+        try {
+            return Integer.parseInt(val);
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    public static long getLong(Object payload, String key, long def) {
+        String val = get(payload, key);
+        if (val == null) return def;
+        try {
+            return Long.parseLong(val);
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    public static String[] of(String... kv) {
+        String[] out = new String[kv.length / 2];
+        for (int i = 0; i < out.length; i++) out[i] = kv[2 * i] + "=" + kv[2 * i + 1];
+        return out;
+    }
+}
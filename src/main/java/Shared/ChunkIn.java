@@ -0,0 +1,130 @@
+package Shared;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Reassembles FILE_CHUNK frames into files, one open file per transfer id. A transfer can start
+// at an offset into an existing partial file, which is how interrupted transfers resume.
+public class ChunkIn {
+    public static final class Part {
+        public final String id;
+        public final Path path;
+        public final long size;
+        private final FileChannel ch;
+        private final MessageDigest md;
+        private final Zip.In zin;
+        private long pos;
+
+        private Part(String id, Path path, long size, FileChannel ch, MessageDigest md, Zip.In zin) {
+            this.id = id;
+            this.path = path;
+            this.size = size;
+            this.ch = ch;
+            this.md = md;
+            this.zin = zin;
+        }
+
+        public long getPos() { return pos; }
+
+        // How well the chunks compressed, or null if they came in plain.
+        public String ratio() { return zin != null ? zin.ratio() : null; }
+
+        private void close() {
+            try { ch.close(); } catch (IOException ignored) {}
+            if (zin != null) zin.end();
+        }
+
+        // Digest of everything written so far; only valid once, after the part is complete.
+        public byte[] digest() { return md != null ? md.digest() : null; }
+    }
+
+    private final Map<String, Part> parts = new HashMap<>();
+
+    // Keeps the first off bytes of path and expects the rest. Returns the part right away if
+    // there is nothing left to wait for.
+    public Part open(String id, Path path, long size, long off, boolean zip) throws IOException {
+        return open(id, path, size, off, null, zip);
+    }
+
+    // Same, also feeding md with the file's content; a kept prefix is read back into it first.
+    // With zip, every chunk is a piece of one deflate stream that starts at off.
+    public synchronized Part open(String id, Path path, long size, long off, MessageDigest md, boolean zip) throws IOException {
+        if (parts.containsKey(id)) throw new IOException("Transfer " + id + " is already open.");
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Part p = new Part(id, path, size, ch, md, zip ? new Zip.In() : null);
+        try {
+            p.pos = Math.max(0, Math.min(off, Math.min(size, ch.size())));
+            ch.truncate(p.pos);
+            if (md != null) hashPrefix(ch, p.pos, md);
+        } catch (IOException e) {
+            p.close();
+            throw e;
+        }
+        if (p.pos >= size) {
+            p.close();
+            return p;
+        }
+        parts.put(id, p);
+        return null;
+    }
+
+    // Returns the part once its last byte has landed, null while more is expected. Chunks for
+    // unknown ids are ignored: they are the tail of a transfer that was already aborted.
+    // On failure the partial file is removed before the exception is thrown.
+    public synchronized Part write(String id, byte[] data) throws IOException {
+        Part p = parts.get(id);
+        if (p == null || data == null) return null;
+        try {
+            ByteBuffer buf = p.zin != null ? p.zin.inflate(data, p.size - p.pos) : ByteBuffer.wrap(data);
+            if (p.pos + buf.remaining() > p.size) throw new IOException("Transfer " + id + " overran its declared size.");
+            if (p.md != null) p.md.update(buf.duplicate());
+            while (buf.hasRemaining()) p.pos += p.ch.write(buf, p.pos);
+            if (p.pos < p.size) return null;
+            parts.remove(id);
+            p.close();
+            return p;
+        } catch (IOException e) {
+            abort(id);
+            throw e;
+        }
+    }
+
+    private static void hashPrefix(FileChannel ch, long len, MessageDigest md) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        long pos = 0;
+        while (pos < len) {
+            buf.clear().limit((int) Math.min(buf.capacity(), len - pos));
+            int n = ch.read(buf, pos);
+            if (n < 0) throw new IOException("Partial file shrank while resuming.");
+            buf.flip();
+            md.update(buf);
+            pos += n;
+        }
+    }
+
+    // Closes and deletes the partial file; null if the id was not open.
+    public synchronized Part abort(String id) {
+        Part p = parts.remove(id);
+        if (p == null) return null;
+        p.close();
+        try { Files.deleteIfExists(p.path); } catch (IOException ignored) {}
+        return p;
+    }
+
+    // Closes everything but keeps the partial files so the transfers can be resumed later.
+    public synchronized List<Part> closeAll() {
+        List<Part> open = new ArrayList<>(parts.values());
+        for (Part p : open) p.close();
+        parts.clear();
+        return open;
+    }
+}
@@ -0,0 +1,63 @@
+package Shared;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Paged FILE_LIST_RESPONSE: content is the cursor for the next page (null on the last one) and
+// the payload a String[] of name, size, mtime triples.
+public final class FileList {
+    public static final int PAGE = 200;
+    public static final int MAX_PAGE = 1000;
+
+    public static final class Entry {
+        public final String name;
+        public final long size;
+        public final long mtime;
+
+        public Entry(String name, long size, long mtime) {
+            this.name = name;
+            this.size = size;
+            this.mtime = mtime;
+        }
+    }
+
+    private FileList() {}
+
+    public static Message request(String sender, String prefix, String after, int limit) {
+        Message req = new Message(Message.FILE_LIST_REQUEST, sender, "");
+        List<String> caps = new ArrayList<>();
+        caps.add(Caps.LIMIT + "=" + limit);
+        if (prefix != null && !prefix.isEmpty()) caps.add(Caps.PREFIX + "=" + prefix);
+        if (after != null) caps.add(Caps.AFTER + "=" + after);
+        req.payload = caps.toArray(new String[0]);
+        return req;
+    }
+
+    public static String[] pack(List<Entry> entries) {
+        String[] out = new String[entries.size() * 3];
+        int i = 0;
+        for (Entry e : entries) {
+            out[i++] = e.name;
+            out[i++] = String.valueOf(e.size);
+            out[i++] = String.valueOf(e.mtime);
+        }
+        return out;
+    }
+
+    public static List<Entry> entries(Message resp) {
+        List<Entry> out = new ArrayList<>();
+        if (!(resp.payload instanceof String[])) return out;
+        String[] f = (String[]) resp.payload;
+        for (int i = 0; i + 2 < f.length; i += 3) {
+            try {
+                out.add(new Entry(f[i], Long.parseLong(f[i + 1]), Long.parseLong(f[i + 2])));
+            } catch (NumberFormatException ignored) {}
+        }
+        return out;
+    }
+
+    // Cursor to pass as after for the next page, or null if this was the last one.
+    public static String next(Message resp) {
+        return resp.content;
+    }
+}
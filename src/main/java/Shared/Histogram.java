@@ -0,0 +1,61 @@
+package Shared;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counts of non-negative longs in log-linear buckets: values below 2^SUB get a bucket each,
+// larger ones share a bucket with everything that has the same top SUB+1 bits, so a percentile
+// is reported within 1/2^SUB of the true value. Recording is one atomic increment and never
+// allocates; reading walks the ~1000 buckets and is only done for reports. Used by the server's
+// metrics and the load generator.
+public final class Histogram {
+    private static final int SUB = 4;
+    private static final int MASK = (1 << SUB) - 1;
+    private static final int BUCKETS = (64 - SUB) << SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long v) {
+        counts.incrementAndGet(index(Math.max(0, v)));
+    }
+
+    public long count() {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) n += counts.get(i);
+        return n;
+    }
+
+    // The top of the bucket holding the p-th fraction of recorded values, 0 if there are none.
+    public long percentile(double p) {
+        long[] snap = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) total += snap[i] = counts.get(i);
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snap[i];
+            if (seen >= rank) return i + 1 < BUCKETS ? lowest(i + 1) - 1 : Long.MAX_VALUE;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    // The largest value recorded, to bucket precision.
+    public long max() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (counts.get(i) > 0) return i + 1 < BUCKETS ? lowest(i + 1) - 1 : Long.MAX_VALUE;
+        }
+        return 0;
+    }
+
+    private static int index(long v) {
+        if (v <= MASK) return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        return ((exp - SUB + 1) << SUB) + (int) ((v >>> (exp - SUB)) & MASK);
+    }
+
+    private static long lowest(int i) {
+        if (i <= MASK) return i;
+        int exp = (i >> SUB) + SUB - 1;
+        return ((1L << SUB) + (i & MASK)) << (exp - SUB);
+    }
+}
@@ -23,6 +23,36 @@ public class Message implements Serializable {
     public static final int FILE_UPLOAD_READY_FOR_BYTES = 15;
     public static final int FILE_DOWNLOAD_SENDING_BYTES = 16;
     public static final int USER_LIST_UPDATE = 17;
+    // Chunked transfers: content is the transfer id, payload the bytes (FILE_CHUNK only).
+    // Upload/download messages carry xfer=<id> and off=<resume offset> in a String[] payload.
+    public static final int FILE_CHUNK = 18;
+    public static final int FILE_TRANSFER_ABORT = 19;
+    // Opens a data connection for a parallel download: content is the token from the download's
+    // INFO, payload xfer/off/len. The reply echoes xfer as content and len as fileSize, then the raw bytes.
+    public static final int FILE_RANGE = 21;
+    // One join or leave: content is the user, payload JOINED or LEFT, fileSize the presence
+    // version. USER_LIST_UPDATE carries the version of its snapshot in fileSize; sent by a client,
+    // it asks for a fresh snapshot.
+    public static final int USER_PRESENCE = 22;
+    public static final String JOINED = "+";
+    public static final String LEFT = "-";
+    // Recent chat sent once after login: content is the room, payload {sender, text, millis}
+    // triples oldest first, fileSize the sequence number to ask the log from for what follows.
+    // Sent by a client it queries the log, with from=<seq> or since/until=<millis> and limit.
+    public static final int CHAT_HISTORY = 23;
+    // Moves the sender to the room named in content. The server echoes it once the move is done,
+    // before the new room's user list and history; chat, join/leave notices and user lists are
+    // all scoped to the sender's room. Everyone starts in the lobby.
+    public static final int ROOM_JOIN = 24;
+    // One-to-one chat: content is the text, payload the recipient's username. The server passes
+    // it on with the real sender, or answers with a GENERAL_SERVER_MESSAGE if they are offline.
+    public static final int DIRECT_MESSAGE = 25;
+    // Server-to-server cluster control: content is the operation, payload its caps. The first
+    // frame on a peer link is a hello carrying the node name and cluster key.
+    public static final int PEER = 26;
+    // Server metrics for users named in --admins: the reply's payload holds key=value lines, then
+    // one conn.<user>=... line per session up to the request's limit=<n> (default 100).
+    public static final int ADMIN_STATS = 27;
 
 
     public int type;
@@ -0,0 +1,310 @@
+package Shared;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public final class MsgCodec {
+    // Sent once by framed clients instead of the ObjectOutputStream header (0xACED0005).
+    public static final int MAGIC = 0x43484631;
+    public static final int MAX_FRAME = 16 * 1024 * 1024;
+
+    // Frame body encodings. Every connection starts on V_JAVA; LOGIN_REQUEST/LOGIN_SUCCESS
+    // carry a "codec" capability and both sides switch once the login reply is written.
+    public static final int V_JAVA = 1;
+    public static final int V_BIN = 2;
+    public static final int LATEST = V_BIN;
+    // OR'ed into the version once both sides accepted the "zip" capability. Every frame body then
+    // starts with a flag byte: Z_NONE and the body, or Z_DEFLATE, varint(body length) and the
+    // deflated body.
+    public static final int ZIP = 0x100;
+    private static final byte Z_NONE = 0;
+    private static final byte Z_DEFLATE = 1;
+
+    private static final int P_NULL = 0;
+    private static final int P_STRINGS = 1;
+    private static final int P_STRING = 2;
+    private static final int P_LONG = 3;
+    private static final int P_INT = 4;
+    private static final int P_BYTES = 5;
+
+    private MsgCodec() {}
+
+    public static int base(int ver) {
+        return ver & 0xFF;
+    }
+
+    public static byte[] encode(Message msg, int ver) throws IOException {
+        if (base(ver) == V_BIN) {
+            Out out = new Out(64);
+            writeBin(out, msg);
+            return out.toByteArray();
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(msg);
+        }
+        return bos.toByteArray();
+    }
+
+    public static Message decode(byte[] buf, int off, int len, int ver) throws IOException {
+        if ((ver & ZIP) != 0) {
+            if (len < 1) throw new EOFException("Truncated message frame.");
+            if (buf[off] == Z_NONE) return decode(buf, off + 1, len - 1, base(ver));
+            if (buf[off] != Z_DEFLATE) throw new IOException("Unknown frame compression: " + buf[off]);
+            In in = new In(buf, off + 1, len - 1);
+            int rawLen = in.varint();
+            checkLen(rawLen);
+            return decode(Zip.inflate(buf, in.pos, in.end - in.pos, rawLen), 0, rawLen, base(ver));
+        }
+        if (ver == V_BIN) {
+            In in = new In(buf, off, len);
+            Message msg = readBin(in);
+            if (in.pos != in.end) throw new IOException("Trailing bytes in message frame.");
+            return msg;
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(buf, off, len))) {
+            return (Message) ois.readObject();
+        } catch (ClassNotFoundException | RuntimeException e) {
+            throw new IOException("Invalid message frame: " + e.getMessage(), e);
+        }
+    }
+
+    public static ByteBuffer frame(Message msg, int ver) throws IOException {
+        return frame(msg, ver, true);
+    }
+
+    // deflate=false keeps a ZIP connection's frame uncompressed, e.g. for a chunk whose payload
+    // is deflated already.
+    public static ByteBuffer frame(Message msg, int ver, boolean deflate) throws IOException {
+        int hdr = (ver & ZIP) != 0 ? 5 : 4;
+        Out out;
+        if (base(ver) == V_BIN) {
+            out = new Out(64);
+            out.pos = hdr;
+            writeBin(out, msg);
+        } else {
+            byte[] body = encode(msg, base(ver));
+            out = new Out(hdr + body.length);
+            out.pos = hdr;
+            out.bytes(body, 0, body.length);
+        }
+        if (hdr == 5) {
+            int len = out.pos - hdr;
+            checkLen(len);
+            byte[] packed = deflate && len >= Zip.MIN_FRAME ? Zip.deflate(out.buf, hdr, len) : null;
+            if (packed == null) {
+                out.buf[4] = Z_NONE;
+            } else {
+                out = new Out(packed.length + 10);
+                out.pos = 4;
+                out.buf[out.pos++] = Z_DEFLATE;
+                out.varint(len);
+                out.bytes(packed, 0, packed.length);
+            }
+        }
+        int len = out.pos - 4;
+        checkLen(len);
+        ByteBuffer buf = ByteBuffer.wrap(out.buf, 0, out.pos);
+        buf.putInt(0, len);
+        return buf;
+    }
+
+    public static void writeFrame(DataOutputStream out, Message msg, int ver) throws IOException {
+        writeFrame(out, msg, ver, true);
+    }
+
+    public static void writeFrame(DataOutputStream out, Message msg, int ver, boolean deflate) throws IOException {
+        ByteBuffer buf = frame(msg, ver, deflate);
+        out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+    }
+
+    public static Message readFrame(DataInputStream in, int ver) throws IOException {
+        int len = in.readInt();
+        checkLen(len);
+        byte[] body = new byte[len];
+        in.readFully(body);
+        return decode(body, 0, len, ver);
+    }
+
+    public static void checkLen(int len) throws IOException {
+        if (len < 0 || len > MAX_FRAME) {
+            throw new IOException("Invalid frame length: " + len);
+        }
+    }
+
+    private static void writeBin(Out out, Message msg) throws IOException {
+        out.varint(msg.type);
+        out.str(msg.sender);
+        out.str(msg.content);
+        out.varlong(zigzag(msg.fileSize));
+        Object p = msg.payload;
+        if (p == null) {
+            out.varint(P_NULL);
+        } else if (p instanceof String[]) {
+            String[] arr = (String[]) p;
+            out.varint(P_STRINGS);
+            out.varint(arr.length);
+            for (String s : arr) out.str(s);
+        } else if (p instanceof String) {
+            out.varint(P_STRING);
+            out.str((String) p);
+        } else if (p instanceof Long) {
+            out.varint(P_LONG);
+            out.varlong(zigzag((Long) p));
+        } else if (p instanceof Integer) {
+            out.varint(P_INT);
+            out.varlong(zigzag((Integer) p));
+        } else if (p instanceof byte[]) {
+            byte[] b = (byte[]) p;
+            out.varint(P_BYTES);
+            out.varint(b.length);
+            out.bytes(b, 0, b.length);
+        } else {
+            throw new IOException("Payload type not supported by binary codec: " + p.getClass().getName());
+        }
+    }
+
+    private static Message readBin(In in) throws IOException {
+        Message msg = new Message();
+        msg.type = in.varint();
+        msg.sender = in.str();
+        msg.content = in.str();
+        msg.fileSize = unzigzag(in.varlong());
+        int tag = in.varint();
+        switch (tag) {
+            case P_NULL: break;
+            case P_STRINGS: {
+                // Every element takes at least one byte.
+                int n = in.len();
+                String[] arr = new String[n];
+                for (int i = 0; i < n; i++) arr[i] = in.str();
+                msg.payload = arr;
+                break;
+            }
+            case P_STRING: msg.payload = in.str(); break;
+            case P_LONG: msg.payload = unzigzag(in.varlong()); break;
+            case P_INT: msg.payload = (int) unzigzag(in.varlong()); break;
+            case P_BYTES: {
+                int n = in.len();
+                byte[] b = new byte[n];
+                System.arraycopy(in.buf, in.pos, b, 0, n);
+                in.pos += n;
+                msg.payload = b;
+                break;
+            }
+            default: throw new IOException("Unknown payload tag: " + tag);
+        }
+        return msg;
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static final class Out {
+        byte[] buf;
+        int pos;
+
+        Out(int cap) {
+            buf = new byte[cap];
+        }
+
+        void ensure(int n) {
+            if (pos + n > buf.length) {
+                byte[] bigger = new byte[Math.max(pos + n, buf.length * 2)];
+                System.arraycopy(buf, 0, bigger, 0, pos);
+                buf = bigger;
+            }
+        }
+
+        void varint(int v) {
+            varlong(v & 0xFFFFFFFFL);
+        }
+
+        void varlong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        void bytes(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, buf, pos, len);
+            pos += len;
+        }
+
+        // Strings are written as varint(utf8Len + 1) so that 0 can stand for null.
+        void str(String s) {
+            if (s == null) {
+                varint(0);
+                return;
+            }
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            varint(b.length + 1);
+            bytes(b, 0, b.length);
+        }
+
+        byte[] toByteArray() {
+            byte[] b = new byte[pos];
+            System.arraycopy(buf, 0, b, 0, pos);
+            return b;
+        }
+    }
+
+    private static final class In {
+        final byte[] buf;
+        int pos;
+        final int end;
+
+        In(byte[] buf, int off, int len) {
+            this.buf = buf;
+            this.pos = off;
+            this.end = off + len;
+        }
+
+        void need(int n) throws IOException {
+            if (n < 0 || n > end - pos) throw new EOFException("Truncated message frame.");
+        }
+
+        // A length or count: never negative, and never more than the bytes left in the frame.
+        int len() throws IOException {
+            int n = varint();
+            if (n < 0 || n > end - pos) throw new IOException("Invalid length in message frame: " + (n & 0xFFFFFFFFL));
+            return n;
+        }
+
+        int varint() throws IOException {
+            long v = varlong();
+            if (v > 0xFFFFFFFFL) throw new IOException("Varint overflow.");
+            return (int) v;
+        }
+
+        long varlong() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                need(1);
+                byte b = buf[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return v;
+            }
+            throw new IOException("Varint too long.");
+        }
+
+        String str() throws IOException {
+            int n = varint();
+            if (n == 0) return null;
+            if (n < 0 || n - 1 > end - pos) throw new IOException("Invalid length in message frame: " + (n & 0xFFFFFFFFL));
+            String s = new String(buf, pos, n - 1, StandardCharsets.UTF_8);
+            pos += n - 1;
+            return s;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package Shared;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MsgConn implements Closeable {
+    public static final int CHUNK_SIZE = 64 * 1024;
+    // Ask the server for deflate (-Dchat.zip=false to turn it off).
+    private static final boolean ZIP = Boolean.parseBoolean(System.getProperty("chat.zip", "true"));
+    private static final long READY_WAIT_MS = 30000;
+
+    private final Socket sock;
+    private final DataInputStream dataIn;
+    private final DataOutputStream dataOut;
+    private volatile int codec = MsgCodec.V_JAVA;
+    private volatile int chunk = 0;
+    private volatile boolean zip = false;
+    private final AtomicInteger xferSeq = new AtomicInteger();
+    private final Set<String> aborted = ConcurrentHashMap.newKeySet();
+    private final Map<String, CompletableFuture<Long>> readies = new ConcurrentHashMap<>();
+    private final Map<String, Path> uploads = new ConcurrentHashMap<>();
+
+    public MsgConn(Socket sock) throws IOException {
+        this.sock = sock;
+        this.dataIn = new DataInputStream(new BufferedInputStream(sock.getInputStream(), 65536));
+        this.dataOut = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream(), 65536));
+    }
+
+    public static MsgConn connect(String host, int port) throws IOException {
+        Socket sock = new Socket(host, port);
+        sock.setTcpNoDelay(true);
+        MsgConn conn = new MsgConn(sock);
+        conn.dataOut.writeInt(MsgCodec.MAGIC);
+        conn.dataOut.flush();
+        return conn;
+    }
+
+    public Socket getSocket() { return sock; }
+    public DataInputStream getDataIn() { return dataIn; }
+    public DataOutputStream getDataOut() { return dataOut; }
+
+    public int getCodec() { return codec; }
+    // Negotiated FILE_CHUNK size, or 0 if the server wants raw bytes after the metadata.
+    public int getChunk() { return chunk; }
+
+    public String nextXferId() {
+        return "u" + xferSeq.incrementAndGet();
+    }
+
+    public boolean isOpen() {
+        return !sock.isClosed();
+    }
+
+    public void send(Message msg) throws IOException {
+        send(msg, true);
+    }
+
+    private void send(Message msg, boolean deflate) throws IOException {
+        synchronized (dataOut) {
+            MsgCodec.writeFrame(dataOut, msg, codec, deflate);
+            dataOut.flush();
+        }
+    }
+
+    public Message read() throws IOException {
+        return MsgCodec.readFrame(dataIn, codec);
+    }
+
+    // Sends LOGIN_REQUEST with our capabilities and applies whatever the server accepted.
+    public Message login(String user, String pass) throws IOException {
+        Message req = new Message(Message.LOGIN_REQUEST, user, user + ":" + pass);
+        req.payload = new String[] { Caps.CODEC + "=" + MsgCodec.LATEST, Caps.CHUNK + "=" + CHUNK_SIZE, Caps.ZIP + "=" + (ZIP ? 1 : 0), Caps.PRESENCE + "=1", Caps.HISTORY + "=1" };
+        send(req);
+        Message resp = read();
+        if (resp.type == Message.LOGIN_SUCCESS) {
+            chunk = Math.max(0, Math.min(CHUNK_SIZE, Caps.getInt(resp.payload, Caps.CHUNK, 0)));
+            zip = ZIP && Caps.getInt(resp.payload, Caps.ZIP, 0) != 0;
+            int ver = Math.min(MsgCodec.LATEST, Caps.getInt(resp.payload, Caps.CODEC, MsgCodec.V_JAVA));
+            codec = zip ? ver | MsgCodec.ZIP : ver;
+        }
+        return resp;
+    }
+
+    // Announces an upload with its digest, waits for the server to say how much of it is already
+    // there (all of it, if it stores that content), and streams the rest as FILE_CHUNK frames,
+    // deflated unless the file type is compressed already. Each chunk is its own send, so chat
+    // from other threads goes out between chunks instead of after the whole file.
+    public void sendChunks(String sender, Path path) throws IOException {
+        String id = nextXferId();
+        long size = Files.size(path);
+        String digest = sha256(path);
+        CompletableFuture<Long> ready = new CompletableFuture<>();
+        readies.put(id, ready);
+        uploads.put(id, path);
+        String name = path.getFileName().toString();
+        Zip.Out zout = zip && Zip.compressible(name) ? new Zip.Out() : null;
+        Message meta = new Message(Message.FILE_UPLOAD_REQUEST_METADATA, sender, name, size);
+        meta.payload = Caps.of(Caps.XFER, id, Caps.DIGEST, digest, Caps.ZIP, zout != null ? "1" : "0");
+        try {
+            send(meta);
+            long off = awaitReady(id, ready);
+            try (InputStream fIs = Files.newInputStream(path)) {
+                fIs.skipNBytes(off);
+                long left = size - off;
+                while (left > 0) {
+                    if (aborted.remove(id)) throw new IOException("Server aborted the upload.");
+                    byte[] data = fIs.readNBytes((int) Math.min(chunk, left));
+                    if (data.length == 0) throw new EOFException("File " + path.getFileName() + " shrank during upload.");
+                    Message part = new Message(Message.FILE_CHUNK, null, id);
+                    part.payload = zout != null ? zout.deflate(data) : data;
+                    send(part, false);
+                    left -= data.length;
+                }
+            }
+        } catch (IOException e) {
+            readies.remove(id);
+            uploads.remove(id);
+            if (isOpen()) {
+                try { send(new Message(Message.FILE_TRANSFER_ABORT, sender, id)); } catch (IOException ignored) {}
+            }
+            throw e;
+        } finally {
+            if (zout != null) zout.end();
+        }
+    }
+
+    private static String sha256(Path path) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        try (InputStream fIs = Files.newInputStream(path)) {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = fIs.read(buf)) != -1) md.update(buf, 0, n);
+        }
+        return HexFormat.of().formatHex(md.digest());
+    }
+
+    private long awaitReady(String id, CompletableFuture<Long> ready) throws IOException {
+        try {
+            return ready.get(READY_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("No reply from server for upload " + id + ".");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload " + id + " interrupted.");
+        }
+    }
+
+    // Called by the reader for FILE_UPLOAD_READY_FOR_BYTES; releases the waiting sendChunks.
+    public void uploadReady(Message ready) {
+        CompletableFuture<Long> f = readies.remove(String.valueOf(Caps.get(ready.payload, Caps.XFER)));
+        if (f != null) f.complete(Caps.getLong(ready.payload, Caps.OFF, 0));
+    }
+
+    // Called by the reader for FILE_UPLOAD_CONFIRMATION; returns the file that upload was for.
+    public Path uploadConfirmed(Message confirm) {
+        String id = Caps.get(confirm.payload, Caps.XFER);
+        return id != null ? uploads.remove(id) : null;
+    }
+
+    // Called by the reader when the server gives up on one of our uploads.
+    public void abortUpload(String id) {
+        if (id == null || !id.startsWith("u")) return;
+        aborted.add(id);
+        CompletableFuture<Long> f = readies.remove(id);
+        if (f != null) f.completeExceptionally(new IOException("Server aborted the upload."));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!sock.isClosed()) sock.close();
+    }
+}
@@ -0,0 +1,106 @@
+package Shared;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Client side of a parallel download. The server's INFO names a stream count and a token; we
+// open that many extra connections to the same server, each asks for one disjoint slice of the
+// file, and every slice is written at its own offset into a single staging file.
+public final class RangeFetch {
+    // Streams to ask for per download (-Dchat.streams=N); the server may grant fewer.
+    public static final int STREAMS = Math.max(1, Integer.getInteger("chat.streams", 4));
+    private static final int BUF_SIZE = 64 * 1024;
+
+    private RangeFetch() {}
+
+    // Blocks until the whole file is in target. On failure the other streams are cut short and
+    // nothing is left behind.
+    public static void fetch(MsgConn main, Message info, Path stage, Path target) throws IOException {
+        Socket sock = main.getSocket();
+        String host = sock.getInetAddress().getHostAddress();
+        int port = sock.getPort();
+        String id = Caps.get(info.payload, Caps.XFER);
+        String token = Caps.get(info.payload, Caps.TOKEN);
+        int k = Math.max(1, Caps.getInt(info.payload, Caps.STREAMS, 1));
+        long size = info.fileSize;
+
+        List<MsgConn> conns = new CopyOnWriteArrayList<>();
+        AtomicReference<IOException> err = new AtomicReference<>();
+        try {
+            try (FileChannel fc = FileChannel.open(stage, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                Thread[] workers = new Thread[k];
+                for (int i = 0; i < k; i++) {
+                    long off = size * i / k;
+                    long end = size * (i + 1) / k;
+                    workers[i] = new Thread(() -> {
+                        try {
+                            fetchRange(host, port, token, id, off, end - off, fc, conns, err);
+                        } catch (IOException e) {
+                            if (err.compareAndSet(null, e)) closeAll(conns);
+                        }
+                    }, "range-" + id + "-" + i);
+                    workers[i].setDaemon(true);
+                    workers[i].start();
+                }
+                try {
+                    for (Thread w : workers) w.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    err.compareAndSet(null, new InterruptedIOException("Download of " + info.content + " interrupted."));
+                    closeAll(conns);
+                    for (Thread w : workers) {
+                        try { w.join(); } catch (InterruptedException ignored) {}
+                    }
+                }
+            }
+            if (err.get() != null) throw err.get();
+            Files.move(stage, target, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            try { Files.deleteIfExists(stage); } catch (IOException ignored) {}
+            throw e;
+        }
+    }
+
+    private static void fetchRange(String host, int port, String token, String id, long off, long len, FileChannel fc,
+                                   List<MsgConn> conns, AtomicReference<IOException> err) throws IOException {
+        try (MsgConn c = MsgConn.connect(host, port)) {
+            conns.add(c);
+            if (err.get() != null) return;
+            Message req = new Message(Message.FILE_RANGE, null, token);
+            req.payload = Caps.of(Caps.XFER, id, Caps.OFF, String.valueOf(off), Caps.LEN, String.valueOf(len));
+            c.send(req);
+            Message resp = c.read();
+            if (resp.type != Message.FILE_RANGE || resp.fileSize != len) {
+                throw new IOException("Server refused range " + off + "+" + len + ": " + resp.content);
+            }
+            DataInputStream in = c.getDataIn();
+            byte[] buf = new byte[BUF_SIZE];
+            long pos = off;
+            long end = off + len;
+            while (pos < end) {
+                int n = in.read(buf, 0, (int) Math.min(buf.length, end - pos));
+                if (n == -1) throw new EOFException("Server closed a data connection at byte " + pos + ".");
+                ByteBuffer part = ByteBuffer.wrap(buf, 0, n);
+                while (part.hasRemaining()) pos += fc.write(part, pos);
+            }
+        }
+    }
+
+    private static void closeAll(List<MsgConn> conns) {
+        for (MsgConn c : conns) {
+            try { c.close(); } catch (IOException ignored) {}
+        }
+    }
+}
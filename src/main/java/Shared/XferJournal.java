@@ -0,0 +1,192 @@
+package Shared;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Client side of resumable transfers. Unfinished uploads and downloads are listed in
+// <dir>/.partial/journal, and downloads are staged there as <name>.part until their last byte
+// lands, so a client that logs in again can pick up where it stopped.
+public class XferJournal {
+    private static final String U = "U";
+    private static final String D = "D";
+
+    private final Path stageDir;
+    private final Path journal;
+    private final ChunkIn parts = new ChunkIn();
+    // Download targets chosen before the server's reply arrives, by file name.
+    private final Map<String, Path> wanted = new ConcurrentHashMap<>();
+    // Open downloads by transfer id.
+    private final Map<String, Dl> active = new ConcurrentHashMap<>();
+    // Journal lines: uploads by path, downloads by file name.
+    private final Map<String, String[]> entries = new LinkedHashMap<>();
+
+    private static final class Dl {
+        final String name;
+        final Path target;
+
+        Dl(String name, Path target) {
+            this.name = name;
+            this.target = target;
+        }
+    }
+
+    public XferJournal(Path dir) throws IOException {
+        this.stageDir = dir.resolve(".partial");
+        this.journal = stageDir.resolve("journal");
+        Files.createDirectories(stageDir);
+        if (Files.exists(journal)) {
+            for (String line : Files.readAllLines(journal, StandardCharsets.UTF_8)) {
+                String[] f = line.split("\t");
+                if (f.length >= 2 && f[0].equals(U)) entries.put(U + f[1], f);
+                else if (f.length >= 4 && f[0].equals(D)) entries.put(D + f[1], f);
+            }
+        }
+    }
+
+    public synchronized void uploadStarted(Path file) {
+        put(U, new String[] { U, file.toAbsolutePath().toString() });
+    }
+
+    public synchronized void uploadDone(Path file) {
+        if (file != null) remove(U + file.toAbsolutePath());
+    }
+
+    public synchronized List<Path> uploads() {
+        List<Path> out = new ArrayList<>();
+        for (String[] f : entries.values()) {
+            if (f[0].equals(U)) out.add(Paths.get(f[1]));
+        }
+        return out;
+    }
+
+    // Builds the FILE_DOWNLOAD_REQUEST, asking to resume if part of the file is already staged and
+    // for a parallel download otherwise.
+    public Message downloadRequest(String sender, String name, Path target) {
+        wanted.put(name, target);
+        Message req = new Message(Message.FILE_DOWNLOAD_REQUEST, sender, name);
+        String[] f;
+        synchronized (this) {
+            f = entries.get(D + name);
+        }
+        Path part = partPath(name);
+        try {
+            if (f != null && Files.exists(part)) {
+                req.payload = Caps.of(Caps.OFF, String.valueOf(Files.size(part)), Caps.SIZE, f[2]);
+            } else if (RangeFetch.STREAMS > 1) {
+                req.payload = Caps.of(Caps.STREAMS, String.valueOf(RangeFetch.STREAMS));
+            }
+        } catch (IOException ignored) {}
+        return req;
+    }
+
+    // Requests for every download that was cut off last time.
+    public synchronized List<Message> resumeRequests(String sender) {
+        List<String[]> dls = new ArrayList<>();
+        for (String[] f : entries.values()) {
+            if (f[0].equals(D)) dls.add(f);
+        }
+        List<Message> out = new ArrayList<>();
+        for (String[] f : dls) out.add(downloadRequest(sender, f[1], Paths.get(f[3])));
+        return out;
+    }
+
+    // Handles FILE_DOWNLOAD_INFO_AND_START; returns the target once the file is complete.
+    public Path downloadStarted(Message info, Path defTarget) throws IOException {
+        String id = Caps.get(info.payload, Caps.XFER);
+        Path target = wanted.remove(info.content);
+        if (target == null) target = defTarget;
+        synchronized (this) {
+            put(D, new String[] { D, info.content, String.valueOf(info.fileSize), target.toAbsolutePath().toString() });
+        }
+        active.put(id, new Dl(info.content, target));
+        ChunkIn.Part done = parts.open(id, partPath(info.content), info.fileSize, Caps.getLong(info.payload, Caps.OFF, 0),
+                Caps.getInt(info.payload, Caps.ZIP, 0) != 0);
+        return done != null ? finish(id) : null;
+    }
+
+    // Handles FILE_DOWNLOAD_INFO_AND_START with streams=N; blocks until the file is in place, so
+    // call it off the reader thread. Parallel downloads aren't journaled: a cut one starts over.
+    public Path fetchRanges(MsgConn conn, Message info, Path defTarget) throws IOException {
+        Path target = wanted.remove(info.content);
+        if (target == null) target = defTarget;
+        RangeFetch.fetch(conn, info, stageDir.resolve(info.content + ".ranges"), target);
+        return target;
+    }
+
+    public static boolean isParallel(Message info) {
+        return Caps.getInt(info.payload, Caps.STREAMS, 1) > 1;
+    }
+
+    public long staged(Message info) {
+        return Caps.getLong(info.payload, Caps.OFF, 0);
+    }
+
+    // Handles FILE_CHUNK; returns the target once the file is complete.
+    public Path chunk(Message msg) throws IOException {
+        try {
+            return parts.write(msg.content, msg.payload instanceof byte[] ? (byte[]) msg.payload : null) != null ? finish(msg.content) : null;
+        } catch (IOException e) {
+            forget(msg.content);
+            throw e;
+        }
+    }
+
+    // Handles FILE_TRANSFER_ABORT for one of our downloads; returns its target, or null.
+    public Path aborted(String id) {
+        parts.abort(id);
+        return forget(id);
+    }
+
+    // Closes open downloads but keeps what they staged.
+    public void close() {
+        parts.closeAll();
+        active.clear();
+    }
+
+    private Path finish(String id) throws IOException {
+        Dl dl = active.get(id);
+        Files.move(partPath(dl.name), dl.target, StandardCopyOption.REPLACE_EXISTING);
+        return forget(id);
+    }
+
+    private Path forget(String id) {
+        Dl dl = active.remove(id);
+        if (dl == null) return null;
+        synchronized (this) {
+            remove(D + dl.name);
+        }
+        return dl.target;
+    }
+
+    private Path partPath(String name) {
+        return stageDir.resolve(name + ".part");
+    }
+
+    private void put(String kind, String[] f) {
+        entries.put(kind + f[1], f);
+        save();
+    }
+
+    private void remove(String key) {
+        if (entries.remove(key) != null) save();
+    }
+
+    private void save() {
+        List<String> lines = new ArrayList<>();
+        for (String[] f : entries.values()) lines.add(String.join("\t", f));
+        try {
+            Files.write(journal, lines, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("Could not update transfer journal " + journal + ": " + e.getMessage());
+        }
+    }
+}
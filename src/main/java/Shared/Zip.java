@@ -0,0 +1,131 @@
+package Shared;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Raw deflate for connections that negotiated the "zip" capability: one shot for message frames,
+// and one stream per file transfer so later chunks can refer back to earlier ones.
+public final class Zip {
+    // Frame bodies shorter than this go out as they are.
+    public static final int MIN_FRAME = 512;
+
+    // Formats that are compressed already; deflating them again only burns CPU.
+    private static final Set<String> STORED = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "jar", "apk",
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "mp3", "m4a", "aac", "ogg", "flac", "mp4", "m4v", "mkv", "avi", "mov", "webm",
+            "pdf", "docx", "xlsx", "pptx", "odt");
+
+    private Zip() {}
+
+    public static boolean compressible(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 || !STORED.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    public static String ratio(long raw, long wire) {
+        return String.format(Locale.ROOT, "%d -> %d bytes, %.2fx", raw, wire, raw / (double) Math.max(1, wire));
+    }
+
+    // Null if the result would not be smaller than the input.
+    static byte[] deflate(byte[] b, int off, int len) {
+        Deflater d = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            d.setInput(b, off, len);
+            d.finish();
+            byte[] out = new byte[len];
+            int n = 0;
+            while (!d.finished() && n < out.length) n += d.deflate(out, n, out.length - n);
+            return d.finished() && n < len ? Arrays.copyOf(out, n) : null;
+        } finally {
+            d.end();
+        }
+    }
+
+    static byte[] inflate(byte[] b, int off, int len, int rawLen) throws IOException {
+        Inflater inf = new Inflater(true);
+        try {
+            inf.setInput(b, off, len);
+            byte[] out = new byte[rawLen];
+            int n = 0;
+            while (n < rawLen) {
+                int k = inf.inflate(out, n, rawLen - n);
+                if (k == 0 && (inf.finished() || inf.needsInput() || inf.needsDictionary())) break;
+                n += k;
+            }
+            if (n != rawLen) throw new IOException("Compressed frame is shorter than announced.");
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame: " + e.getMessage(), e);
+        } finally {
+            inf.end();
+        }
+    }
+
+    // Sending half of a compressed transfer. Each chunk is sync-flushed, so the receiver can
+    // write it out as soon as it arrives. Not thread safe; chunks must go in order.
+    public static final class Out {
+        private final Deflater d = new Deflater(Deflater.BEST_SPEED, true);
+        private byte[] buf = new byte[16 * 1024];
+        private long raw, wire;
+
+        public byte[] deflate(byte[] data) {
+            d.setInput(data);
+            int n = 0;
+            while (true) {
+                if (n == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+                n += d.deflate(buf, n, buf.length - n, Deflater.SYNC_FLUSH);
+                if (n < buf.length) break;
+            }
+            raw += data.length;
+            wire += n;
+            return Arrays.copyOf(buf, n);
+        }
+
+        public String ratio() { return Zip.ratio(raw, wire); }
+
+        public void end() { d.end(); }
+    }
+
+    // Receiving half. inflate() returns a view of an internal buffer that the next call reuses.
+    public static final class In {
+        private final Inflater inf = new Inflater(true);
+        private byte[] buf = new byte[64 * 1024];
+        private long raw, wire;
+
+        // At most max bytes may come out of data; a chunk that expands past that is refused.
+        public ByteBuffer inflate(byte[] data, long max) throws IOException {
+            int cap = (int) Math.min(max, MsgCodec.MAX_FRAME) + 1;
+            inf.setInput(data);
+            int n = 0;
+            try {
+                while (!inf.finished()) {
+                    if (n == buf.length) {
+                        if (buf.length >= cap) throw new IOException("Compressed chunk expands past the end of its transfer.");
+                        buf = Arrays.copyOf(buf, (int) Math.min(cap, buf.length * 2L));
+                    }
+                    int k = inf.inflate(buf, n, buf.length - n);
+                    n += k;
+                    if (k == 0 && inf.needsInput()) break;
+                    if (k == 0 && inf.needsDictionary()) throw new IOException("Compressed chunk needs a preset dictionary.");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed chunk: " + e.getMessage(), e);
+            }
+            if (n > max) throw new IOException("Compressed chunk expands past the end of its transfer.");
+            raw += n;
+            wire += data.length;
+            return ByteBuffer.wrap(buf, 0, n);
+        }
+
+        public String ratio() { return Zip.ratio(raw, wire); }
+
+        public void end() { inf.end(); }
+    }
+}
@@ -0,0 +1,107 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BlobStoreTest {
+    @Test
+    void plainNamesAreValid() {
+        for (String name : List.of("New Text Document.txt", "a..b", "x", "r\u00e9sum\u00e9.pdf", "a".repeat(255))) {
+            assertTrue(BlobStore.validName(name), name);
+        }
+    }
+
+    @Test
+    void namesThatLeaveTheStoreOrBreakTheIndexAreInvalid() {
+        for (String name : new String[] { null, "", ".", "..", ".blobs", ".hidden", "../x", "a/b", "a\\b", "..\\x", "/etc/passwd",
+                "C:x", "a\tb", "a\nb", "a\u0000b", "a\u007fb", "a".repeat(256) }) {
+            assertFalse(BlobStore.validName(name), String.valueOf(name));
+        }
+    }
+
+    private static BlobStore.Entry upload(BlobStore store, String name, String text) throws IOException {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        Path tmp = store.tmpFile();
+        Files.write(tmp, data);
+        return store.put(name, tmp, BlobStore.hex(BlobStore.newDigest().digest(data)), data.length);
+    }
+
+    @Test
+    void invalidNamesNeverTouchTheDisk(@TempDir Path dir) throws IOException {
+        Path root = dir.resolve("store");
+        Files.createDirectories(root);
+        Files.writeString(dir.resolve("secret"), "outside");
+        BlobStore store = new BlobStore(root);
+
+        assertNull(store.get("../secret"));
+        assertNull(store.get(".blobs"));
+        assertThrows(IOException.class, () -> upload(store, "../escaped", "x"));
+        assertThrows(IOException.class, () -> upload(store, "sub/dir", "x"));
+        assertFalse(Files.exists(dir.resolve("escaped")));
+
+        BlobStore.Entry ok = upload(store, "fine.txt", "x");
+        assertNull(store.linkExisting("../copy", ok.digest, ok.size));
+        assertNull(store.linkExisting("a\tb", ok.digest, ok.size));
+        assertEquals(List.of("fine.txt"), store.names());
+    }
+
+    @Test
+    void appendedIndexIsReadBackLastLineWinning(@TempDir Path dir) throws IOException {
+        BlobStore store = new BlobStore(dir);
+        upload(store, "a.txt", "one");
+        upload(store, "b.txt", "two");
+        BlobStore.Entry again = upload(store, "a.txt", "three");
+        Path index = dir.resolve(".blobs").resolve("index");
+        assertEquals(4, Files.readAllLines(index).size(), "header plus one appended line per link");
+
+        Files.write(index, List.of("damaged line", "ff\tnot-a-number\t1\tc.txt"), StandardOpenOption.APPEND);
+        BlobStore reopened = new BlobStore(dir);
+        assertEquals(List.of("a.txt", "b.txt"), reopened.names());
+        assertEquals(again.digest, reopened.get("a.txt").digest);
+        assertEquals("three", Files.readString(reopened.get("a.txt").path));
+        assertEquals("two", Files.readString(reopened.get("b.txt").path));
+    }
+
+    @Test
+    void pinnedBlobIsDeletedOnlyByTheLastUnpin(@TempDir Path dir) throws IOException {
+        BlobStore store = new BlobStore(dir);
+        BlobStore.Entry old = upload(store, "a.txt", "one");
+        BlobStore.Pin p1 = store.pin(old.path);
+        BlobStore.Pin p2 = p1.again();
+        upload(store, "a.txt", "two");
+        assertEquals("one", Files.readString(old.path));
+        p1.close();
+        p1.close();
+        assertTrue(Files.exists(old.path), "a second close of the same pin must not release the other");
+        p2.close();
+        assertFalse(Files.exists(old.path));
+    }
+
+    @Test
+    void relinkedBlobSurvivesItsPins(@TempDir Path dir) throws IOException {
+        BlobStore store = new BlobStore(dir);
+        BlobStore.Entry old = upload(store, "a.txt", "one");
+        BlobStore.Pin p = store.pin(old.path);
+        upload(store, "a.txt", "two");
+        upload(store, "b.txt", "one");
+        p.close();
+        assertEquals("one", Files.readString(store.get("b.txt").path));
+    }
+
+    @Test
+    void indexIsCompactedOnceMostLinesAreStale(@TempDir Path dir) throws IOException {
+        BlobStore store = new BlobStore(dir);
+        for (int i = 0; i < 5; i++) upload(store, "same.txt", "v" + i);
+        new BlobStore(dir);
+        assertEquals(List.of("#v2"), Files.readAllLines(dir.resolve(".blobs").resolve("index")).subList(0, 1));
+        assertEquals(2, Files.readAllLines(dir.resolve(".blobs").resolve("index")).size());
+    }
+}
@@ -0,0 +1,158 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ChatLogTest {
+    private static final long T0 = 1_000_000;
+    private static final long FOREVER = Long.MAX_VALUE / 4;
+
+    private static ChatLog open(Path dir, int segBytes, long keepBytes) throws IOException {
+        return new ChatLog(dir, segBytes, keepBytes, FOREVER, FOREVER);
+    }
+
+    // The writer thread persists lines in the background; waits until n of room's are readable.
+    private static List<ChatLog.Line> await(ChatLog log, String room, int n) throws InterruptedException {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        List<ChatLog.Line> got;
+        while ((got = log.from(room, 0, Integer.MAX_VALUE)).size() < n && System.nanoTime() < deadline) Thread.sleep(10);
+        assertEquals(n, got.size(), "lines persisted");
+        return got;
+    }
+
+    private static long files(Path dir) throws IOException {
+        try (Stream<Path> s = Files.list(dir)) {
+            return s.count();
+        }
+    }
+
+    @Test
+    void reopeningRecoversLinesAndContinuesNumbering(@TempDir Path dir) throws Exception {
+        try (ChatLog log = open(dir, 4096, FOREVER)) {
+            for (int i = 0; i < 200; i++) assertEquals(i, log.append(i % 2 == 0 ? "a" : "b", "u" + i, "text " + i, T0 + i));
+        }
+        assertTrue(files(dir) > 1, "small segments should have rolled");
+
+        try (ChatLog again = open(dir, 4096, FOREVER)) {
+            List<ChatLog.Line> a = again.from("a", 0, 1000);
+            assertEquals(100, a.size());
+            assertEquals(100, again.from("b", 0, 1000).size(), "close persists everything queued");
+            ChatLog.Line l = a.get(10);
+            assertEquals(20, l.seq);
+            assertEquals(T0 + 20, l.time);
+            assertEquals("a", l.room);
+            assertEquals("u20", l.sender);
+            assertEquals("text 20", l.text);
+            assertEquals(200, again.append("a", "u", "next", T0 + 200));
+        }
+    }
+
+    @Test
+    void closedLogFindsNothingAndKeepsNothing(@TempDir Path dir) throws Exception {
+        ChatLog log = open(dir, 4096, FOREVER);
+        log.append("a", "u", "one", T0);
+        await(log, "a", 1);
+        log.close();
+        assertTrue(log.from("a", 0, 10).isEmpty());
+        assertEquals(1, log.append("a", "u", "two", T0 + 1));
+        log.close();
+    }
+
+    @Test
+    void idleSegmentIsNotRolledByAge(@TempDir Path dir) throws Exception {
+        try (ChatLog log = new ChatLog(dir, 4096, FOREVER, FOREVER, 2000)) {
+            Thread.sleep(2500);
+            log.append("a", "u", "first", System.currentTimeMillis());
+            await(log, "a", 1);
+            Thread.sleep(1200);
+            assertEquals(1, files(dir), "an idle segment's age counts from its first line");
+            long deadline = System.nanoTime() + 10_000_000_000L;
+            while (files(dir) < 2 && System.nanoTime() < deadline) Thread.sleep(50);
+            assertEquals(2, files(dir), "and rolls once that line is old enough");
+        }
+    }
+
+    @Test
+    void tornTailIsDropped(@TempDir Path dir) throws Exception {
+        try (ChatLog log = open(dir, 64 * 1024, FOREVER)) {
+            for (int i = 0; i < 10; i++) log.append("a", "u", "text " + i, T0 + i);
+        }
+
+        // Flip the last byte of the last record, as if it had only partly reached the disk.
+        Path seg;
+        try (Stream<Path> s = Files.list(dir)) {
+            seg = s.findFirst().get();
+        }
+        try (FileChannel ch = FileChannel.open(seg, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate((int) ch.size());
+            ch.read(b, 0);
+            int pos = 0, last = 0;
+            while (b.getInt(pos) != 0) {
+                last = pos;
+                pos += b.getInt(pos);
+            }
+            int at = last + b.getInt(last) - 1;
+            ch.write(ByteBuffer.wrap(new byte[] { (byte) (b.get(at) ^ 0x55) }), at);
+        }
+
+        try (ChatLog again = open(dir, 64 * 1024, FOREVER)) {
+            List<ChatLog.Line> got = again.from("a", 0, 100);
+            assertEquals(9, got.size());
+            assertEquals("text 8", got.get(8).text);
+            assertEquals(9, again.append("a", "u", "again", T0 + 100), "the torn line's number is reused");
+        }
+    }
+
+    @Test
+    void queriesReadOnlyTheRoomAsked(@TempDir Path dir) throws Exception {
+        try (ChatLog log = open(dir, 4096, FOREVER)) {
+            for (int i = 0; i < 300; i++) log.append(i % 3 == 0 ? "a" : "b", "u", "m" + i, T0 + i);
+            await(log, "a", 100);
+            await(log, "b", 200);
+
+            List<ChatLog.Line> from = log.from("a", 150, 5);
+            assertEquals(5, from.size());
+            assertEquals(150, from.get(0).seq);
+            assertEquals(162, from.get(4).seq);
+
+            List<ChatLog.Line> between = log.between("b", T0 + 100, T0 + 106, 100);
+            assertEquals(List.of(100L, 101L, 103L, 104L, 106L), between.stream().map(l -> l.seq).toList());
+            assertTrue(log.from("nobody", 0, 100).isEmpty());
+        }
+    }
+
+    @Test
+    void oneQueryReadsAtMostMaxScanLines(@TempDir Path dir) throws Exception {
+        try (ChatLog log = open(dir, 1024 * 1024, FOREVER)) {
+            int n = ChatLog.MAX_SCAN + 500;
+            for (int i = 0; i < n; i++) log.append("a", "u", "x", T0 + i);
+            long deadline = System.nanoTime() + 10_000_000_000L;
+            while (log.from("a", n - 1, 1).isEmpty() && System.nanoTime() < deadline) Thread.sleep(10);
+            assertEquals(ChatLog.MAX_SCAN, log.from("a", 0, Integer.MAX_VALUE).size());
+            assertEquals(ChatLog.MAX_SCAN, log.between("a", 0, Long.MAX_VALUE, Integer.MAX_VALUE).size());
+        }
+    }
+
+    @Test
+    void retentionDropsOldSegmentsAndQueriesCarryOn(@TempDir Path dir) throws Exception {
+        try (ChatLog log = open(dir, 4096, 16 * 1024)) {
+            for (int i = 0; i < 2000; i++) log.append("a", "u", "text " + i, T0 + i);
+            long deadline = System.nanoTime() + 10_000_000_000L;
+            while ((files(dir) > 5 || log.from("a", 1999, 1).isEmpty()) && System.nanoTime() < deadline) Thread.sleep(20);
+            assertTrue(files(dir) <= 5, "old segments dropped");
+            List<ChatLog.Line> got = log.from("a", 0, 10);
+            assertFalse(got.isEmpty());
+            assertTrue(got.get(0).seq > 0);
+        }
+    }
+}
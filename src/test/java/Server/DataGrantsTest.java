@@ -0,0 +1,84 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DataGrantsTest {
+    @TempDir
+    Path dir;
+    private BlobStore store;
+
+    @BeforeEach
+    void open() throws IOException {
+        store = new BlobStore(dir);
+    }
+
+    private DataGrants.Grant grant(long size) {
+        return new DataGrants.Grant("user1", "x1", store.pin(dir.resolve("f")), size, 1);
+    }
+
+    @Test
+    void rangesInsideTheFileAreAccepted() {
+        DataGrants.Grant g = grant(100);
+        assertTrue(g.covers(0, 100));
+        assertTrue(g.covers(99, 1));
+        assertTrue(g.covers(40, 20));
+    }
+
+    @Test
+    void rangesOutsideTheFileAreRefused() {
+        DataGrants.Grant g = grant(100);
+        assertFalse(g.covers(-1, 10));
+        assertFalse(g.covers(0, 0));
+        assertFalse(g.covers(0, -5));
+        assertFalse(g.covers(100, 1));
+        assertFalse(g.covers(50, 51));
+    }
+
+    @Test
+    void hugeRangesDoNotOverflowPastTheCheck() {
+        DataGrants.Grant g = grant(100);
+        assertFalse(g.covers(Long.MAX_VALUE, Long.MAX_VALUE));
+        assertFalse(g.covers(50, Long.MAX_VALUE));
+        assertFalse(g.covers(Long.MAX_VALUE, 1));
+        assertFalse(g.covers(1, Long.MAX_VALUE - 1));
+        assertFalse(grant(Long.MAX_VALUE).covers(Long.MAX_VALUE - 1, 2));
+    }
+
+    @Test
+    void tokensAreGoodForTheirUsesOnly() {
+        DataGrants grants = new DataGrants();
+        String t = grants.issue("user1", "x1", store.pin(dir.resolve("f")), 10, 2);
+        assertNotNull(grants.claim(t));
+        assertNotNull(grants.claim(t));
+        assertNull(grants.claim(t));
+        assertNull(grants.claim("nope"));
+        assertNull(grants.claim(null));
+    }
+
+    @Test
+    void replacedFileOutlivesTheGrantUntilTheLastRangeIsDone() throws IOException {
+        byte[] old = "old".getBytes(StandardCharsets.UTF_8);
+        Path tmp = store.tmpFile();
+        Files.write(tmp, old);
+        BlobStore.Entry e = store.put("a.txt", tmp, BlobStore.hex(BlobStore.newDigest().digest(old)), old.length);
+        DataGrants grants = new DataGrants();
+        String t = grants.issue("user1", "x1", store.pin(e.path), old.length, 1);
+        tmp = store.tmpFile();
+        Files.writeString(tmp, "new");
+        store.put("a.txt", tmp, BlobStore.hex(BlobStore.newDigest().digest("new".getBytes(StandardCharsets.UTF_8))), 3);
+        assertTrue(Files.exists(e.path));
+        DataGrants.Claim c = grants.claim(t);
+        assertEquals(e.path, c.grant.path);
+        assertTrue(Files.exists(e.path));
+        c.pin.close();
+        assertFalse(Files.exists(e.path));
+    }
+}
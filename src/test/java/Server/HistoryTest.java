@@ -0,0 +1,50 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import Shared.Message;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class HistoryTest {
+    private static List<Long> postConcurrently(History h, Room room, RoomPresenceTest.Rec rec) throws InterruptedException {
+        List<Thread> posters = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            String sender = "u" + t;
+            posters.add(new Thread(() -> {
+                for (int i = 0; i < 2000; i++) h.post(room.name, room, new Message(Message.CHAT_MESSAGE, sender, "m" + i), f -> room.bcast(f, null));
+            }));
+        }
+        for (Thread t : posters) t.start();
+        for (Thread t : posters) t.join();
+        List<Long> seqs = new ArrayList<>();
+        synchronized (rec) {
+            for (long s : rec.seqs) {
+                if (s >= 0) seqs.add(s);
+            }
+        }
+        return seqs;
+    }
+
+    private static void assertInSeqOrder(List<Long> seqs) {
+        assertEquals(8000, seqs.size());
+        for (int i = 0; i < seqs.size(); i++) assertEquals(i, seqs.get(i), "delivered out of seq order");
+    }
+
+    @Test
+    void concurrentPostersReachMembersInSeqOrder() throws Exception {
+        Room room = new Room("r");
+        RoomPresenceTest.Rec rec = new RoomPresenceTest.Rec();
+        room.join(RoomPresenceTest.member(rec, "alice", true));
+        assertInSeqOrder(postConcurrently(new History(100, 1 << 20, ChatLog.off()), room, rec));
+    }
+
+    @Test
+    void orderHoldsWithHistoryOff() throws Exception {
+        Room room = new Room("r");
+        RoomPresenceTest.Rec rec = new RoomPresenceTest.Rec();
+        room.join(RoomPresenceTest.member(rec, "alice", true));
+        assertInSeqOrder(postConcurrently(new History(0, 0, ChatLog.off()), room, rec));
+    }
+}
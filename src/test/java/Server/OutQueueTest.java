@@ -0,0 +1,130 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import Shared.Message;
+import Shared.MsgCodec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class OutQueueTest {
+    private static OutQueue.Item item(int type, String text) throws IOException {
+        Frame f = new Frame(new Message(type, "user1", text));
+        return OutQueue.Item.msg(f, f.bytes(MsgCodec.V_BIN));
+    }
+
+    private static OutQueue.Item chat(int i) throws IOException {
+        return item(Message.CHAT_MESSAGE, "line " + i);
+    }
+
+    private static String text(OutQueue.Item it) throws IOException {
+        ByteBuffer b = it.bytes.duplicate();
+        return MsgCodec.decode(b.array(), b.arrayOffset() + b.position() + 4, b.remaining() - 4, MsgCodec.V_BIN).content;
+    }
+
+    private static List<String> drain(OutQueue q) throws IOException {
+        List<String> out = new ArrayList<>();
+        OutQueue.Item it;
+        while ((it = q.poll()) != null) out.add(it.xfer != null ? "chunk@" + it.off : text(it));
+        return out;
+    }
+
+    @Test
+    void dropOldestMakesRoomByDroppingChat() throws IOException {
+        OutQueue q = new OutQueue(3, OutQueue.Policy.DROP_OLDEST, Long.MAX_VALUE, "test");
+        assertTrue(q.offer(item(Message.GENERAL_SERVER_MESSAGE, "notice")));
+        for (int i = 1; i <= 4; i++) assertTrue(q.offer(chat(i)));
+        assertEquals(List.of("notice", "line 3", "line 4"), drain(q));
+        assertEquals(2, q.getDropped());
+    }
+
+    @Test
+    void dropOldestLetsControlTrafficOverflowOnlyUpToTwiceTheBound() throws IOException {
+        OutQueue q = new OutQueue(2, OutQueue.Policy.DROP_OLDEST, Long.MAX_VALUE, "test");
+        for (int i = 0; i < 4; i++) assertTrue(q.offer(item(Message.USER_PRESENCE, "p" + i)));
+        assertTrue(q.offer(chat(0)), "chat is dropped, not fatal");
+        assertFalse(q.offer(item(Message.USER_PRESENCE, "p4")));
+        assertEquals(4, q.depth());
+    }
+
+    @Test
+    void disconnectRefusesPastTheBound() throws IOException {
+        OutQueue q = new OutQueue(2, OutQueue.Policy.DISCONNECT, Long.MAX_VALUE, "test");
+        assertTrue(q.offer(chat(1)));
+        assertTrue(q.offer(chat(2)));
+        assertFalse(q.offer(chat(3)));
+        assertEquals(1, q.getDropped());
+    }
+
+    @Test
+    void spillKeepsEverythingInOrder() throws IOException {
+        OutQueue q = new OutQueue(4, OutQueue.Policy.SPILL, Long.MAX_VALUE, "test");
+        List<String> want = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            assertTrue(q.offer(chat(i)));
+            want.add("line " + i);
+        }
+        assertTrue(q.getSpilled() > 0);
+        assertEquals(50, q.depth());
+        assertEquals(want, drain(q));
+        assertEquals(0, q.depth());
+    }
+
+    @Test
+    void spilledItemsKeepTheirBirthTime() throws IOException {
+        OutQueue q = new OutQueue(2, OutQueue.Policy.SPILL, Long.MAX_VALUE, "test");
+        List<Long> born = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            OutQueue.Item it = chat(i);
+            born.add(it.born);
+            assertTrue(q.offer(it));
+        }
+        List<Long> got = new ArrayList<>();
+        OutQueue.Item it;
+        while ((it = q.poll()) != null) got.add(it.born);
+        assertEquals(born, got);
+    }
+
+    @Test
+    void fullSpillFileDisconnects() throws IOException {
+        OutQueue q = new OutQueue(2, OutQueue.Policy.SPILL, 200, "test");
+        int n = 0;
+        while (q.offer(chat(n))) {
+            n++;
+            assertTrue(n < 100, "the spill file never filled up");
+        }
+        assertTrue(q.getSpilled() > 0);
+        assertEquals(1, q.getDropped());
+        q.clear();
+    }
+
+    @Test
+    void messagesGoAheadOfDownloadChunks(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("f");
+        Files.write(file, new byte[10]);
+        BlobStore store = new BlobStore(dir.resolve("store"));
+        OutQueue q = new OutQueue(8, OutQueue.Policy.DROP_OLDEST, Long.MAX_VALUE, "test");
+        q.addXfer(new OutQueue.Xfer("d1", store.pin(file), 10, 0, 4, false));
+        assertTrue(q.offer(chat(1)));
+        assertEquals("line 1", text(q.poll()));
+        assertEquals(0, q.poll().off);
+        assertTrue(q.offer(chat(2)));
+        assertEquals(List.of("line 2", "chunk@4", "chunk@8"), drain(q));
+    }
+
+    @Test
+    void closedQueueFlushesMessagesButTakesNoMore() throws IOException, InterruptedException {
+        OutQueue q = new OutQueue(8, OutQueue.Policy.DROP_OLDEST, Long.MAX_VALUE, "test");
+        assertTrue(q.offer(chat(1)));
+        q.close();
+        assertTrue(q.offer(chat(2)));
+        assertEquals("line 1", text(q.take()));
+        assertNull(q.take());
+    }
+}
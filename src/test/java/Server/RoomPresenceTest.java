@@ -0,0 +1,116 @@
+package Server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import Shared.Message;
+import java.lang.reflect.Field;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.Test;
+
+// The server half of the presence gap check: every member sees one snapshot, then deltas whose
+// versions follow it with no gaps, so a client that does spot a gap knows it lost something.
+class RoomPresenceTest {
+    static final class Rec implements Conn {
+        final List<Message> got = new ArrayList<>();
+        final List<Long> seqs = new ArrayList<>();
+        private final OutQueue outQ = new OutQueue(1024, OutQueue.Policy.DROP_OLDEST, Long.MAX_VALUE, "test");
+
+        @Override public synchronized void send(Frame frame) {
+            got.add(frame.msg);
+            seqs.add(frame.seq);
+        }
+        @Override public void setCodec(int ver) {}
+        @Override public void sendFile(Message start, BlobStore.Pin pin, long off, long len) { throw new UnsupportedOperationException(); }
+        @Override public void sendChunks(Message start, String id, BlobStore.Pin pin, long size, long off, int chunk, boolean zip) { throw new UnsupportedOperationException(); }
+        @Override public void recvFile(Path path, long size, MessageDigest md, Consumer<java.io.IOException> done) { throw new UnsupportedOperationException(); }
+        @Override public OutQueue outQueue() { return outQ; }
+        @Override public String addr() { return "test"; }
+        @Override public boolean isOpen() { return true; }
+        @Override public void close() {}
+    }
+
+    // A logged-in session without a login exchange, as the benchmarks build them.
+    static ClientHandler member(Rec conn, String uname, boolean deltas) throws ReflectiveOperationException {
+        ClientHandler cli = new ClientHandler(conn, Server.sessions);
+        set(cli, "uname", uname);
+        set(cli, "loggedIn", true);
+        set(cli, "presenceDeltas", deltas);
+        return cli;
+    }
+
+    private static void set(ClientHandler cli, String field, Object val) throws ReflectiveOperationException {
+        Field f = ClientHandler.class.getDeclaredField(field);
+        f.setAccessible(true);
+        f.set(cli, val);
+    }
+
+    // Replays what a delta client would do with what it got, failing on any gap.
+    private static List<String> apply(List<Message> got) {
+        List<String> users = null;
+        long ver = -1;
+        for (Message m : got) {
+            if (m.type == Message.USER_LIST_UPDATE) {
+                users = new ArrayList<>(Arrays.asList((String[]) m.payload));
+                ver = m.fileSize;
+            } else if (m.type == Message.USER_PRESENCE) {
+                assertNotNull(users, "delta before the snapshot");
+                if (m.fileSize <= ver) continue;
+                assertEquals(ver + 1, m.fileSize, "version gap");
+                ver = m.fileSize;
+                if (Message.JOINED.equals(m.payload)) users.add(m.content);
+                else users.remove(m.content);
+            }
+        }
+        users.sort(null);
+        return users;
+    }
+
+    @Test
+    void membersSeeConsecutiveVersionsAfterTheirSnapshot() throws ReflectiveOperationException {
+        Room room = new Room("r");
+        Rec a = new Rec(), b = new Rec(), c = new Rec();
+        ClientHandler ca = member(a, "alice", true);
+        ClientHandler cb = member(b, "bob", true);
+        room.join(ca);
+        room.join(cb);
+        room.addRemote("zed");
+        room.join(member(c, "carol", true));
+        room.leave(cb);
+        room.removeRemote("zed");
+
+        assertEquals(List.of("alice", "carol"), apply(a.got));
+        assertEquals(List.of("alice", "carol"), apply(c.got));
+        assertEquals(List.of("alice", "bob", "carol", "zed"), apply(b.got), "bob stops hearing once he has left");
+    }
+
+    @Test
+    void userOnTwoNodesStaysListedUntilGoneFromBoth() throws ReflectiveOperationException {
+        Room room = new Room("r");
+        Rec a = new Rec(), d = new Rec();
+        room.join(member(a, "alice", true));
+        ClientHandler dup = member(d, "dave", true);
+        room.join(dup);
+        room.addRemote("dave");
+        room.leave(dup);
+        assertEquals(List.of("alice", "dave"), apply(a.got));
+        room.removeRemote("dave");
+        assertEquals(List.of("alice"), apply(a.got));
+    }
+
+    @Test
+    void clientsWithoutDeltasGetWholeLists() throws ReflectiveOperationException {
+        Room room = new Room("r");
+        Rec old = new Rec();
+        room.join(member(old, "old", false));
+        room.join(member(new Rec(), "new", true));
+        assertTrue(old.got.stream().allMatch(m -> m.type == Message.USER_LIST_UPDATE));
+        Message last = old.got.get(old.got.size() - 1);
+        assertEquals(List.of("new", "old"), Arrays.asList((String[]) last.payload));
+        assertEquals(2, last.fileSize);
+    }
+}
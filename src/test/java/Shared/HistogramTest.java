@@ -0,0 +1,61 @@
+package Shared;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class HistogramTest {
+    @Test
+    void emptyReportsZero() {
+        Histogram h = new Histogram();
+        assertEquals(0, h.count());
+        assertEquals(0, h.percentile(0.99));
+        assertEquals(0, h.max());
+    }
+
+    @Test
+    void smallValuesAreExact() {
+        Histogram h = new Histogram();
+        for (int v = 0; v < 16; v++) h.record(v);
+        assertEquals(16, h.count());
+        assertEquals(0, h.percentile(0));
+        assertEquals(7, h.percentile(0.5));
+        assertEquals(15, h.max());
+    }
+
+    @Test
+    void negativeValuesCountAsZero() {
+        Histogram h = new Histogram();
+        h.record(-5);
+        assertEquals(1, h.count());
+        assertEquals(0, h.max());
+    }
+
+    // Log-linear buckets: any percentile is within 1/16 above the exact one, never below it.
+    @Test
+    void percentilesStayWithinBucketPrecision() {
+        Random rnd = new Random(7);
+        long[] vals = new long[100_000];
+        Histogram h = new Histogram();
+        for (int i = 0; i < vals.length; i++) {
+            vals[i] = (long) Math.exp(rnd.nextDouble() * 30);
+            h.record(vals[i]);
+        }
+        Arrays.sort(vals);
+        for (double p : new double[] { 0.01, 0.5, 0.9, 0.99, 0.999, 1.0 }) {
+            long exact = vals[(int) Math.ceil(p * vals.length) - 1];
+            long got = h.percentile(p);
+            assertTrue(got >= exact && got <= exact + exact / 16 + 1, "p" + p + ": exact " + exact + ", got " + got);
+        }
+        assertEquals(h.percentile(1.0), h.max());
+    }
+
+    @Test
+    void hugeValuesDoNotOverflow() {
+        Histogram h = new Histogram();
+        h.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, h.max());
+    }
+}
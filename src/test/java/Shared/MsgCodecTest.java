@@ -0,0 +1,142 @@
+package Shared;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class MsgCodecTest {
+    private static final int[] CODECS = { MsgCodec.V_JAVA, MsgCodec.V_BIN, MsgCodec.V_JAVA | MsgCodec.ZIP, MsgCodec.V_BIN | MsgCodec.ZIP };
+
+    private static Message msg(Object payload) {
+        Message m = new Message(Message.CHAT_MESSAGE, "user1", "hello \u00fcn\u00efcode");
+        m.fileSize = -42;
+        m.payload = payload;
+        return m;
+    }
+
+    private static Message roundTrip(Message m, int ver) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        MsgCodec.writeFrame(new DataOutputStream(bos), m, ver);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        Message out = MsgCodec.readFrame(in, ver);
+        assertEquals(-1, in.read(), "frame left bytes behind");
+        return out;
+    }
+
+    private static void assertSame(Message want, Message got) {
+        assertEquals(want.type, got.type);
+        assertEquals(want.sender, got.sender);
+        assertEquals(want.content, got.content);
+        assertEquals(want.fileSize, got.fileSize);
+        if (want.payload instanceof String[]) assertArrayEquals((String[]) want.payload, (String[]) got.payload);
+        else if (want.payload instanceof byte[]) assertArrayEquals((byte[]) want.payload, (byte[]) got.payload);
+        else assertEquals(want.payload, got.payload);
+    }
+
+    @Test
+    void everyPayloadSurvivesEveryCodec() throws IOException {
+        Object[] payloads = { null, "room", new String[] { "a", null, "", "c=d" }, new String[0], Long.MIN_VALUE, -7, new byte[] { 0, -1, 127 } };
+        for (int ver : CODECS) {
+            for (Object p : payloads) assertSame(msg(p), roundTrip(msg(p), ver));
+        }
+    }
+
+    @Test
+    void nullStringsStayNull() throws IOException {
+        Message m = new Message(Message.CLIENT_DISCONNECT, null, (String) null);
+        Message got = roundTrip(m, MsgCodec.V_BIN);
+        assertNull(got.sender);
+        assertNull(got.content);
+    }
+
+    @Test
+    void largeFramesAreDeflatedAndRestored() throws IOException {
+        char[] text = new char[64 * 1024];
+        Arrays.fill(text, 'x');
+        Message m = msg(null);
+        m.content = new String(text);
+        int plain = MsgCodec.frame(m, MsgCodec.V_BIN).remaining();
+        int zipped = MsgCodec.frame(m, MsgCodec.V_BIN | MsgCodec.ZIP).remaining();
+        assertTrue(zipped < plain / 10, "deflate did not shrink " + plain + " bytes: " + zipped);
+        assertSame(m, roundTrip(m, MsgCodec.V_BIN | MsgCodec.ZIP));
+    }
+
+    @Test
+    void unsupportedPayloadIsRefused() {
+        assertThrows(IOException.class, () -> MsgCodec.encode(msg(new Object()), MsgCodec.V_BIN));
+    }
+
+    // type, sender, content, fileSize, then the payload tag and whatever follows it.
+    private static byte[] bin(int... tail) {
+        byte[] head = { 3, 0, 0, 0 };
+        byte[] out = Arrays.copyOf(head, head.length + tail.length);
+        for (int i = 0; i < tail.length; i++) out[head.length + i] = (byte) tail[i];
+        return out;
+    }
+
+    private static void refused(byte[] body) {
+        assertThrows(IOException.class, () -> MsgCodec.decode(body, 0, body.length, MsgCodec.V_BIN));
+    }
+
+    @Test
+    void negativeAndOversizedCountsAreRefused() {
+        refused(bin(1, 0xFF, 0xFF, 0xFF, 0xFF, 0x0F));   // P_STRINGS, count -1
+        refused(bin(1, 0x80, 0x80, 0x80, 0x80, 0x08));   // P_STRINGS, count Integer.MIN_VALUE
+        refused(bin(1, 5, 0, 0));                        // five strings promised, two bytes left
+        refused(bin(5, 0xFF, 0xFF, 0xFF, 0xFF, 0x0F));   // P_BYTES, length -1
+        refused(bin(5, 4, 1, 2));                        // four bytes promised, two left
+        refused(bin(2, 0xFF, 0xFF, 0xFF, 0xFF, 0x0F));   // P_STRING, length -2 after the null bias
+        refused(bin(2, 9, 'a'));                          // eight chars promised, one left
+    }
+
+    @Test
+    void malformedFramesAreRefused() {
+        refused(new byte[0]);
+        refused(bin(9));                                  // unknown payload tag
+        refused(bin(0, 0));                               // trailing byte
+        refused(bin(3, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x01));   // varint too long
+        byte[] zip = { 7, 1, 2, 3 };
+        assertThrows(IOException.class, () -> MsgCodec.decode(zip, 0, zip.length, MsgCodec.V_BIN | MsgCodec.ZIP));
+        byte[] junk = { 1, 2, 3, 4 };
+        assertThrows(IOException.class, () -> MsgCodec.decode(junk, 0, junk.length, MsgCodec.V_JAVA));
+    }
+
+    @Test
+    void frameLengthsAreChecked() {
+        for (int len : new int[] { -1, MsgCodec.MAX_FRAME + 1 }) {
+            byte[] hdr = ByteBuffer.allocate(4).putInt(len).array();
+            assertThrows(IOException.class, () -> MsgCodec.readFrame(new DataInputStream(new ByteArrayInputStream(hdr)), MsgCodec.V_BIN));
+        }
+    }
+
+    // Whatever a peer sends, decoding ends in a message or an IOException, never anything else.
+    @Test
+    void mutatedFramesOnlyFailWithIOException() throws IOException {
+        Random rnd = new Random(1);
+        Object[] payloads = { "room", new String[] { "a", "bb", "ccc" }, 12345L, new byte[] { 1, 2, 3, 4 } };
+        for (int ver : new int[] { MsgCodec.V_BIN, MsgCodec.V_BIN | MsgCodec.ZIP }) {
+            for (Object p : payloads) {
+                ByteBuffer f = MsgCodec.frame(msg(p), ver, false);
+                byte[] good = Arrays.copyOfRange(f.array(), 4, f.limit());
+                for (int i = 0; i < 5_000; i++) {
+                    byte[] bad = good.clone();
+                    for (int k = 1 + rnd.nextInt(3); k > 0; k--) bad[rnd.nextInt(bad.length)] = (byte) rnd.nextInt(256);
+                    int len = rnd.nextInt(4) == 0 ? rnd.nextInt(bad.length + 1) : bad.length;
+                    try {
+                        MsgCodec.decode(bad, 0, len, ver);
+                    } catch (IOException expected) {
+                        // fine
+                    }
+                }
+            }
+        }
+    }
+}